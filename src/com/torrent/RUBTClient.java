@@ -6,21 +6,38 @@
 
 package com.torrent;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.torrent.dht.DhtNode;
 import com.torrent.file.DownloadFile;
 import com.torrent.file.FileManager;
+import com.torrent.file.StorageUtil;
+import com.torrent.peer.Choker;
+import com.torrent.peer.ExtensionRegistry;
+import com.torrent.peer.IpFilter;
 import com.torrent.peer.PeerConnection;
+import com.torrent.peer.PeerExchange;
 import com.torrent.peer.PeerInfo;
 import com.torrent.peer.PeerManager;
 import com.torrent.peer.PeerMessage;
+import com.torrent.peer.PeerRegistry;
+import com.torrent.peer.PeerTable;
 import com.torrent.peer.PeerUtil;
+import com.torrent.peer.SmartBan;
+import com.torrent.tracker.ScrapeInfo;
+import com.torrent.tracker.TrackerServer;
 import com.torrent.tracker.TrackerUtil;
+import com.torrent.util.Config;
 import com.torrent.util.StreamUtil;
+import com.torrent.util.TokenBucket;
 import com.torrent.util.TorrentInfo;
+import com.torrent.util.WheelTimer;
 
 public class RUBTClient {
 
@@ -61,6 +78,29 @@ public class RUBTClient {
 	 */
 	private static PeerManager mPeerManager;
 
+	/**
+	 * Tracks which peers sent bad data
+	 */
+	private static SmartBan mSmartBan;
+
+	/**
+	 * Limits on all traffic of this client, in bytes per second;
+	 * can be changed while running with setRate()
+	 */
+	private static TokenBucket mGlobalDownloadLimit;
+	private static TokenBucket mGlobalUploadLimit;
+
+	/**
+	 * A tracker run alongside the client when rubt.tracker.port
+	 * is set, or null
+	 */
+	private static TrackerServer mTrackerServer;
+
+	/**
+	 * Our node in the DHT, or null if it's off or the torrent is private
+	 */
+	private static DhtNode mDht;
+
 	public static void main(String[] args) {
 		if (!checkArguments(args)) {
 			return;
@@ -76,6 +116,7 @@ public class RUBTClient {
 			System.out.println("|-----------------------------|\n");
 
 			FileManager.setPieceLength(mTorrentInfo.piece_length);
+			FileManager.setStorageType(Config.getString("storage", StorageUtil.DEFAULT_TYPE));
 
 			// For now, only handle torrents with one file and no folders
 			List<DownloadFile> fileList = new ArrayList<DownloadFile>();
@@ -92,19 +133,64 @@ public class RUBTClient {
 			mTcpPort = mTcpSocket.getLocalPort();
 
 			// Setup links among all the components that need to communicate
-			TrackerUtil.setParams(mTorrentInfo.announce_url.toString(), mTorrentInfo.info_hash, mTorrentInfo.file_length, mPeerID, mTcpPort, mFileManager);
-			PeerConnection.setParams(mTorrentInfo.announce_url.toString(), mTorrentInfo.info_hash, mTorrentInfo.file_length, mTorrentInfo.piece_hashes, mTorrentInfo.piece_length, mPeerID, mTcpPort);
+			TrackerUtil.setParams(mTorrentInfo.announce_list, mTorrentInfo.info_hash, mTorrentInfo.file_length, mPeerID, mTcpPort, mFileManager);
+			PeerConnection.setParams(mTorrentInfo.announce, mTorrentInfo.info_hash, mTorrentInfo.file_length, mTorrentInfo.piece_hashes, mTorrentInfo.piece_length, mPeerID, mTcpPort);
 			PeerConnection.setFileManager(mFileManager);
+			ExtensionRegistry extensions = new ExtensionRegistry();
+			PeerExchange peerExchange = new PeerExchange();
+			PeerConnection.setExtensions(extensions);
+
+			// One timer thread runs every keep-alive, timeout and periodic task
+			WheelTimer timer = new WheelTimer();
+			timer.start();
+			PeerConnection.setTimer(timer);
+
+			// Be a tracker for the LAN, if asked to
+			int trackerPort = Config.getInt("tracker.port", 0);
+			if (trackerPort > 0) {
+				mTrackerServer = new TrackerServer(trackerPort, Config.getLong("tracker.interval", TrackerServer.DEFAULT_INTERVAL),
+						Config.getInt("tracker.threads", TrackerServer.DEFAULT_THREADS));
+				mTrackerServer.start(timer);
+				System.out.println("Tracker running at " + mTrackerServer.getAnnounceURL());
+			}
+			// Remember how peers behaved, across restarts
+			PeerTable peerTable = new PeerTable(new File(Config.getString("peertable", args[1] + ".peers")));
+			PeerConnection.setSmartBan(mSmartBan = new SmartBan(peerTable));
+
+			// Rate limits (given in KB/s) for the whole client, this torrent, and each peer
+			mGlobalDownloadLimit = new TokenBucket(Config.getLong("maxdownload", 0) * 1024);
+			mGlobalUploadLimit = new TokenBucket(Config.getLong("maxupload", 0) * 1024);
+			PeerConnection.setRateLimits(new TokenBucket(Config.getLong("torrent.maxdownload", 0) * 1024, mGlobalDownloadLimit),
+					new TokenBucket(Config.getLong("torrent.maxupload", 0) * 1024, mGlobalUploadLimit),
+					Config.getLong("peer.maxdownload", 0) * 1024, Config.getLong("peer.maxupload", 0) * 1024);
 			PeerMessage.setParams(mTorrentInfo.info_hash, mPeerID);
 			
 			// Setup the PeerManager that will handle which peers to use
-			mPeerManager = new PeerManager(mTcpSocket);
+			PeerRegistry peers = new PeerRegistry(Config.getInt("maxconnections", PeerRegistry.DEFAULT_MAX_CONNECTIONS), Config.getInt("maxoutgoing", PeerRegistry.DEFAULT_MAX_OUTGOING));
+			mPeerManager = new PeerManager(mTcpSocket, peers, peerTable, createIpFilter(), mSmartBan, new Choker(mFileManager, Config.getInt("uploadslots", Choker.DEFAULT_UPLOAD_SLOTS)), timer);
+			
+			// Swap peers with connected peers, except in private torrents
+			if (!mTorrentInfo.is_private) {
+				extensions.register(peerExchange);
+				mPeerManager.setPeerExchange(peerExchange);
+			}
+
+			// Find peers through the DHT too, unless turned off with
+			// rubt.dht.port=0; private torrents only use their trackers
+			int dhtPort = Config.getInt("dht.port", mTcpPort);
+			if (dhtPort > 0 && !mTorrentInfo.is_private) {
+				mDht = new DhtNode(dhtPort, new File(Config.getString("dht.nodes", args[1] + ".dht")), timer);
+				mDht.start(DhtNode.parseAddresses(Config.getString("dht.bootstrap", DhtNode.DEFAULT_BOOTSTRAP)));
+				mPeerManager.setDht(mDht, mTorrentInfo.info_hash.array(), mTcpPort);
+			}
 			
 			// Start the PeerManager - which will handle all download related tasks from here
 			mPeerManager.start();
 			
 			// If the file was already downloaded, then send the Tracker a COMPLETED
-			TrackerUtil.sendEvent(TrackerUtil.Events.COMPLETED);
+			if (mFileManager.arePiecesDownloaded()) {
+				TrackerUtil.sendEvent(TrackerUtil.Events.COMPLETED);
+			}
 			
 			System.out.println(" _____________________________ ");
 			System.out.println("|------------INFO-------------|");
@@ -112,17 +198,27 @@ public class RUBTClient {
 			System.out.println("|-----to exit this client-----|");
 			System.out.println("|-----------------------------|\n");
 			
-			// Wait for a keypress to stop everything
-			System.in.read();
+			// Wait for a keypress to stop everything,
+			// handling any rate limit changes typed in the meantime
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+			while (handleCommand(console.readLine())) { }
 			
 			// Stop the PeerManager's threads
 			mPeerManager.stop();
-
-			// Tell the tracker we're stopped
-			TrackerUtil.sendEvent(TrackerUtil.Events.STOPPED);
+			if (mTrackerServer != null) {
+				mTrackerServer.stop();
+			}
+			if (mDht != null) {
+				mDht.stop();
+			}
+			timer.stop();
 
 			// Close socket that was open for incoming peers
 			PeerUtil.closeTCP();
+
+			// Finish writing anything queued for the disk
+			mFileManager.close();
+			System.out.println(mFileManager.getDiskIO());
 			
 			// Print a warning if file not fully downloaded
 			if(!mFileManager.arePiecesDownloaded()) {
@@ -139,6 +235,79 @@ public class RUBTClient {
 
 	}
 
+	/**
+	 * Handle a line typed while running: "up <KB/s>" or "down <KB/s>"
+	 * change the client's rate limits (0 for unlimited), "peers"
+	 * shows how each connection and the swarm are doing, and
+	 * "trackers" how each tracker is answering
+	 * 
+	 * @return false if the client should stop
+	 */
+	private static boolean handleCommand(String line) {
+		if (line == null || line.trim().length() == 0) {
+			return false;
+		}
+
+		String[] parts = line.trim().split("\\s+");
+		if (parts.length == 1 && parts[0].equals("peers")) {
+			for (PeerConnection peer : mPeerManager.getPeers()) {
+				System.out.println(String.format("%s:%d  from %s, down %.1f KB/s, up %.1f KB/s, %s%s", peer.getPeerInfo().getIP(), peer.getPeerInfo().getPort(),
+						peer.getPeerInfo().getSource(), peer.getDownloadRate() / 1024, peer.getUploadRate() / 1024, peer.getRequestStats(), peer.isSnubbed() ? ", snubbed" : ""));
+			}
+			ScrapeInfo swarm = TrackerUtil.getSwarm();
+			System.out.println("Swarm: " + ((swarm != null) ? (swarm.toString()) : ("unknown")));
+			return true;
+		} else if (parts.length == 1 && parts[0].equals("trackers")) {
+			for (String status : TrackerUtil.getStatus()) {
+				System.out.println(status);
+			}
+			if (mTrackerServer != null) {
+				System.out.println(mTrackerServer.getStatus());
+			}
+			if (mDht != null) {
+				System.out.println(mDht.getStatus());
+			}
+			return true;
+		}
+
+		try {
+			if (parts.length == 2 && parts[0].equals("up")) {
+				mGlobalUploadLimit.setRate(Long.parseLong(parts[1]) * 1024);
+				System.out.println("Upload limit set to " + parts[1] + " KB/s");
+				return true;
+			} else if (parts.length == 2 && parts[0].equals("down")) {
+				mGlobalDownloadLimit.setRate(Long.parseLong(parts[1]) * 1024);
+				System.out.println("Download limit set to " + parts[1] + " KB/s");
+				return true;
+			}
+		} catch (NumberFormatException e) { }
+
+		System.out.println("Unknown command; use \"up <KB/s>\", \"down <KB/s>\", \"peers\" or <ENTER> to exit");
+		return true;
+	}
+
+	/**
+	 * Load the allow and deny lists named by rubt.allowlist
+	 * and rubt.denylist, each a comma-separated list of files
+	 */
+	private static IpFilter createIpFilter() throws IOException {
+		IpFilter filter = new IpFilter();
+
+		for (String path : Config.getString("allowlist", "").split(",")) {
+			if (path.trim().length() > 0) {
+				System.out.println("Loaded " + filter.loadAllowList(new File(path.trim())) + " allowed ranges from " + path.trim());
+			}
+		}
+
+		for (String path : Config.getString("denylist", "").split(",")) {
+			if (path.trim().length() > 0) {
+				System.out.println("Loaded " + filter.loadDenyList(new File(path.trim())) + " denied ranges from " + path.trim());
+			}
+		}
+
+		return filter;
+	}
+
 	/**
 	 * Check if the arguments are the correct format
 	 * 
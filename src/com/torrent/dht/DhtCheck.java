@@ -0,0 +1,138 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.dht;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.torrent.peer.PeerInfo;
+import com.torrent.util.Checks;
+import com.torrent.util.WheelTimer;
+
+/**
+ * Runs a few DhtNodes on the loopback interface, joined through the
+ * first: one announces a torrent, then the others look its peers up
+ * with get_peers, and a node's saved table is loaded again
+ *
+ * Usage: DhtCheck
+ */
+public class DhtCheck {
+
+	private static final int NODES = 12;
+
+	/**
+	 * Longest to wait for a lookup
+	 */
+	private static final long LOOKUP_TIMEOUT = 4 * DhtNode.QUERY_TIMEOUT;
+
+	/**
+	 * Collects what a lookup finds, and waits for it to finish
+	 */
+	private static class Result implements DhtNode.Callback {
+		private final List<PeerInfo> mPeers = new ArrayList<PeerInfo>();
+		private boolean mFinished = false;
+
+		public synchronized void onPeers(List<PeerInfo> peers) {
+			mPeers.addAll(peers);
+		}
+
+		public synchronized void onFinished() {
+			mFinished = true;
+			notifyAll();
+		}
+
+		/**
+		 * @return whether it finished in time
+		 */
+		public synchronized boolean await() throws InterruptedException {
+			long end = System.currentTimeMillis() + LOOKUP_TIMEOUT;
+			while (!mFinished && System.currentTimeMillis() < end) {
+				wait(end - System.currentTimeMillis());
+			}
+			return mFinished;
+		}
+
+		public synchronized boolean hasPeer(int port) {
+			for (PeerInfo peer : mPeers) {
+				if (peer.getIP().equals("127.0.0.1") && peer.getPort() == port) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Checks checks = new Checks();
+		WheelTimer timer = new WheelTimer();
+		timer.start();
+
+		// Only the name is wanted; a node starts afresh without the file
+		File file = File.createTempFile("dhtcheck", ".dht");
+		file.delete();
+		file.deleteOnExit();
+
+		List<DhtNode> nodes = new ArrayList<DhtNode>();
+		DhtNode first = new DhtNode(0, null, timer);
+		first.start(new ArrayList<InetSocketAddress>());
+		nodes.add(first);
+
+		List<InetSocketAddress> bootstrap = Arrays.asList(new InetSocketAddress("127.0.0.1", first.getPort()));
+		for (int i = 1; i < NODES; i++) {
+			DhtNode node = new DhtNode(0, (i == 1) ? (file) : (null), timer);
+			node.start(bootstrap);
+			nodes.add(node);
+		}
+
+		// Let each bootstrap lookup finish
+		Thread.sleep(1000);
+
+		byte[] infoHash = new byte[20];
+		Arrays.fill(infoHash, (byte) 0x5A);
+
+		Result announce = new Result();
+		nodes.get(2).getPeers(infoHash, 6881, announce);
+		checks.check("announcing lookup finishes", announce.await());
+		checks.check("nobody had announced before", !announce.hasPeer(6881));
+
+		int found = 0;
+		for (int i = 3; i < NODES; i++) {
+			Result lookup = new Result();
+			nodes.get(i).getPeers(infoHash, 0, lookup);
+			if (lookup.await() && lookup.hasPeer(6881)) {
+				found++;
+			}
+		}
+		checks.check("every other node finds the announced peer (" + found + " of " + (NODES - 3) + ")", found == NODES - 3);
+
+		Result unknown = new Result();
+		nodes.get(NODES - 1).getPeers(new byte[20], 0, unknown);
+		checks.check("unannounced torrent has no peers", unknown.await() && unknown.mPeers.isEmpty());
+
+		DhtNode saved = nodes.get(1);
+		saved.stop();
+		try {
+			DhtNode reloaded = new DhtNode(0, file, timer);
+			checks.check("saved id is loaded again", Arrays.equals(reloaded.getId(), saved.getId()));
+			checks.check("saved nodes are loaded again", !reloaded.getStatus().contains(": 0 nodes"));
+			reloaded.stop();
+		} catch (IOException e) {
+			checks.fail("reload", e);
+		}
+
+		for (DhtNode node : nodes) {
+			node.stop();
+		}
+		timer.stop();
+		checks.finish();
+	}
+
+}
@@ -0,0 +1,744 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.dht;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.torrent.peer.PeerInfo;
+import com.torrent.util.Bencoder2;
+import com.torrent.util.WheelTimer;
+
+/**
+ * A Kademlia DHT node (BEP 5), which finds peers for a torrent without a
+ * tracker and answers other nodes' queries. Every query and answer goes
+ * through one UDP socket, read by a single thread; lookups are run as
+ * the answers arrive and queries time out on the timer, so any number of
+ * lookups run at once without a thread of their own. Everything happens
+ * with the node's lock held, including calls to Callbacks, which
+ * shouldn't block; the routing table is saved on a thread of its own.
+ */
+public class DhtNode {
+
+	/**
+	 * Told about the peers a lookup finds
+	 */
+	public interface Callback {
+		/**
+		 * Peers found since the last call; called as each node answers
+		 */
+		public void onPeers(List<PeerInfo> peers);
+
+		/**
+		 * The lookup has asked the closest nodes it could find
+		 */
+		public void onFinished();
+	}
+
+	/**
+	 * Told how a query went
+	 */
+	interface QueryCallback {
+		/**
+		 * @param node
+		 *            the node that answered, with the id it gave
+		 */
+		public void onResponse(Node node, Map<?, ?> response);
+
+		/**
+		 * The query timed out, or was answered with an error
+		 */
+		public void onFailure();
+	}
+
+	/**
+	 * The keys of KRPC messages
+	 */
+	static class Keys {
+		public static final ByteBuffer TRANSACTION = ByteBuffer.wrap("t".getBytes());
+		public static final ByteBuffer TYPE = ByteBuffer.wrap("y".getBytes());
+		public static final ByteBuffer QUERY = ByteBuffer.wrap("q".getBytes());
+		public static final ByteBuffer ARGUMENTS = ByteBuffer.wrap("a".getBytes());
+		public static final ByteBuffer RESPONSE = ByteBuffer.wrap("r".getBytes());
+		public static final ByteBuffer ERROR = ByteBuffer.wrap("e".getBytes());
+
+		public static final ByteBuffer ID = ByteBuffer.wrap("id".getBytes());
+		public static final ByteBuffer TARGET = ByteBuffer.wrap("target".getBytes());
+		public static final ByteBuffer INFO_HASH = ByteBuffer.wrap("info_hash".getBytes());
+		public static final ByteBuffer PORT = ByteBuffer.wrap("port".getBytes());
+		public static final ByteBuffer IMPLIED_PORT = ByteBuffer.wrap("implied_port".getBytes());
+		public static final ByteBuffer TOKEN = ByteBuffer.wrap("token".getBytes());
+		public static final ByteBuffer NODES = ByteBuffer.wrap("nodes".getBytes());
+		public static final ByteBuffer VALUES = ByteBuffer.wrap("values".getBytes());
+	}
+
+	/**
+	 * The kinds of message, and of query
+	 */
+	static class Methods {
+		public static final String QUERY = "q";
+		public static final String RESPONSE = "r";
+		public static final String ERROR = "e";
+
+		public static final String PING = "ping";
+		public static final String FIND_NODE = "find_node";
+		public static final String GET_PEERS = "get_peers";
+		public static final String ANNOUNCE_PEER = "announce_peer";
+	}
+
+	/**
+	 * KRPC error codes
+	 */
+	private static class Errors {
+		public static final int PROTOCOL = 203;
+		public static final int METHOD_UNKNOWN = 204;
+	}
+
+	/**
+	 * Well known nodes to join the DHT through
+	 */
+	public static final String DEFAULT_BOOTSTRAP = "router.bittorrent.com:6881,dht.transmissionbt.com:6881,router.utorrent.com:6881";
+
+	/**
+	 * Milliseconds to wait for an answer
+	 */
+	public static final long QUERY_TIMEOUT = 5000;
+
+	/**
+	 * How often nodes are pinged, buckets refreshed, and the table saved
+	 */
+	private static final long MAINTENANCE_INTERVAL = 60 * 1000;
+
+	/**
+	 * How often the secret behind our tokens changes; tokens made with
+	 * the previous secret are still accepted, so each lasts 5 to 10 minutes
+	 */
+	private static final long TOKEN_ROTATION = 5 * 60 * 1000;
+
+	/**
+	 * Stale nodes pinged in each maintenance round
+	 */
+	private static final int PINGS_PER_ROUND = RoutingTable.K;
+
+	/**
+	 * Peers announced to us are forgotten after this long, and only
+	 * so many are kept for so many torrents
+	 */
+	private static final long PEER_EXPIRY = 30 * 60 * 1000;
+	private static final int MAX_STORED_PEERS = 1000;
+	private static final int MAX_STORED_TORRENTS = 1000;
+
+	/**
+	 * Most peers given in one answer, which keeps it in one packet
+	 */
+	private static final int MAX_VALUES = 50;
+
+	private static final int MAX_PACKET = 4096;
+
+	/**
+	 * A query waiting for its answer
+	 */
+	private static class Query {
+		public InetSocketAddress address;
+
+		/**
+		 * The node's id, or null for a bootstrap node we don't know yet
+		 */
+		public byte[] id;
+
+		public QueryCallback callback;
+		public WheelTimer.Timeout timeout;
+	}
+
+	private final DatagramSocket mSocket;
+	private final RoutingTable mTable;
+	private final WheelTimer mTimer;
+	private Thread mThread;
+	private volatile boolean mRunning = false;
+
+	/**
+	 * Queries waiting for answers, by transaction id
+	 */
+	private final Map<Integer, Query> mQueries = new HashMap<Integer, Query>();
+	private int mNextTransaction;
+
+	/**
+	 * Nodes to join through when the table is empty
+	 */
+	private List<InetSocketAddress> mBootstrap = new ArrayList<InetSocketAddress>();
+
+	private WheelTimer.Timeout mMaintenanceTimeout;
+
+	/**
+	 * Saves the routing table, off the timer thread and our lock
+	 */
+	private final ExecutorService mSaver;
+
+	private final Random mRandom = new SecureRandom();
+	private byte[] mSecret = new byte[20];
+	private byte[] mPreviousSecret = new byte[20];
+	private long mSecretTime;
+
+	/**
+	 * Peers announced to us, by info hash, then by compact address,
+	 * with when each announced
+	 */
+	private final Map<ByteBuffer, Map<ByteBuffer, Long>> mPeerStore = new HashMap<ByteBuffer, Map<ByteBuffer, Long>>();
+
+	/**
+	 * @param port
+	 *            the UDP port to listen on, or 0 for any free one
+	 * @param file
+	 *            where the routing table is saved, or null
+	 */
+	public DhtNode(int port, File file, WheelTimer timer) throws SocketException {
+		mSocket = new DatagramSocket(port);
+		mTable = new RoutingTable(file);
+		mTimer = timer;
+		mSaver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DHT save");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		mNextTransaction = mRandom.nextInt();
+		mRandom.nextBytes(mSecret);
+		mRandom.nextBytes(mPreviousSecret);
+		mSecretTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Start answering queries, and join the DHT through the nodes we knew
+	 * last time, or the bootstrap nodes
+	 */
+	public void start(List<InetSocketAddress> bootstrap) {
+		mBootstrap = new ArrayList<InetSocketAddress>(bootstrap);
+		mRunning = true;
+
+		(mThread = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[MAX_PACKET];
+				while (mRunning) {
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					try {
+						mSocket.receive(packet);
+					} catch (IOException e) {
+						if (mRunning) {
+							System.out.println("DHT socket error: " + e);
+						}
+						continue;
+					}
+
+					try {
+						handlePacket(Arrays.copyOf(packet.getData(), packet.getLength()), (InetSocketAddress) packet.getSocketAddress());
+					} catch (Exception e) {
+						// Keep answering whatever a packet holds
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "DHT")).start();
+
+		mMaintenanceTimeout = mTimer.schedulePeriodic(new Runnable() {
+			public void run() {
+				maintain();
+			}
+		}, MAINTENANCE_INTERVAL);
+
+		bootstrap();
+	}
+
+	public void stop() {
+		mRunning = false;
+		if (mMaintenanceTimeout != null) {
+			mMaintenanceTimeout.cancel();
+		}
+		mSocket.close();
+
+		// Let a save already started finish before the last one
+		mSaver.shutdown();
+		try {
+			mSaver.awaitTermination(QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mTable.save();
+
+		synchronized (this) {
+			for (Query query : mQueries.values()) {
+				query.timeout.cancel();
+			}
+			mQueries.clear();
+		}
+	}
+
+	/**
+	 * Look up the peers of a torrent, then announce
+	 * that we're one of them
+	 *
+	 * @param announcePort
+	 *            the TCP port we take peers on, or 0 to only look up
+	 */
+	public synchronized void getPeers(byte[] infoHash, int announcePort, Callback callback) {
+		Lookup lookup = new Lookup(this, infoHash, true, announcePort, callback);
+		seed(lookup, infoHash);
+		lookup.start();
+	}
+
+	/**
+	 * Ping a node, which is added to the table if it answers
+	 */
+	public synchronized void addNode(InetSocketAddress address) {
+		query(address, null, Methods.PING, new HashMap<ByteBuffer, Object>(), null);
+	}
+
+	public int getPort() {
+		return mSocket.getLocalPort();
+	}
+
+	public byte[] getId() {
+		return mTable.getId();
+	}
+
+	public synchronized String getStatus() {
+		return "DHT on port " + getPort() + ": " + mTable.size() + " nodes, " + mQueries.size() + " queries waiting, peers stored for "
+				+ mPeerStore.size() + " torrents";
+	}
+
+	/**
+	 * Read a comma-separated list of host:port pairs, skipping
+	 * any that don't resolve
+	 */
+	public static List<InetSocketAddress> parseAddresses(String list) {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (String entry : list.split(",")) {
+			int colon = entry.lastIndexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+
+			try {
+				InetSocketAddress address = new InetSocketAddress(entry.substring(0, colon).trim(), Integer.parseInt(entry.substring(colon + 1).trim()));
+				if (!address.isUnresolved()) {
+					addresses.add(address);
+				}
+			} catch (IllegalArgumentException e) {
+				// Also covers a bad port number
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * Find the nodes closest to our own id, which fills the table
+	 */
+	private synchronized void bootstrap() {
+		Lookup lookup = new Lookup(this, mTable.getId(), false, 0, null);
+		seed(lookup, mTable.getId());
+		lookup.start();
+	}
+
+	/**
+	 * Start a lookup from the closest nodes we know, or
+	 * the bootstrap nodes if we know none yet
+	 */
+	private void seed(Lookup lookup, byte[] target) {
+		List<Node> closest = mTable.getClosest(target, RoutingTable.K);
+		for (Node node : closest) {
+			lookup.add(node.getId(), node.getAddress());
+		}
+
+		if (closest.size() < RoutingTable.K) {
+			for (InetSocketAddress address : mBootstrap) {
+				lookup.add(null, address);
+			}
+		}
+	}
+
+	/**
+	 * Keep the table fresh, and forget old tokens and peers
+	 */
+	private synchronized void maintain() {
+		if (System.currentTimeMillis() - mSecretTime > TOKEN_ROTATION) {
+			mPreviousSecret = mSecret;
+			mSecret = new byte[20];
+			mRandom.nextBytes(mSecret);
+			mSecretTime = System.currentTimeMillis();
+		}
+
+		expirePeers();
+
+		if (mTable.size() == 0) {
+			bootstrap();
+		} else {
+			List<Node> stale = mTable.getStaleNodes();
+			for (int i = 0; i < stale.size() && i < PINGS_PER_ROUND; i++) {
+				query(stale.get(i).getAddress(), stale.get(i).getId(), Methods.PING, new HashMap<ByteBuffer, Object>(), null);
+			}
+
+			for (byte[] target : mTable.getRefreshTargets()) {
+				Lookup lookup = new Lookup(this, target, false, 0, null);
+				seed(lookup, target);
+				lookup.start();
+			}
+		}
+
+		try {
+			mSaver.execute(new Runnable() {
+				public void run() {
+					mTable.save();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Stopping, which saves it anyway
+		}
+	}
+
+	/**
+	 * Send a query, calling back when it's answered or times out
+	 *
+	 * @param id
+	 *            the node's id, or null if it isn't known yet
+	 * @param callback
+	 *            may be null
+	 */
+	synchronized void query(InetSocketAddress address, byte[] id, String method, HashMap<ByteBuffer, Object> arguments, QueryCallback callback) {
+		// Find a transaction id that isn't waiting for an answer
+		int transaction;
+		do {
+			transaction = (mNextTransaction++) & 0xFFFF;
+		} while (mQueries.containsKey(transaction));
+
+		arguments.put(Keys.ID, ByteBuffer.wrap(mTable.getId()));
+		HashMap<ByteBuffer, Object> message = new HashMap<ByteBuffer, Object>();
+		message.put(Keys.TRANSACTION, ByteBuffer.wrap(new byte[] { (byte) (transaction >> 8), (byte) transaction }));
+		message.put(Keys.TYPE, ByteBuffer.wrap(Methods.QUERY.getBytes()));
+		message.put(Keys.QUERY, ByteBuffer.wrap(method.getBytes()));
+		message.put(Keys.ARGUMENTS, arguments);
+
+		final Query query = new Query();
+		query.address = address;
+		query.id = id;
+		query.callback = callback;
+
+		final int key = transaction;
+		query.timeout = mTimer.schedule(new Runnable() {
+			public void run() {
+				timedOut(key, query);
+			}
+		}, QUERY_TIMEOUT);
+		mQueries.put(key, query);
+
+		if (!send(message, address)) {
+			// Fails the same way as one that's never answered
+			query.timeout.cancel();
+			timedOut(key, query);
+		}
+	}
+
+	private synchronized void timedOut(int transaction, Query query) {
+		if (mQueries.get(transaction) != query) {
+			return;
+		}
+		mQueries.remove(transaction);
+
+		if (query.id != null) {
+			mTable.failed(new Node(query.id, query.address));
+		}
+		if (query.callback != null) {
+			query.callback.onFailure();
+		}
+	}
+
+	private synchronized void handlePacket(byte[] packet, InetSocketAddress from) {
+		Map<?, ?> message;
+		try {
+			Object decoded = Bencoder2.decode(packet);
+			if (!(decoded instanceof Map)) {
+				return;
+			}
+			message = (Map<?, ?>) decoded;
+		} catch (Exception e) {
+			// Not ours to answer
+			return;
+		}
+
+		byte[] transaction = getBytes(message, Keys.TRANSACTION);
+		byte[] type = getBytes(message, Keys.TYPE);
+		if (transaction == null || type == null) {
+			return;
+		}
+
+		String typeName = new String(type);
+		if (typeName.equals(Methods.QUERY)) {
+			handleQuery(message, transaction, from);
+		} else if (typeName.equals(Methods.RESPONSE) || typeName.equals(Methods.ERROR)) {
+			handleResponse(message, transaction, typeName.equals(Methods.ERROR), from);
+		}
+	}
+
+	private void handleResponse(Map<?, ?> message, byte[] transaction, boolean error, InetSocketAddress from) {
+		if (transaction.length != 2) {
+			return;
+		}
+
+		// Only the node we asked may answer
+		int key = ((transaction[0] & 0xff) << 8) | (transaction[1] & 0xff);
+		Query query = mQueries.get(key);
+		if (query == null || !query.address.equals(from)) {
+			return;
+		}
+		mQueries.remove(key);
+		query.timeout.cancel();
+
+		Map<?, ?> response = getMap(message, Keys.RESPONSE);
+		byte[] id = (response != null) ? (getBytes(response, Keys.ID)) : (null);
+		if (error || id == null || id.length != Node.ID_LENGTH) {
+			if (query.callback != null) {
+				query.callback.onFailure();
+			}
+			return;
+		}
+
+		Node node = new Node(id, from);
+		mTable.add(node);
+		if (query.callback != null) {
+			query.callback.onResponse(node, response);
+		}
+	}
+
+	private void handleQuery(Map<?, ?> message, byte[] transaction, InetSocketAddress from) {
+		Map<?, ?> arguments = getMap(message, Keys.ARGUMENTS);
+		byte[] method = getBytes(message, Keys.QUERY);
+		byte[] id = (arguments != null) ? (getBytes(arguments, Keys.ID)) : (null);
+		if (method == null || id == null || id.length != Node.ID_LENGTH) {
+			sendError(transaction, Errors.PROTOCOL, "Protocol Error", from);
+			return;
+		}
+
+		mTable.add(new Node(id, from));
+
+		HashMap<ByteBuffer, Object> response = new HashMap<ByteBuffer, Object>();
+		response.put(Keys.ID, ByteBuffer.wrap(mTable.getId()));
+		String methodName = new String(method);
+
+		if (methodName.equals(Methods.PING)) {
+			// Only needs our id
+		} else if (methodName.equals(Methods.FIND_NODE)) {
+			byte[] target = getBytes(arguments, Keys.TARGET);
+			if (target == null || target.length != Node.ID_LENGTH) {
+				sendError(transaction, Errors.PROTOCOL, "Bad target", from);
+				return;
+			}
+			response.put(Keys.NODES, ByteBuffer.wrap(getCompactNodes(target)));
+		} else if (methodName.equals(Methods.GET_PEERS)) {
+			byte[] infoHash = getBytes(arguments, Keys.INFO_HASH);
+			if (infoHash == null || infoHash.length != Node.ID_LENGTH) {
+				sendError(transaction, Errors.PROTOCOL, "Bad info_hash", from);
+				return;
+			}
+
+			response.put(Keys.TOKEN, ByteBuffer.wrap(makeToken(from, mSecret)));
+			ArrayList<Object> values = getStoredPeers(infoHash);
+			if (values.isEmpty()) {
+				response.put(Keys.NODES, ByteBuffer.wrap(getCompactNodes(infoHash)));
+			} else {
+				response.put(Keys.VALUES, values);
+			}
+		} else if (methodName.equals(Methods.ANNOUNCE_PEER)) {
+			byte[] infoHash = getBytes(arguments, Keys.INFO_HASH);
+			byte[] token = getBytes(arguments, Keys.TOKEN);
+			if (infoHash == null || infoHash.length != Node.ID_LENGTH || token == null || !isValidToken(token, from)) {
+				sendError(transaction, Errors.PROTOCOL, "Bad token", from);
+				return;
+			}
+
+			// The port the peer takes connections on, unless it says to use the one it sent from
+			int port = getInt(arguments, Keys.PORT, 0);
+			if (getInt(arguments, Keys.IMPLIED_PORT, 0) == 1) {
+				port = from.getPort();
+			}
+			if (port <= 0 || port > 0xFFFF) {
+				sendError(transaction, Errors.PROTOCOL, "Bad port", from);
+				return;
+			}
+			storePeer(infoHash, from, port);
+		} else {
+			sendError(transaction, Errors.METHOD_UNKNOWN, "Method Unknown", from);
+			return;
+		}
+
+		HashMap<ByteBuffer, Object> reply = new HashMap<ByteBuffer, Object>();
+		reply.put(Keys.TRANSACTION, ByteBuffer.wrap(transaction));
+		reply.put(Keys.TYPE, ByteBuffer.wrap(Methods.RESPONSE.getBytes()));
+		reply.put(Keys.RESPONSE, response);
+		send(reply, from);
+	}
+
+	private void sendError(byte[] transaction, int code, String reason, InetSocketAddress to) {
+		ArrayList<Object> error = new ArrayList<Object>();
+		error.add(code);
+		error.add(ByteBuffer.wrap(reason.getBytes()));
+
+		HashMap<ByteBuffer, Object> reply = new HashMap<ByteBuffer, Object>();
+		reply.put(Keys.TRANSACTION, ByteBuffer.wrap(transaction));
+		reply.put(Keys.TYPE, ByteBuffer.wrap(Methods.ERROR.getBytes()));
+		reply.put(Keys.ERROR, error);
+		send(reply, to);
+	}
+
+	/**
+	 * @return false if the message couldn't be sent
+	 */
+	private boolean send(HashMap<ByteBuffer, Object> message, InetSocketAddress to) {
+		try {
+			byte[] bytes = Bencoder2.encode(message);
+			mSocket.send(new DatagramPacket(bytes, bytes.length, to));
+			return true;
+		} catch (Exception e) {
+			// A closed socket, an unreachable network, or an unencodable message
+			return false;
+		}
+	}
+
+	/**
+	 * @return the closest nodes we know to the target, in the compact format
+	 */
+	private byte[] getCompactNodes(byte[] target) {
+		List<Node> closest = mTable.getClosest(target, RoutingTable.K);
+		ByteBuffer nodes = ByteBuffer.allocate(closest.size() * Node.COMPACT_LENGTH);
+		for (Node node : closest) {
+			byte[] compact = node.toCompact();
+			if (compact != null) {
+				nodes.put(compact);
+			}
+		}
+		return Arrays.copyOf(nodes.array(), nodes.position());
+	}
+
+	/**
+	 * A token proves the node asking to announce got it from us at its
+	 * address: a hash of the address and our secret
+	 */
+	private static byte[] makeToken(InetSocketAddress address, byte[] secret) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(address.getAddress().getAddress());
+			digest.update(secret);
+			return Arrays.copyOf(digest.digest(), 8);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private boolean isValidToken(byte[] token, InetSocketAddress from) {
+		return Arrays.equals(token, makeToken(from, mSecret)) || Arrays.equals(token, makeToken(from, mPreviousSecret));
+	}
+
+	private void storePeer(byte[] infoHash, InetSocketAddress from, int port) {
+		byte[] ip = from.getAddress().getAddress();
+		if (ip.length != 4) {
+			return;
+		}
+
+		ByteBuffer key = ByteBuffer.wrap(infoHash);
+		Map<ByteBuffer, Long> peers = mPeerStore.get(key);
+		if (peers == null) {
+			if (mPeerStore.size() >= MAX_STORED_TORRENTS) {
+				return;
+			}
+			peers = new HashMap<ByteBuffer, Long>();
+			mPeerStore.put(key, peers);
+		}
+
+		ByteBuffer compact = ByteBuffer.wrap(new byte[] { ip[0], ip[1], ip[2], ip[3], (byte) (port >> 8), (byte) port });
+		if (peers.containsKey(compact) || peers.size() < MAX_STORED_PEERS) {
+			peers.put(compact, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return up to MAX_VALUES peers announced for the torrent, in the compact format
+	 */
+	private ArrayList<Object> getStoredPeers(byte[] infoHash) {
+		ArrayList<Object> values = new ArrayList<Object>();
+		Map<ByteBuffer, Long> peers = mPeerStore.get(ByteBuffer.wrap(infoHash));
+		if (peers == null) {
+			return values;
+		}
+
+		List<ByteBuffer> compacts = new ArrayList<ByteBuffer>(peers.keySet());
+		int start = mRandom.nextInt(compacts.size());
+		for (int i = 0; i < compacts.size() && i < MAX_VALUES; i++) {
+			values.add(compacts.get((start + i) % compacts.size()));
+		}
+		return values;
+	}
+
+	private void expirePeers() {
+		long oldest = System.currentTimeMillis() - PEER_EXPIRY;
+		Iterator<Map<ByteBuffer, Long>> torrents = mPeerStore.values().iterator();
+		while (torrents.hasNext()) {
+			Map<ByteBuffer, Long> peers = torrents.next();
+			Iterator<Long> times = peers.values().iterator();
+			while (times.hasNext()) {
+				if (times.next() < oldest) {
+					times.remove();
+				}
+			}
+
+			if (peers.isEmpty()) {
+				torrents.remove();
+			}
+		}
+	}
+
+	static byte[] getBytes(Map<?, ?> map, ByteBuffer key) {
+		Object value = map.get(key);
+		if (!(value instanceof ByteBuffer)) {
+			return null;
+		}
+
+		ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	static Map<?, ?> getMap(Map<?, ?> map, ByteBuffer key) {
+		Object value = map.get(key);
+		return (value instanceof Map) ? ((Map<?, ?>) value) : (null);
+	}
+
+	private static int getInt(Map<?, ?> map, ByteBuffer key, int defaultValue) {
+		Object value = map.get(key);
+		return (value instanceof Integer) ? ((Integer) value) : (defaultValue);
+	}
+
+}
@@ -0,0 +1,258 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.dht;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.torrent.peer.PeerInfo;
+
+/**
+ * An iterative lookup of the nodes closest to a target: up to ALPHA
+ * queries are out at once, each answer adds the closer nodes it gives,
+ * and the lookup is done once the K closest nodes it knows have all
+ * answered. Nothing waits; the lookup moves on as each query is answered
+ * or times out. Only used with the DhtNode's lock held.
+ */
+class Lookup {
+
+	/**
+	 * Queries out at once
+	 */
+	private static final int ALPHA = 3;
+
+	/**
+	 * Farther nodes than this many are forgotten
+	 */
+	private static final int MAX_CANDIDATES = RoutingTable.K * 8;
+
+	private static class Candidate {
+		/**
+		 * Null until a bootstrap node answers
+		 */
+		public byte[] id;
+		public InetSocketAddress address;
+		public boolean queried = false;
+		public boolean answered = false;
+		public boolean failed = false;
+
+		/**
+		 * What the node gave us to announce with
+		 */
+		public byte[] token;
+
+		public Candidate(byte[] id, InetSocketAddress address) {
+			this.id = id;
+			this.address = address;
+		}
+	}
+
+	private final DhtNode mDht;
+	private final byte[] mTarget;
+
+	/**
+	 * get_peers rather than find_node
+	 */
+	private final boolean mGetPeers;
+
+	/**
+	 * The port to announce once done, or 0
+	 */
+	private final int mAnnouncePort;
+
+	private final DhtNode.Callback mCallback;
+
+	/**
+	 * Closest to the target first; nodes without an id go last
+	 */
+	private List<Candidate> mCandidates = new ArrayList<Candidate>();
+	private Set<InetSocketAddress> mSeen = new HashSet<InetSocketAddress>();
+	private Set<ByteBuffer> mPeers = new HashSet<ByteBuffer>();
+
+	private int mInFlight = 0;
+	private boolean mFinished = false;
+
+	private final Comparator<Candidate> mByDistance = new Comparator<Candidate>() {
+		public int compare(Candidate a, Candidate b) {
+			if (a.id == null || b.id == null) {
+				return (a.id == null ? 1 : 0) - (b.id == null ? 1 : 0);
+			}
+			return RoutingTable.compareDistance(mTarget, a.id, b.id);
+		}
+	};
+
+	/**
+	 * @param callback
+	 *            told about peers found, may be null
+	 */
+	public Lookup(DhtNode dht, byte[] target, boolean getPeers, int announcePort, DhtNode.Callback callback) {
+		mDht = dht;
+		mTarget = target;
+		mGetPeers = getPeers;
+		mAnnouncePort = announcePort;
+		mCallback = callback;
+	}
+
+	/**
+	 * Add a node to start from
+	 *
+	 * @param id
+	 *            null if it isn't known
+	 */
+	public void add(byte[] id, InetSocketAddress address) {
+		if (mSeen.add(address)) {
+			mCandidates.add(new Candidate(id, address));
+		}
+	}
+
+	public void start() {
+		Collections.sort(mCandidates, mByDistance);
+		step();
+	}
+
+	/**
+	 * Query the closest nodes not yet asked, or finish
+	 * if every one of the closest K has answered
+	 */
+	private void step() {
+		if (mFinished) {
+			return;
+		}
+
+		boolean waiting = false;
+		int closest = 0;
+		for (int i = 0; i < mCandidates.size() && closest < RoutingTable.K; i++) {
+			Candidate candidate = mCandidates.get(i);
+			if (candidate.failed) {
+				continue;
+			}
+			closest++;
+
+			if (!candidate.queried && mInFlight < ALPHA) {
+				query(candidate);
+				// A query that can't be sent fails straight away, which may finish us
+				if (mFinished) {
+					return;
+				}
+			}
+			if (!candidate.answered) {
+				waiting = true;
+			}
+		}
+
+		if (!waiting) {
+			finish();
+		}
+	}
+
+	private void query(final Candidate candidate) {
+		candidate.queried = true;
+		mInFlight++;
+
+		HashMap<ByteBuffer, Object> arguments = new HashMap<ByteBuffer, Object>();
+		arguments.put(mGetPeers ? DhtNode.Keys.INFO_HASH : DhtNode.Keys.TARGET, ByteBuffer.wrap(mTarget));
+
+		mDht.query(candidate.address, candidate.id, mGetPeers ? DhtNode.Methods.GET_PEERS : DhtNode.Methods.FIND_NODE, arguments,
+				new DhtNode.QueryCallback() {
+					public void onResponse(Node node, Map<?, ?> response) {
+						mInFlight--;
+						candidate.answered = true;
+						candidate.id = node.getId();
+						if (!mFinished) {
+							handleResponse(candidate, response);
+							step();
+						}
+					}
+
+					public void onFailure() {
+						mInFlight--;
+						candidate.failed = true;
+						step();
+					}
+				});
+	}
+
+	private void handleResponse(Candidate candidate, Map<?, ?> response) {
+		candidate.token = DhtNode.getBytes(response, DhtNode.Keys.TOKEN);
+
+		byte[] nodes = DhtNode.getBytes(response, DhtNode.Keys.NODES);
+		if (nodes != null) {
+			for (Node node : Node.fromCompact(nodes, 0, nodes.length)) {
+				if (!Arrays.equals(node.getId(), mDht.getId())) {
+					add(node.getId(), node.getAddress());
+				}
+			}
+		}
+
+		Object values = response.get(DhtNode.Keys.VALUES);
+		if (mGetPeers && values instanceof List) {
+			List<PeerInfo> found = new ArrayList<PeerInfo>();
+			for (Object value : (List<?>) values) {
+				if (!(value instanceof ByteBuffer) || ((ByteBuffer) value).remaining() != PeerInfo.COMPACT_LENGTH) {
+					continue;
+				}
+
+				ByteBuffer compact = (ByteBuffer) value;
+				if (mPeers.add(compact)) {
+					found.addAll(PeerInfo.fromCompact(compact.array(), compact.arrayOffset() + compact.position(), compact.remaining()));
+				}
+			}
+
+			if (!found.isEmpty() && mCallback != null) {
+				mCallback.onPeers(found);
+			}
+		}
+
+		Collections.sort(mCandidates, mByDistance);
+		if (mCandidates.size() > MAX_CANDIDATES) {
+			mCandidates = new ArrayList<Candidate>(mCandidates.subList(0, MAX_CANDIDATES));
+		}
+	}
+
+	/**
+	 * Announce to the closest nodes that gave us tokens
+	 */
+	private void finish() {
+		if (mFinished) {
+			return;
+		}
+		mFinished = true;
+
+		if (mGetPeers && mAnnouncePort > 0) {
+			int announced = 0;
+			for (Candidate candidate : mCandidates) {
+				if (announced >= RoutingTable.K) {
+					break;
+				}
+				if (!candidate.answered || candidate.token == null) {
+					continue;
+				}
+
+				HashMap<ByteBuffer, Object> arguments = new HashMap<ByteBuffer, Object>();
+				arguments.put(DhtNode.Keys.INFO_HASH, ByteBuffer.wrap(mTarget));
+				arguments.put(DhtNode.Keys.PORT, mAnnouncePort);
+				arguments.put(DhtNode.Keys.TOKEN, ByteBuffer.wrap(candidate.token));
+				mDht.query(candidate.address, candidate.id, DhtNode.Methods.ANNOUNCE_PEER, arguments, null);
+				announced++;
+			}
+		}
+
+		if (mCallback != null) {
+			mCallback.onFinished();
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.dht;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Another DHT node, by its 160 bit id and UDP address
+ */
+public class Node {
+
+	/**
+	 * Bytes per node in the compact format: the id, then
+	 * a 4 byte IPv4 address and a 2 byte port
+	 */
+	public static final int COMPACT_LENGTH = 26;
+
+	public static final int ID_LENGTH = 20;
+
+	private final byte[] mId;
+	private final InetSocketAddress mAddress;
+
+	/**
+	 * When the node last answered us, or queried us
+	 */
+	private long mLastSeen;
+
+	/**
+	 * Queries in a row it hasn't answered
+	 */
+	private int mFailures = 0;
+
+	public Node(byte[] id, InetSocketAddress address) {
+		mId = id;
+		mAddress = address;
+		mLastSeen = System.currentTimeMillis();
+	}
+
+	/**
+	 * Read nodes in the compact format; any trailing partial
+	 * entry, and any with port 0, is ignored
+	 */
+	public static List<Node> fromCompact(byte[] bytes, int offset, int length) {
+		List<Node> nodes = new ArrayList<Node>(length / COMPACT_LENGTH);
+
+		for (int i = offset; i + COMPACT_LENGTH <= offset + length; i += COMPACT_LENGTH) {
+			byte[] id = new byte[ID_LENGTH];
+			System.arraycopy(bytes, i, id, 0, ID_LENGTH);
+
+			byte[] address = new byte[4];
+			System.arraycopy(bytes, i + ID_LENGTH, address, 0, 4);
+			int port = ((bytes[i + 24] & 0xff) << 8) | (bytes[i + 25] & 0xff);
+
+			if (port != 0) {
+				try {
+					nodes.add(new Node(id, new InetSocketAddress(InetAddress.getByAddress(address), port)));
+				} catch (UnknownHostException e) {
+					// Four bytes are always an address
+				}
+			}
+		}
+
+		return nodes;
+	}
+
+	/**
+	 * @return this node in the compact format, or null
+	 *         if it doesn't have an IPv4 address
+	 */
+	public byte[] toCompact() {
+		if (!(mAddress.getAddress() instanceof Inet4Address)) {
+			return null;
+		}
+
+		byte[] compact = new byte[COMPACT_LENGTH];
+		System.arraycopy(mId, 0, compact, 0, ID_LENGTH);
+		System.arraycopy(mAddress.getAddress().getAddress(), 0, compact, ID_LENGTH, 4);
+		compact[24] = (byte) (mAddress.getPort() >> 8);
+		compact[25] = (byte) mAddress.getPort();
+		return compact;
+	}
+
+	public byte[] getId() {
+		return mId;
+	}
+
+	public InetSocketAddress getAddress() {
+		return mAddress;
+	}
+
+	public synchronized long getLastSeen() {
+		return mLastSeen;
+	}
+
+	public synchronized int getFailures() {
+		return mFailures;
+	}
+
+	/**
+	 * The node answered or queried us
+	 */
+	public synchronized void seen() {
+		mLastSeen = System.currentTimeMillis();
+		mFailures = 0;
+	}
+
+	/**
+	 * The node didn't answer a query
+	 */
+	public synchronized void failed() {
+		mFailures++;
+	}
+
+	@Override
+	public String toString() {
+		return mAddress.getAddress().getHostAddress() + ":" + mAddress.getPort();
+	}
+
+}
@@ -0,0 +1,350 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.dht;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import com.torrent.util.StreamUtil;
+
+/**
+ * The DHT nodes we know of, in Kademlia k-buckets: bucket i holds up to K
+ * nodes whose ids share exactly i leading bits with ours, so we know many
+ * nodes near our own id and a few of those far away. Nodes that stop
+ * answering are replaced by ones waiting in the bucket's replacement list.
+ * The table, and our id, are saved to a file so a restart doesn't need to
+ * bootstrap from scratch.
+ */
+public class RoutingTable {
+
+	/**
+	 * Nodes per bucket, and how many closest nodes a lookup finds
+	 */
+	public static final int K = 8;
+
+	/**
+	 * Unanswered queries in a row before a node is bad
+	 */
+	public static final int MAX_FAILURES = 2;
+
+	/**
+	 * Nodes not seen for this long are pinged, and buckets
+	 * that haven't changed are refreshed by a lookup
+	 */
+	public static final long STALE_AGE = 15 * 60 * 1000;
+
+	private static final int MAX_REPLACEMENTS = K;
+
+	private static class Bucket {
+		/**
+		 * Least recently seen first
+		 */
+		public List<Node> nodes = new ArrayList<Node>(K);
+
+		/**
+		 * Nodes to use when one of ours goes bad, most recently seen last
+		 */
+		public List<Node> replacements = new ArrayList<Node>();
+
+		public long lastChanged = System.currentTimeMillis();
+	}
+
+	private final Bucket[] mBuckets = new Bucket[Node.ID_LENGTH * 8];
+
+	private byte[] mId;
+
+	/**
+	 * Where the table is saved, may be null
+	 */
+	private File mFile;
+
+	private Random mRandom = new SecureRandom();
+
+	/**
+	 * Load the table saved in the file, or start an
+	 * empty one with a new random id
+	 */
+	public RoutingTable(File file) {
+		mFile = file;
+		for (int i = 0; i < mBuckets.length; i++) {
+			mBuckets[i] = new Bucket();
+		}
+
+		load();
+		if (mId == null) {
+			mId = new byte[Node.ID_LENGTH];
+			mRandom.nextBytes(mId);
+		}
+	}
+
+	public byte[] getId() {
+		return mId;
+	}
+
+	/**
+	 * Add a node that answered or queried us, or mark one
+	 * we have as seen
+	 */
+	public synchronized void add(Node node) {
+		if (Arrays.equals(node.getId(), mId)) {
+			return;
+		}
+
+		Bucket bucket = getBucket(node.getId());
+		Node existing = find(bucket.nodes, node.getId());
+		if (existing != null) {
+			// Don't let another address take over a node's place
+			if (existing.getAddress().equals(node.getAddress())) {
+				existing.seen();
+				bucket.nodes.remove(existing);
+				bucket.nodes.add(existing);
+				bucket.lastChanged = System.currentTimeMillis();
+			}
+			return;
+		}
+
+		if (bucket.nodes.size() < K) {
+			bucket.nodes.add(node);
+			bucket.lastChanged = System.currentTimeMillis();
+			return;
+		}
+
+		// A full bucket only takes the place of a bad node
+		for (int i = 0; i < bucket.nodes.size(); i++) {
+			if (bucket.nodes.get(i).getFailures() >= MAX_FAILURES) {
+				bucket.nodes.remove(i);
+				bucket.nodes.add(node);
+				bucket.lastChanged = System.currentTimeMillis();
+				return;
+			}
+		}
+
+		Node replacement = find(bucket.replacements, node.getId());
+		if (replacement != null) {
+			bucket.replacements.remove(replacement);
+		}
+		bucket.replacements.add(node);
+		if (bucket.replacements.size() > MAX_REPLACEMENTS) {
+			bucket.replacements.remove(0);
+		}
+	}
+
+	/**
+	 * A node didn't answer; once bad, it's replaced if there's a
+	 * replacement waiting, otherwise kept in case it comes back
+	 */
+	public synchronized void failed(Node node) {
+		Bucket bucket = getBucket(node.getId());
+		Node existing = find(bucket.nodes, node.getId());
+		if (existing == null || !existing.getAddress().equals(node.getAddress())) {
+			return;
+		}
+
+		existing.failed();
+		if (existing.getFailures() >= MAX_FAILURES && !bucket.replacements.isEmpty()) {
+			bucket.nodes.remove(existing);
+			bucket.nodes.add(bucket.replacements.remove(bucket.replacements.size() - 1));
+			bucket.lastChanged = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return up to count good nodes, closest to the target first
+	 */
+	public synchronized List<Node> getClosest(final byte[] target, int count) {
+		List<Node> nodes = new ArrayList<Node>();
+		for (Bucket bucket : mBuckets) {
+			for (Node node : bucket.nodes) {
+				if (node.getFailures() < MAX_FAILURES) {
+					nodes.add(node);
+				}
+			}
+		}
+
+		Collections.sort(nodes, new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return compareDistance(target, a.getId(), b.getId());
+			}
+		});
+		return new ArrayList<Node>(nodes.subList(0, Math.min(count, nodes.size())));
+	}
+
+	/**
+	 * @return nodes that haven't been seen for STALE_AGE, which should be
+	 *         pinged to find out if they're still there
+	 */
+	public synchronized List<Node> getStaleNodes() {
+		long oldest = System.currentTimeMillis() - STALE_AGE;
+		List<Node> stale = new ArrayList<Node>();
+		for (Bucket bucket : mBuckets) {
+			for (Node node : bucket.nodes) {
+				if (node.getLastSeen() < oldest) {
+					stale.add(node);
+				}
+			}
+		}
+		return stale;
+	}
+
+	/**
+	 * @return a random id in each bucket that hasn't changed for
+	 *         STALE_AGE, to look up; buckets closer to us than any node
+	 *         we know are left alone, since they would always be empty
+	 */
+	public synchronized List<byte[]> getRefreshTargets() {
+		long oldest = System.currentTimeMillis() - STALE_AGE;
+		List<byte[]> targets = new ArrayList<byte[]>();
+
+		int deepest = mBuckets.length - 1;
+		while (deepest > 0 && mBuckets[deepest].nodes.isEmpty()) {
+			deepest--;
+		}
+
+		for (int i = 0; i <= deepest; i++) {
+			if (mBuckets[i].lastChanged < oldest) {
+				mBuckets[i].lastChanged = System.currentTimeMillis();
+				targets.add(randomIdInBucket(i));
+			}
+		}
+		return targets;
+	}
+
+	public synchronized int size() {
+		int size = 0;
+		for (Bucket bucket : mBuckets) {
+			size += bucket.nodes.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return our id followed by every node, in the compact format
+	 */
+	private synchronized byte[] toCompact() {
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		contents.write(mId, 0, mId.length);
+		for (Bucket bucket : mBuckets) {
+			for (Node node : bucket.nodes) {
+				byte[] compact = node.toCompact();
+				if (compact != null && node.getFailures() < MAX_FAILURES) {
+					contents.write(compact, 0, compact.length);
+				}
+			}
+		}
+		return contents.toByteArray();
+	}
+
+	/**
+	 * Write our id and every node to the file, in the compact format;
+	 * the table is only locked while it's copied, not during the write
+	 */
+	public void save() {
+		if (mFile == null) {
+			return;
+		}
+
+		byte[] contents = toCompact();
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(mFile);
+			out.write(contents);
+		} catch (IOException e) {
+			System.out.println("Could not save DHT nodes: " + e);
+		} finally {
+			try {
+				if (out != null) {
+					out.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void load() {
+		if (mFile == null || !mFile.exists()) {
+			return;
+		}
+
+		byte[] bytes = StreamUtil.fileAsBytes(mFile);
+		if (bytes == null || bytes.length < Node.ID_LENGTH) {
+			System.out.println("Could not load DHT nodes from " + mFile);
+			return;
+		}
+
+		mId = Arrays.copyOf(bytes, Node.ID_LENGTH);
+		for (Node node : Node.fromCompact(bytes, Node.ID_LENGTH, bytes.length - Node.ID_LENGTH)) {
+			add(node);
+		}
+	}
+
+	private Bucket getBucket(byte[] id) {
+		return mBuckets[Math.min(getSharedBits(mId, id), mBuckets.length - 1)];
+	}
+
+	private static Node find(List<Node> nodes, byte[] id) {
+		for (Node node : nodes) {
+			if (Arrays.equals(node.getId(), id)) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return an id sharing exactly the given number of leading bits with ours
+	 */
+	private byte[] randomIdInBucket(int sharedBits) {
+		byte[] id = new byte[Node.ID_LENGTH];
+		mRandom.nextBytes(id);
+
+		for (int bit = 0; bit <= sharedBits; bit++) {
+			int mask = 0x80 >>> (bit % 8);
+			int ours = mId[bit / 8] & mask;
+			// Copy our bits, then differ at the one after them
+			int value = (bit < sharedBits) ? (ours) : (ours ^ mask);
+			id[bit / 8] = (byte) ((id[bit / 8] & ~mask) | value);
+		}
+		return id;
+	}
+
+	/**
+	 * @return how many leading bits two ids have in common
+	 */
+	public static int getSharedBits(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length; i++) {
+			int diff = (a[i] ^ b[i]) & 0xff;
+			if (diff != 0) {
+				return i * 8 + Integer.numberOfLeadingZeros(diff) - 24;
+			}
+		}
+		return a.length * 8;
+	}
+
+	/**
+	 * Compare which of two ids is closer to the target, by XOR distance
+	 */
+	public static int compareDistance(byte[] target, byte[] a, byte[] b) {
+		for (int i = 0; i < target.length; i++) {
+			int distanceA = (a[i] ^ target[i]) & 0xff;
+			int distanceB = (b[i] ^ target[i]) & 0xff;
+			if (distanceA != distanceB) {
+				return distanceA - distanceB;
+			}
+		}
+		return 0;
+	}
+
+}
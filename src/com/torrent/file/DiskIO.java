@@ -0,0 +1,520 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.file;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs all disk reads and writes on a dedicated thread
+ * so that peer socket threads never block on the disk.
+ * Jobs wait in a bounded queue; when that queue fills up,
+ * peers should stop reading from their sockets (see awaitCapacity())
+ * rather than buffering blocks in memory.
+ *
+ * Jobs that arrive within a short window are batched and issued
+ * in file offset order (C-SCAN: sweep upwards from where the last
+ * job ended, then wrap around to the lowest offset), with adjacent
+ * reads and adjacent writes merged into single operations, so that
+ * scattered requests become mostly sequential disk access.
+ */
+public class DiskIO {
+
+	/**
+	 * Default number of jobs that may be waiting for the disk
+	 */
+	private static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	/**
+	 * Default time to wait for more jobs to batch
+	 * after the first job of a batch arrives
+	 */
+	private static final long DEFAULT_BATCH_WINDOW = 5;
+
+	/**
+	 * Most jobs that are ordered together in one batch
+	 */
+	private static final int MAX_BATCH_JOBS = 64;
+
+	/**
+	 * Largest single read or write made by merging jobs
+	 */
+	private static final int MAX_MERGE_BYTES = 1 << 20;
+
+	/**
+	 * Notified on the disk thread once a job has finished
+	 */
+	public interface Callback {
+		public void onComplete(Job job);
+	}
+
+	/**
+	 * A unit of disk work covering one range of the torrent
+	 */
+	public static class Job {
+		public enum Type {
+			READ,
+			WRITE,
+			OTHER };
+
+		/**
+		 * READ and WRITE jobs are reordered and merged;
+		 * OTHER jobs run alone, after everything queued before them
+		 */
+		public final Type type;
+
+		/**
+		 * Byte offset in the torrent that this job touches
+		 */
+		public final long offset;
+
+		/**
+		 * Number of bytes that this job touches
+		 */
+		public final int length;
+
+		/**
+		 * The bytes to be written, or the bytes that were read
+		 */
+		public byte[] data;
+
+		/**
+		 * Set if the job failed
+		 */
+		public Exception error;
+
+		private Callback mCallback;
+		private long mQueuedAt;
+		private long mFinishedAt;
+
+		public Job(Type type, long offset, int length) {
+			this.type = type;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * A job that reads length bytes at offset into data
+		 */
+		public static Job read(long offset, int length) {
+			return new Job(Type.READ, offset, length);
+		}
+
+		/**
+		 * A job that writes bytes at offset
+		 */
+		public static Job write(long offset, byte[] bytes) {
+			Job job = new Job(Type.WRITE, offset, bytes.length);
+			job.data = bytes;
+			return job;
+		}
+
+		/**
+		 * Do the actual disk work; called on the disk thread.
+		 * OTHER jobs override this to do their own work.
+		 */
+		protected void perform(Storage storage) throws Exception {
+			if (type == Type.READ) {
+				data = new byte[length];
+				storage.read(offset, data, 0, length);
+			} else if (type == Type.WRITE) {
+				storage.write(offset, data, 0, length);
+			}
+		}
+
+		/**
+		 * @return how long this job spent queued and running, in milliseconds
+		 */
+		public long getLatency() {
+			return (mFinishedAt - mQueuedAt) / 1000000;
+		}
+	}
+
+	private static final Comparator<Job> OFFSET_ORDER = new Comparator<Job>() {
+		public int compare(Job a, Job b) {
+			return (a.offset < b.offset) ? (-1) : ((a.offset == b.offset) ? (0) : (1));
+		}
+	};
+
+	/**
+	 * Where jobs read from and write to
+	 */
+	private volatile Storage mStorage;
+
+	/**
+	 * Jobs waiting to be run, in arrival order;
+	 * guarded by synchronizing on mPending
+	 */
+	private LinkedList<Job> mPending = new LinkedList<Job>();
+
+	private int mCapacity;
+
+	private long mBatchWindow = DEFAULT_BATCH_WINDOW;
+
+	/**
+	 * The offset just past the last job issued,
+	 * which is where the next sweep starts from
+	 */
+	private long mHeadPosition = 0;
+
+	/**
+	 * The thread that runs jobs from mPending
+	 */
+	private Thread mWorkerThread;
+
+	private volatile boolean mRunning = false;
+
+	/**
+	 * Statistics
+	 */
+	private AtomicLong mCompletedJobs = new AtomicLong();
+	private AtomicLong mFailedJobs = new AtomicLong();
+	private AtomicLong mCompletedBytes = new AtomicLong();
+	private AtomicLong mTotalLatency = new AtomicLong();
+	private AtomicLong mDiskOperations = new AtomicLong();
+	private volatile int mMaxQueueDepth = 0;
+	private long mStartTime;
+
+	public DiskIO(Storage storage) {
+		this(storage, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public DiskIO(Storage storage, int capacity) {
+		mStorage = storage;
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Switch to different storage; OTHER jobs use
+	 * this when the files behind the storage move
+	 */
+	public void setStorage(Storage storage) {
+		mStorage = storage;
+	}
+
+	/**
+	 * Set how long to wait for more jobs before ordering
+	 * and issuing a batch; 0 issues whatever is queued at once
+	 */
+	public void setBatchWindow(long millis) {
+		mBatchWindow = millis;
+	}
+
+	public void start() {
+		mRunning = true;
+		mStartTime = System.currentTimeMillis();
+		(mWorkerThread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					List<Job> batch = takeBatch();
+					if (batch == null) {
+						break;
+					}
+					runBatch(batch);
+				}
+			}
+		}, "DiskIO")).start();
+	}
+
+	/**
+	 * Stop the disk thread once all queued jobs have run
+	 */
+	public void stop() {
+		mRunning = false;
+		synchronized (mPending) {
+			mPending.notifyAll();
+		}
+
+		if (mWorkerThread != null) {
+			try {
+				mWorkerThread.join(10000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Queue a job, blocking if the queue is full
+	 *
+	 * @param callback
+	 *            notified when the job completes, may be null
+	 */
+	public void submit(Job job, Callback callback) {
+		job.mCallback = callback;
+		job.mQueuedAt = System.nanoTime();
+
+		synchronized (mPending) {
+			while (mRunning && mPending.size() >= mCapacity) {
+				try {
+					mPending.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+
+			if (mRunning) {
+				mPending.add(job);
+				mMaxQueueDepth = Math.max(mMaxQueueDepth, mPending.size());
+				mPending.notifyAll();
+				return;
+			}
+		}
+
+		// Nothing to hand the job to, so run it here
+		List<Job> single = new ArrayList<Job>(1);
+		single.add(job);
+		runBatch(single);
+	}
+
+	/**
+	 * Queue a job and wait for it to finish
+	 */
+	public void submitAndWait(Job job) {
+		final CountDownLatch latch = new CountDownLatch(1);
+		submit(job, new Callback() {
+			public void onComplete(Job job) {
+				latch.countDown();
+			}
+		});
+
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * @return true if the queue is full enough that peers
+	 *         should stop reading from their sockets
+	 */
+	public boolean isSaturated() {
+		synchronized (mPending) {
+			return mPending.size() >= mCapacity * 3 / 4;
+		}
+	}
+
+	/**
+	 * Block the calling (peer) thread while the queue is saturated,
+	 * so that data stays in the socket instead of in memory
+	 */
+	public void awaitCapacity() {
+		synchronized (mPending) {
+			while (mRunning && mPending.size() >= mCapacity * 3 / 4) {
+				try {
+					mPending.wait(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for jobs, give later jobs a moment to arrive, then take
+	 * everything up to the first OTHER job, ordered for the disk.
+	 * An OTHER job at the head of the queue is taken by itself.
+	 *
+	 * @return null once stopped and empty
+	 */
+	private List<Job> takeBatch() {
+		List<Job> batch = new ArrayList<Job>();
+
+		synchronized (mPending) {
+			while (mPending.isEmpty()) {
+				if (!mRunning) {
+					return null;
+				}
+				try {
+					mPending.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+
+			if (mPending.getFirst().type == Job.Type.OTHER) {
+				batch.add(mPending.removeFirst());
+				mPending.notifyAll();
+				return batch;
+			}
+
+			// Let more jobs arrive so they can be ordered together
+			long deadline = System.currentTimeMillis() + mBatchWindow;
+			long remaining;
+			while (mRunning && mPending.size() < MAX_BATCH_JOBS && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					mPending.wait(remaining);
+				} catch (InterruptedException e) {
+				}
+			}
+
+			while (!mPending.isEmpty() && batch.size() < MAX_BATCH_JOBS && mPending.getFirst().type != Job.Type.OTHER) {
+				batch.add(mPending.removeFirst());
+			}
+
+			mPending.notifyAll();
+		}
+
+		// C-SCAN: ascending from the head position, then wrap around
+		Collections.sort(batch, OFFSET_ORDER);
+		int first = 0;
+		while (first < batch.size() && batch.get(first).offset < mHeadPosition) {
+			first++;
+		}
+		Collections.rotate(batch, -first);
+
+		return batch;
+	}
+
+	/**
+	 * Run jobs in the order given, merging
+	 * runs of adjacent jobs of the same type
+	 */
+	private void runBatch(List<Job> batch) {
+		int i = 0;
+		while (i < batch.size()) {
+			Job job = batch.get(i);
+
+			// Find how many of the following jobs continue this one
+			int end = i + 1;
+			long mergedLength = job.length;
+			if (job.type != Job.Type.OTHER) {
+				while (end < batch.size()) {
+					Job next = batch.get(end);
+					if (next.type != job.type || next.offset != job.offset + mergedLength || mergedLength + next.length > MAX_MERGE_BYTES) {
+						break;
+					}
+					mergedLength += next.length;
+					end++;
+				}
+			}
+
+			if (end - i == 1) {
+				try {
+					job.perform(mStorage);
+				} catch (Exception e) {
+					job.error = e;
+				}
+			} else {
+				runMerged(batch.subList(i, end), (int) mergedLength);
+			}
+
+			mDiskOperations.incrementAndGet();
+			mHeadPosition = job.offset + mergedLength;
+
+			for (int j = i; j < end; j++) {
+				finishJob(batch.get(j));
+			}
+
+			i = end;
+		}
+	}
+
+	/**
+	 * Do a run of adjacent reads or writes as one disk operation
+	 */
+	private void runMerged(List<Job> jobs, int length) {
+		long offset = jobs.get(0).offset;
+		byte[] bytes = new byte[length];
+
+		try {
+			if (jobs.get(0).type == Job.Type.READ) {
+				mStorage.read(offset, bytes, 0, length);
+				for (Job job : jobs) {
+					job.data = new byte[job.length];
+					System.arraycopy(bytes, (int) (job.offset - offset), job.data, 0, job.length);
+				}
+			} else {
+				for (Job job : jobs) {
+					System.arraycopy(job.data, 0, bytes, (int) (job.offset - offset), job.length);
+				}
+				mStorage.write(offset, bytes, 0, length);
+			}
+		} catch (Exception e) {
+			for (Job job : jobs) {
+				job.error = e;
+			}
+		}
+	}
+
+	private void finishJob(Job job) {
+		if (job.error == null) {
+			mCompletedBytes.addAndGet(job.length);
+		} else {
+			mFailedJobs.incrementAndGet();
+		}
+
+		job.mFinishedAt = System.nanoTime();
+		mCompletedJobs.incrementAndGet();
+		mTotalLatency.addAndGet(job.mFinishedAt - job.mQueuedAt);
+
+		if (job.mCallback != null) {
+			try {
+				job.mCallback.onComplete(job);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of jobs currently waiting
+	 */
+	public int getQueueDepth() {
+		synchronized (mPending) {
+			return mPending.size();
+		}
+	}
+
+	/**
+	 * @return the largest number of jobs that have been waiting at once
+	 */
+	public int getMaxQueueDepth() {
+		return mMaxQueueDepth;
+	}
+
+	public long getCompletedJobs() {
+		return mCompletedJobs.get();
+	}
+
+	public long getFailedJobs() {
+		return mFailedJobs.get();
+	}
+
+	/**
+	 * @return how many reads and writes actually hit the disk,
+	 *         which is fewer than the completed jobs when jobs are merged
+	 */
+	public long getDiskOperations() {
+		return mDiskOperations.get();
+	}
+
+	/**
+	 * @return the average time from submission to completion, in milliseconds
+	 */
+	public double getAverageLatency() {
+		long jobs = mCompletedJobs.get();
+		return (jobs == 0) ? (0) : (mTotalLatency.get() / (double) jobs / 1000000d);
+	}
+
+	/**
+	 * @return bytes read or written per second since start()
+	 */
+	public double getThroughput() {
+		long elapsed = System.currentTimeMillis() - mStartTime;
+		return (elapsed <= 0) ? (0) : (mCompletedBytes.get() * 1000d / elapsed);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("DiskIO: queue %d/%d (max %d), %d jobs in %d disk operations (%d failed), %.2f ms avg latency, %.1f KB/s",
+				getQueueDepth(), mCapacity, mMaxQueueDepth, getCompletedJobs(), getDiskOperations(), getFailedJobs(), getAverageLatency(), getThroughput() / 1024);
+	}
+
+}
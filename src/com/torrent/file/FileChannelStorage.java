@@ -0,0 +1,65 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.file;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes with positional FileChannel calls,
+ * which need no seek and so no shared file pointer
+ */
+public class FileChannelStorage extends FileSetStorage {
+
+	private RandomAccessFile[] mHandles;
+	private FileChannel[] mChannels;
+
+	public FileChannelStorage(File[] files, long[] lengths) throws IOException {
+		super(files, lengths);
+
+		mHandles = new RandomAccessFile[files.length];
+		mChannels = new FileChannel[files.length];
+		for (int i = 0; i < files.length; i++) {
+			mHandles[i] = new RandomAccessFile(files[i], "rw");
+			mChannels[i] = mHandles[i].getChannel();
+		}
+	}
+
+	protected void readFile(int file, long position, byte[] bytes, int start, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, start, length);
+		while (buffer.hasRemaining()) {
+			int read = mChannels[file].read(buffer, position + buffer.position() - start);
+			if (read < 0) {
+				throw new EOFException("Read past the end of " + mFiles[file]);
+			}
+		}
+	}
+
+	protected void writeFile(int file, long position, byte[] bytes, int start, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, start, length);
+		while (buffer.hasRemaining()) {
+			mChannels[file].write(buffer, position + buffer.position() - start);
+		}
+	}
+
+	public void flush() throws IOException {
+		for (FileChannel channel : mChannels) {
+			channel.force(false);
+		}
+	}
+
+	public void close() throws IOException {
+		for (RandomAccessFile handle : mHandles) {
+			handle.close();
+		}
+	}
+
+}
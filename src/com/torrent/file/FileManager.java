@@ -1,10 +1,11 @@
 package com.torrent.file;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import com.torrent.tracker.TrackerUtil;
 
@@ -65,6 +66,26 @@ public class FileManager {
 		mPieceLength = length;
 	}
 
+	/**
+	 * Largest block a peer may request; other clients ask for 16 KiB,
+	 * and anything bigger would let one request tie up the disk and
+	 * the upload for a whole piece
+	 */
+	public static final int MAX_UPLOAD_BLOCK = 16384;
+
+	/**
+	 * Which kind of Storage to keep the torrent's bytes in,
+	 * one of StorageUtil.Types
+	 */
+	private static String mStorageType = StorageUtil.DEFAULT_TYPE;
+
+	/**
+	 * Sets which kind of Storage is used, one of StorageUtil.Types
+	 */
+	public static void setStorageType(String type){
+		mStorageType = type;
+	}
+
 	/**
 	 * In cases where torrent is one file: this is the file
 	 * In cases where torrent is multiple files: this is the directory
@@ -88,8 +109,34 @@ public class FileManager {
 	 */
 	private int mUploadedBytes = 0;
 
+	/**
+	 * The total number of bytes across all files
+	 */
+	private long mTotalLength = 0;
+
+	/**
+	 * Runs all reads and writes on its own thread
+	 */
+	private DiskIO mDiskIO;
+
+	/**
+	 * Where the bytes of the files in mDownloadFiles are kept
+	 */
+	private Storage mStorage;
+
+	/**
+	 * Where a single file is written while it is incomplete
+	 */
+	private File mPartialFile;
+
+	/**
+	 * Whether all pieces have been written to disk
+	 */
+	private boolean mComplete = false;
+
 	public FileManager (String path, List<DownloadFile> files, int numPieces) throws Exception {
 		mRoot = new File(path);
+		mPartialFile = new File(path + ".part");
 
 		// Add the correct number of pieces to mPieces
 		mPieces = new ArrayList<Piece>(numPieces);
@@ -98,6 +145,9 @@ public class FileManager {
 		}
 
 		mDownloadFiles = files;
+		for(DownloadFile file : files){
+			mTotalLength += file.getLength();
+		}
 
 		if(mDownloadFiles.isEmpty()){
 			throw new Exception("No download files specified");
@@ -105,15 +155,18 @@ public class FileManager {
 			if(mRoot.exists()){
 				// Check to see if this file does not need to be redownloaded
 				if(mRoot.length() == files.get(0).getLength()){
-					// File exists and is correct length
-					setupPiecesFromFile(mRoot);
+					// File exists and is correct length, so every
+					// piece can be served straight from disk
+					for(Piece piece : mPieces){
+						piece.downloadStatus = Piece.Status.DOWNLOADED;
+					}
+					mComplete = true;
 
 					System.out.println("\n _____________________________ ");
 					System.out.println("|------------NOTE-------------|");
 					System.out.println("|-----File already exists-----|");
 					System.out.println("|---------Now seeding---------|");
 					System.out.println("|-----------------------------|");
-					return;
 				} else {
 					System.out.println("\n _____________________________ ");
 					System.out.println("|------------NOTE-------------|");
@@ -126,13 +179,28 @@ public class FileManager {
 				}
 			}
 			
-			// Only one file, so mRoot will be that file
-			mRoot.createNewFile();
+			// Only one file, so it is written to mPartialFile
+			// until complete, and then moved to mRoot
+			if(!mComplete){
+				mPartialFile.delete();
+				mPartialFile.createNewFile();
+			}
 		} else {
 			// Multiple files, so mRoot will be the directory
 			// containing the files
 			mRoot.mkdir();
+			for(DownloadFile downloadFile : mDownloadFiles) {
+				File outFile = new File(mRoot, downloadFile.getPath());
+
+				// Make sure all the parent directories exist
+				outFile.getParentFile().mkdirs();
+			}
 		}
+
+		mStorage = createStorage();
+
+		mDiskIO = new DiskIO(mStorage);
+		mDiskIO.start();
 	}
 
 	/**
@@ -140,13 +208,22 @@ public class FileManager {
 	 * with a bias towards rarer pieces
 	 */
 	public int getNeededPiece(){
+		return getNeededPiece(Collections.<Integer>emptySet());
+	}
+
+	/**
+	 * Get a piece that needs to be downloaded, 
+	 * with a bias towards rarer pieces
+	 * @param excluded pieces that should not be chosen
+	 */
+	public int getNeededPiece(Set<Integer> excluded){
 		List<Piece> neededPieces = new ArrayList<Piece>();
 		
 		// Lower priority == more rare
 		int minPriority = Integer.MAX_VALUE;
 
 		for(int i = 0; i < mPieces.size(); i++){
-			if(mPieces.get(i).downloadStatus != Piece.Status.DOWNLOADED){
+			if(mPieces.get(i).downloadStatus != Piece.Status.DOWNLOADED && !excluded.contains(i)){
 				neededPieces.add(mPieces.get(i));
 				minPriority = Math.min(minPriority, mPieces.get(i).getPriority());
 			}
@@ -187,41 +264,58 @@ public class FileManager {
 	}
 
 	/**
-	 * Set a piece of this file
+	 * Set a piece of this file and queue it to be written to disk
 	 */
-	public void setPieceDownloaded(int index, byte[] bytes){
-		Piece piece = mPieces.get(index);
+	public synchronized void setPieceDownloaded(int index, byte[] bytes){
+		final Piece piece = mPieces.get(index);
 		
 		if(piece.downloadStatus == Piece.Status.DOWNLOADED){
 			return;
 		}
 		
+		// Keep the bytes around until they're on disk,
+		// so that uploads can be served in the meantime
 		piece.bytes = bytes;
 		piece.downloadStatus = Piece.Status.DOWNLOADED;
+
+		mDiskIO.submit(DiskIO.Job.write(index * mPieceLength, bytes), new DiskIO.Callback() {
+			public void onComplete(DiskIO.Job job) {
+				if(job.error != null){
+					System.out.println("Could not write piece " + piece.index + ": " + job.error);
+				}
+				piece.bytes = null;
+			}
+		});
 		
 		printProgress();
 
 		if(arePiecesDownloaded()){
-			try{
-				System.out.println("\n _____________________________ ");
-				System.out.println("|------------NOTE-------------|");
-				System.out.println("|----Transfer has completed---|");
-				System.out.println("|----File is being written----|");
-				System.out.println("|-----------------------------|");
-				writeToDisk();
-				System.out.println("|-----Saved successfully------|");
-				System.out.println("|-----------------------------|");
-			} catch (Exception e){
-				System.out.println("|-----COULD NOT SAVE FILE-----|");
-				System.out.println("|-----------------------------|");
-				//e.printStackTrace();
-			}
-
-			System.out.println("|-Notifying tracker completed-|");
-			System.out.println("|-----------------------------|");
-			TrackerUtil.sendEvent(TrackerUtil.Events.COMPLETED);
-			System.out.println("|------Tracker notified-------|");
+			System.out.println("\n _____________________________ ");
+			System.out.println("|------------NOTE-------------|");
+			System.out.println("|----Transfer has completed---|");
+			System.out.println("|----File is being written----|");
 			System.out.println("|-----------------------------|");
+
+			mDiskIO.submit(new CompleteJob(), new DiskIO.Callback() {
+				public void onComplete(DiskIO.Job job) {
+					if(job.error == null && StorageUtil.Types.MEMORY.equals(mStorageType)){
+						// Memory storage never touches the disk
+						System.out.println("|--Kept in memory, not saved--|");
+						System.out.println("|-----------------------------|");
+					} else if(job.error == null){
+						System.out.println("|-----Saved successfully------|");
+						System.out.println("|-----------------------------|");
+					} else {
+						System.out.println("|-----COULD NOT SAVE FILE-----|");
+						System.out.println("|-----------------------------|");
+					}
+
+					// Queued for a tracker thread, so the disk thread doesn't wait on it
+					System.out.println("|-Notifying tracker completed-|");
+					System.out.println("|-----------------------------|");
+					TrackerUtil.sendEvent(TrackerUtil.Events.COMPLETED);
+				}
+			});
 		}
 	}
 
@@ -272,7 +366,7 @@ public class FileManager {
 		
 		for(Piece p : mPieces){
 			if(p.downloadStatus == Piece.Status.DOWNLOADED){
-				bytes += p.bytes.length;
+				bytes += getPieceSize(p.index);
 			}
 		}
 		
@@ -287,19 +381,61 @@ public class FileManager {
 	}
 	
 	/**
-	 * Get a piece's bytes if it has been downloaded;
-	 * Increment the number of bytes uploaded
-	 * @return the bytes of the piece, null if not already downloaded
+	 * Read a block of a piece for upload on the disk thread if
+	 * the piece has been downloaded; increment the number of bytes uploaded
+	 * @param callback given the job, whose data holds the block once read
+	 * @return false if the piece is not downloaded or the block is
+	 *         out of range or too big, so nothing was queued
 	 */
-	public byte[] getPieceForUpload(int index) {
+	public boolean readBlockForUpload(int index, int offset, int length, DiskIO.Callback callback) {
+		// Summed as a long, since a large offset would wrap an int past the check
+		if(index < 0 || index >= mPieces.size() || offset < 0 || length <= 0 || length > MAX_UPLOAD_BLOCK
+				|| (long) offset + length > getPieceSize(index)){
+			return false;
+		}
+
 		Piece p = mPieces.get(index);
 		
 		if(p.downloadStatus == Piece.Status.DOWNLOADED){
-			mUploadedBytes += p.bytes.length;
-			return p.bytes;
+			mUploadedBytes += length;
+
+			DiskIO.Job job = DiskIO.Job.read(p.index * mPieceLength + offset, length);
+
+			// Serve the block from memory if the piece
+			// has not been written to disk yet
+			byte[] cached = p.bytes;
+			if(cached != null){
+				job.data = new byte[length];
+				System.arraycopy(cached, offset, job.data, 0, length);
+				callback.onComplete(job);
+			} else {
+				mDiskIO.submit(job, callback);
+			}
+			return true;
 		}
 		
-		return null;
+		return false;
+	}
+
+	/**
+	 * @return the disk I/O subsystem, so peers can check
+	 *  whether it is saturated before reading more data
+	 */
+	public DiskIO getDiskIO() {
+		return mDiskIO;
+	}
+
+	/**
+	 * Finish any queued disk work and close the files
+	 */
+	public void close() {
+		mDiskIO.stop();
+
+		try {
+			mStorage.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
@@ -307,10 +443,11 @@ public class FileManager {
 	 * on a bitfield received from a peer
 	 */
 	public void addBitfield(byte[] data){
-		for(int i = 0; i < mPieces.size(); i++) {
+		for(int i = 0; i < mPieces.size() && i / 8 < data.length; i++) {
 			int currentByte = i / 8;
-			int currentBit = i % 8;
+			int currentBit = 7 - i % 8;
 
+			// The first piece is the high bit of the first byte
 			int available = (data[currentByte] >> currentBit) & 1;
 
 			mPieces.get(i).availability += available;
@@ -318,118 +455,67 @@ public class FileManager {
 	}
 	
 	/**
-	 * Setup the pieces from the already downloaded file
-	 * @param f the file that is completely downloaded
+	 * @return the length of the piece, taking into account
+	 * that the final piece may be shorter
 	 */
-	private void setupPiecesFromFile(File file){
-		FileInputStream fstream = null;
-		
-		try {
-			fstream = new FileInputStream(file);
-
-			// Read the file's bytes into the pieces
-			for(int i = 0; i < mPieces.size() - 1; i++) {
-				mPieces.get(i).bytes = new byte[(int) mPieceLength];	
-				fstream.read(mPieces.get(i).bytes);
-				mPieces.get(i).downloadStatus = Piece.Status.DOWNLOADED;
-			}
+	public int getPieceSize(int index){
+		if(index == mPieces.size() - 1 && mTotalLength % mPieceLength != 0){
+			return (int) (mTotalLength % mPieceLength);
+		}
 
-			// Handle final piece separately, because it may have a different length
-			int finalPieceBytes = (int) (mDownloadFiles.get(0).getLength() % mPieceLength);
-			fstream.read( (mPieces.get(mPieces.size() - 1).bytes = new byte[finalPieceBytes]) );
-			mPieces.get(mPieces.size() - 1).downloadStatus = Piece.Status.DOWNLOADED;
+		return (int) mPieceLength;
+	}
 
-		} catch (Exception e){
+	/**
+	 * Create the configured Storage over the torrent's files
+	 */
+	private Storage createStorage() throws IOException {
+		File[] files = new File[mDownloadFiles.size()];
+		long[] lengths = new long[mDownloadFiles.size()];
 
-		} finally {
-			try {
-				if(fstream != null){
-					fstream.close();
-				}
-			} catch (Exception e) { }
+		for(int i = 0; i < mDownloadFiles.size(); i++){
+			files[i] = getFile(i);
+			lengths[i] = mDownloadFiles.get(i).getLength();
 		}
+
+		return StorageUtil.create(mStorageType, files, lengths);
 	}
 
 	/**
-	 * Write the pieces to the file system
-	 * in the appropriate file(s)
+	 * @return where the file at this index is stored; while
+	 * a single file torrent is incomplete it is kept in a ".part" file
 	 */
-	private void writeToDisk() throws Exception {
-		if(!arePiecesDownloaded()){
-			throw new Exception("Not all pieces are downloaded");
-		}
-
+	private File getFile(int index){
 		if(mDownloadFiles.size() == 1){
-			// One file, so write everything to mRoot
-			FileOutputStream out = new FileOutputStream(mRoot);
-			for(int i = 0; i < mPieces.size(); i++){
-				out.write(mPieces.get(i).bytes);
-			}
-
-			out.flush();
-			out.close();
-		} else {
-			// Multiple files, so write proper amount to each file
-			int offset = 0;
-
-			for(DownloadFile downloadFile : mDownloadFiles) {
-				File outFile = new File(mRoot, downloadFile.getPath());
-
-				// Make sure all the parent directories exist
-				outFile.getParentFile().mkdirs();
-
-				// Create the file, overwriting any existing file
-				if(!outFile.createNewFile()){
-					outFile.delete();
-					outFile.createNewFile();
-				}
-
-				// Write the file
-				FileOutputStream out = new FileOutputStream(outFile);
-				out.write(getBytesFromPieces(offset, downloadFile.getLength()));
-				out.flush();
-				out.close();
-
-				// We copied downloadFile.getLength() bytes,
-				// so offset by that much more for the next file
-				offset += downloadFile.getLength();
-			}
+			return mComplete ? mRoot : mPartialFile;
 		}
+
+		return new File(mRoot, mDownloadFiles.get(index).getPath());
 	}
 
 	/**
-	 * Allows access to byte[] in mPieces as
-	 * if they are a single continuous array of bytes
-	 * @param offset which byte to start at
-	 * @param length number of bytes to request
+	 * Flushes everything to disk once all pieces are written
+	 * and moves a single file out of its ".part" file
 	 */
-	private byte[] getBytesFromPieces(int offset, int length){
-		byte[] bytes = new byte[length];
-
-		// Jump to the correct starting piece
-		int currentPiece = offset / (int) mPieceLength;
-
-		// Jump to the correct position in the starting piece
-		int pieceOffset = offset - (currentPiece * (int) mPieceLength);
+	private class CompleteJob extends DiskIO.Job {
+		public CompleteJob(){
+			super(DiskIO.Job.Type.OTHER, 0, 0);
+		}
 
-		// 'length' is now used as a bytes remaining counter
-		while(length > 0 && currentPiece < mPieces.size()){
-			int copyLength = Math.min(length, (int) mPieceLength - pieceOffset);
-			System.arraycopy(mPieces.get(currentPiece), pieceOffset, bytes, bytes.length - length, copyLength);
-			
-			// We copied copyLength bytes
-			length -= copyLength;
+		protected void perform(Storage storage) throws Exception {
+			storage.flush();
 
-			// Move to the next piece (if needed)
-			currentPiece++;
+			if(mDownloadFiles.size() == 1 && !StorageUtil.Types.MEMORY.equals(mStorageType)){
+				storage.close();
+				if(!mPartialFile.renameTo(mRoot)){
+					throw new IOException("Could not rename " + mPartialFile);
+				}
+				mComplete = true;
 
-			// pieceOffset is only used for the starting piece
-			// when it may be needed to start not at the 
-			// 0 index of a piece
-			pieceOffset = 0;
+				mStorage = createStorage();
+				mDiskIO.setStorage(mStorage);
+			}
 		}
-
-		return bytes;
 	}
 
 }
@@ -0,0 +1,86 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.file;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Base for storage backed by the torrent's files on disk;
+ * splits reads and writes at torrent offsets into reads and
+ * writes at positions within each file
+ */
+public abstract class FileSetStorage implements Storage {
+
+	/**
+	 * The files of the torrent, in order
+	 */
+	protected final File[] mFiles;
+
+	/**
+	 * The length of each file in mFiles
+	 */
+	protected final long[] mLengths;
+
+	public FileSetStorage(File[] files, long[] lengths) {
+		mFiles = files;
+		mLengths = lengths;
+	}
+
+	/**
+	 * Read from one file at a position within that file
+	 */
+	protected abstract void readFile(int file, long position, byte[] bytes, int start, int length) throws IOException;
+
+	/**
+	 * Write to one file at a position within that file
+	 */
+	protected abstract void writeFile(int file, long position, byte[] bytes, int start, int length) throws IOException;
+
+	public void read(long offset, byte[] bytes, int start, int length) throws IOException {
+		int done = 0;
+		long fileStart = 0;
+
+		for (int i = 0; i < mFiles.length && done < length; i++) {
+			long fileEnd = fileStart + mLengths[i];
+
+			if (offset + done < fileEnd) {
+				int copyLength = (int) Math.min(length - done, fileEnd - (offset + done));
+				readFile(i, offset + done - fileStart, bytes, start + done, copyLength);
+				done += copyLength;
+			}
+
+			fileStart = fileEnd;
+		}
+
+		if (done < length) {
+			throw new IOException("Read past the end of the torrent at " + (offset + done));
+		}
+	}
+
+	public void write(long offset, byte[] bytes, int start, int length) throws IOException {
+		int done = 0;
+		long fileStart = 0;
+
+		for (int i = 0; i < mFiles.length && done < length; i++) {
+			long fileEnd = fileStart + mLengths[i];
+
+			if (offset + done < fileEnd) {
+				int copyLength = (int) Math.min(length - done, fileEnd - (offset + done));
+				writeFile(i, offset + done - fileStart, bytes, start + done, copyLength);
+				done += copyLength;
+			}
+
+			fileStart = fileEnd;
+		}
+
+		if (done < length) {
+			throw new IOException("Write past the end of the torrent at " + (offset + done));
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps each file into memory and copies to and from the mapping,
+ * leaving the operating system to page data in and out. A mapping
+ * can't be larger than 2 GB, so each file is mapped in chunks.
+ */
+public class MappedStorage extends FileSetStorage {
+
+	/**
+	 * Bytes per mapping; a power of two, so a position splits
+	 * into a chunk and an offset into it with a shift and a mask
+	 */
+	private static final int CHUNK_SHIFT = 30;
+	private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+
+	private RandomAccessFile[] mHandles;
+
+	/**
+	 * Each file's mappings, in order
+	 */
+	private MappedByteBuffer[][] mBuffers;
+
+	public MappedStorage(File[] files, long[] lengths) throws IOException {
+		super(files, lengths);
+
+		mHandles = new RandomAccessFile[files.length];
+		mBuffers = new MappedByteBuffer[files.length][];
+		for (int i = 0; i < files.length; i++) {
+			mHandles[i] = new RandomAccessFile(files[i], "rw");
+
+			// Mapping read-write grows the file to its full length
+			int chunks = (int) ((lengths[i] + CHUNK_SIZE - 1) >> CHUNK_SHIFT);
+			mBuffers[i] = new MappedByteBuffer[chunks];
+			for (int j = 0; j < chunks; j++) {
+				long start = (long) j << CHUNK_SHIFT;
+				mBuffers[i][j] = mHandles[i].getChannel().map(FileChannel.MapMode.READ_WRITE, start, Math.min(CHUNK_SIZE, lengths[i] - start));
+			}
+		}
+	}
+
+	protected void readFile(int file, long position, byte[] bytes, int start, int length) throws IOException {
+		int done = 0;
+		while (done < length) {
+			// Duplicate so that positions are not shared between callers
+			ByteBuffer buffer = getBuffer(file, position + done);
+			int copyLength = Math.min(length - done, buffer.remaining());
+			buffer.get(bytes, start + done, copyLength);
+			done += copyLength;
+		}
+	}
+
+	protected void writeFile(int file, long position, byte[] bytes, int start, int length) throws IOException {
+		int done = 0;
+		while (done < length) {
+			ByteBuffer buffer = getBuffer(file, position + done);
+			int copyLength = Math.min(length - done, buffer.remaining());
+			buffer.put(bytes, start + done, copyLength);
+			done += copyLength;
+		}
+	}
+
+	/**
+	 * @return a duplicate of the mapping holding the position
+	 *         in the file, positioned there
+	 */
+	private ByteBuffer getBuffer(int file, long position) {
+		ByteBuffer buffer = mBuffers[file][(int) (position >> CHUNK_SHIFT)].duplicate();
+		buffer.position((int) (position & (CHUNK_SIZE - 1)));
+		return buffer;
+	}
+
+	public void flush() throws IOException {
+		for (MappedByteBuffer[] buffers : mBuffers) {
+			for (MappedByteBuffer buffer : buffers) {
+				buffer.force();
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		flush();
+		for (RandomAccessFile handle : mHandles) {
+			handle.close();
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.file;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps the whole torrent in memory and never touches the disk;
+ * useful as a baseline when benchmarking the other storage,
+ * and for seeding from RAM
+ */
+public class MemoryStorage implements Storage {
+
+	/**
+	 * Memory is split into chunks so that torrents
+	 * larger than one array can be held
+	 */
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private byte[][] mChunks;
+
+	private long mLength;
+
+	public MemoryStorage(long length) {
+		mLength = length;
+		mChunks = new byte[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)][];
+	}
+
+	public void read(long offset, byte[] bytes, int start, int length) throws IOException {
+		checkRange(offset, length);
+
+		int done = 0;
+		while (done < length) {
+			int chunk = (int) ((offset + done) / CHUNK_SIZE);
+			int chunkOffset = (int) ((offset + done) % CHUNK_SIZE);
+			int copyLength = Math.min(length - done, CHUNK_SIZE - chunkOffset);
+
+			if (mChunks[chunk] == null) {
+				// Never written, so it reads as zeros
+				Arrays.fill(bytes, start + done, start + done + copyLength, (byte) 0);
+			} else {
+				System.arraycopy(mChunks[chunk], chunkOffset, bytes, start + done, copyLength);
+			}
+			done += copyLength;
+		}
+	}
+
+	public void write(long offset, byte[] bytes, int start, int length) throws IOException {
+		checkRange(offset, length);
+
+		int done = 0;
+		while (done < length) {
+			int chunk = (int) ((offset + done) / CHUNK_SIZE);
+			int chunkOffset = (int) ((offset + done) % CHUNK_SIZE);
+			int copyLength = Math.min(length - done, CHUNK_SIZE - chunkOffset);
+
+			if (mChunks[chunk] == null) {
+				mChunks[chunk] = new byte[CHUNK_SIZE];
+			}
+			System.arraycopy(bytes, start + done, mChunks[chunk], chunkOffset, copyLength);
+			done += copyLength;
+		}
+	}
+
+	public void flush() throws IOException {
+	}
+
+	public void close() throws IOException {
+		mChunks = new byte[0][];
+	}
+
+	private void checkRange(long offset, int length) throws IOException {
+		if (offset < 0 || offset + length > mLength) {
+			throw new IOException("Range " + offset + "+" + length + " is outside the torrent");
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads and writes with a seek followed by a read or write
+ * on a RandomAccessFile for each file
+ */
+public class RandomAccessFileStorage extends FileSetStorage {
+
+	private RandomAccessFile[] mHandles;
+
+	public RandomAccessFileStorage(File[] files, long[] lengths) throws IOException {
+		super(files, lengths);
+
+		mHandles = new RandomAccessFile[files.length];
+		for (int i = 0; i < files.length; i++) {
+			mHandles[i] = new RandomAccessFile(files[i], "rw");
+		}
+	}
+
+	protected void readFile(int file, long position, byte[] bytes, int start, int length) throws IOException {
+		mHandles[file].seek(position);
+		mHandles[file].readFully(bytes, start, length);
+	}
+
+	protected void writeFile(int file, long position, byte[] bytes, int start, int length) throws IOException {
+		mHandles[file].seek(position);
+		mHandles[file].write(bytes, start, length);
+	}
+
+	public void flush() throws IOException {
+		for (RandomAccessFile handle : mHandles) {
+			handle.getFD().sync();
+		}
+	}
+
+	public void close() throws IOException {
+		for (RandomAccessFile handle : mHandles) {
+			handle.close();
+		}
+	}
+
+}
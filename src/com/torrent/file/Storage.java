@@ -0,0 +1,39 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.file;
+
+import java.io.IOException;
+
+/**
+ * Where the bytes of a torrent are kept. Offsets are relative
+ * to the start of the torrent, as if all of its files were one
+ * continuous array of bytes. Implementations are created by
+ * StorageUtil and are only used from the disk thread.
+ */
+public interface Storage {
+
+	/**
+	 * Read length bytes at offset into bytes, starting at start
+	 */
+	public void read(long offset, byte[] bytes, int start, int length) throws IOException;
+
+	/**
+	 * Write length bytes from bytes, starting at start, to offset
+	 */
+	public void write(long offset, byte[] bytes, int start, int length) throws IOException;
+
+	/**
+	 * Make sure everything written so far is durable
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Release any files or memory held
+	 */
+	public void close() throws IOException;
+
+}
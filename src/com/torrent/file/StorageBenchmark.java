@@ -0,0 +1,94 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.file;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Runs the same workload against every kind of Storage and
+ * prints how fast each one was, to pick the best for a machine
+ *
+ * Usage: StorageBenchmark [directory] [size in MB] [block size in KB]
+ */
+public class StorageBenchmark {
+
+	/**
+	 * The workload is generated from this seed so
+	 * every Storage sees exactly the same requests
+	 */
+	private static final long SEED = 0x5EED;
+
+	public static void main(String[] args) throws Exception {
+		File directory = new File((args.length > 0) ? (args[0]) : (System.getProperty("java.io.tmpdir")));
+		long size = ((args.length > 1) ? (Long.parseLong(args[1])) : (64)) << 20;
+		int blockSize = ((args.length > 2) ? (Integer.parseInt(args[2])) : (16)) << 10;
+
+		int blocks = (int) (size / blockSize);
+		System.out.println(String.format("%d MB in %d KB blocks, in %s", size >> 20, blockSize >> 10, directory));
+
+		for (String type : StorageUtil.Types.ALL) {
+			File file = new File(directory, "storage-benchmark-" + type);
+			file.delete();
+			file.createNewFile();
+
+			try {
+				Storage storage = StorageUtil.create(type, new File[] { file }, new long[] { size });
+
+				Random random = new Random(SEED);
+				byte[] block = new byte[blockSize];
+				random.nextBytes(block);
+				int[] order = shuffledBlocks(blocks, random);
+
+				// Write every block once in a random order, as when downloading
+				long start = System.nanoTime();
+				for (int i = 0; i < blocks; i++) {
+					storage.write((long) order[i] * blockSize, block, 0, blockSize);
+				}
+				storage.flush();
+				long writeTime = System.nanoTime() - start;
+
+				// Read random blocks, as when seeding
+				start = System.nanoTime();
+				for (int i = 0; i < blocks; i++) {
+					storage.read((long) random.nextInt(blocks) * blockSize, block, 0, blockSize);
+				}
+				long readTime = System.nanoTime() - start;
+
+				storage.close();
+
+				System.out.println(String.format("%-8s write %8.1f MB/s   read %8.1f MB/s", type, rate(size, writeTime), rate(size, readTime)));
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	private static int[] shuffledBlocks(int blocks, Random random) {
+		int[] order = new int[blocks];
+		for (int i = 0; i < blocks; i++) {
+			order[i] = i;
+		}
+
+		for (int i = blocks - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+
+		return order;
+	}
+
+	/**
+	 * @return megabytes per second
+	 */
+	private static double rate(long bytes, long nanos) {
+		return (bytes / (double) (1 << 20)) / (nanos / 1000000000d);
+	}
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.file;
+
+import java.io.File;
+import java.io.IOException;
+
+public class StorageUtil {
+
+	/**
+	 * The kinds of Storage that can be chosen by name
+	 */
+	public static class Types {
+		public static final String MEMORY = "memory";
+		public static final String RANDOM_ACCESS_FILE = "raf";
+		public static final String FILE_CHANNEL = "channel";
+		public static final String MEMORY_MAPPED = "mmap";
+
+		public static final String[] ALL = { MEMORY, RANDOM_ACCESS_FILE, FILE_CHANNEL, MEMORY_MAPPED };
+	}
+
+	/**
+	 * The Storage used when none is configured
+	 */
+	public static final String DEFAULT_TYPE = Types.FILE_CHANNEL;
+
+	/**
+	 * Create a Storage by name
+	 *
+	 * @param type
+	 *            one of the names in Types
+	 * @param files
+	 *            the files of the torrent, in order
+	 * @param lengths
+	 *            the length of each file
+	 */
+	public static Storage create(String type, File[] files, long[] lengths) throws IOException {
+		if (Types.MEMORY.equals(type)) {
+			long total = 0;
+			for (long length : lengths) {
+				total += length;
+			}
+			return new MemoryStorage(total);
+		} else if (Types.RANDOM_ACCESS_FILE.equals(type)) {
+			return new RandomAccessFileStorage(files, lengths);
+		} else if (Types.FILE_CHANNEL.equals(type)) {
+			return new FileChannelStorage(files, lengths);
+		} else if (Types.MEMORY_MAPPED.equals(type)) {
+			return new MappedStorage(files, lengths);
+		}
+
+		throw new IllegalArgumentException("Unknown storage type \"" + type + "\"");
+	}
+
+}
@@ -0,0 +1,184 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.torrent.file.FileManager;
+
+/**
+ * Decides which peers we upload to (tit-for-tat). Every round,
+ * the interested peers that give us data the fastest are unchoked,
+ * plus one "optimistic" peer chosen at random and kept for a few rounds
+ * so that new peers get a chance to prove themselves.
+ * Once seeding, peers are ranked by how fast we upload to them instead.
+ */
+public class Choker {
+
+	/**
+	 * How often a choke round should be run
+	 */
+	public static final long ROUND_INTERVAL = 10000;
+
+	/**
+	 * Default number of peers unchoked for their rate,
+	 * not counting the optimistic unchoke
+	 */
+	public static final int DEFAULT_UPLOAD_SLOTS = 4;
+
+	/**
+	 * How many rounds the optimistic unchoke is kept (30 seconds)
+	 */
+	private static final int OPTIMISTIC_ROUNDS = 3;
+
+	private static final Comparator<PeerConnection> BY_DOWNLOAD_RATE = new Comparator<PeerConnection>() {
+		public int compare(PeerConnection a, PeerConnection b) {
+			return Double.compare(b.getDownloadRate(), a.getDownloadRate());
+		}
+	};
+
+	private static final Comparator<PeerConnection> BY_UPLOAD_RATE = new Comparator<PeerConnection>() {
+		public int compare(PeerConnection a, PeerConnection b) {
+			return Double.compare(b.getUploadRate(), a.getUploadRate());
+		}
+	};
+
+	private FileManager mFileManager;
+
+	private int mUploadSlots;
+
+	/**
+	 * The peer that is currently optimistically unchoked
+	 */
+	private PeerConnection mOptimistic;
+
+	private int mRound = 0;
+
+	private long mLastRound = 0;
+
+	public Choker(FileManager fileManager, int uploadSlots) {
+		mFileManager = fileManager;
+		mUploadSlots = uploadSlots;
+	}
+
+	public Choker(FileManager fileManager) {
+		this(fileManager, DEFAULT_UPLOAD_SLOTS);
+	}
+
+	/**
+	 * Update every peer's rates, then choke and unchoke peers
+	 *
+	 * @param peers
+	 *            every connected peer
+	 */
+	public synchronized void runRound(List<PeerConnection> peers) {
+		long now = System.currentTimeMillis();
+		long elapsed = (mLastRound == 0) ? (ROUND_INTERVAL) : (now - mLastRound);
+		mLastRound = now;
+
+		for (PeerConnection peer : peers) {
+			peer.updateRates(elapsed);
+		}
+
+		List<PeerConnection> interested = new ArrayList<PeerConnection>();
+		for (PeerConnection peer : peers) {
+			if (peer.isActive() && peer.isOtherInterested()) {
+				interested.add(peer);
+			}
+		}
+
+		// While downloading, reward peers that give us data;
+		// once seeding, favour peers we can upload to quickly
+		boolean seeding = isSeeding();
+		Collections.sort(interested, seeding ? BY_UPLOAD_RATE : BY_DOWNLOAD_RATE);
+
+		// Peers snubbing us don't earn a slot while we're downloading,
+		// though they can still be unchoked optimistically
+		Set<PeerConnection> unchoke = new HashSet<PeerConnection>();
+		for (int i = 0; i < interested.size() && unchoke.size() < mUploadSlots; i++) {
+			if (seeding || !interested.get(i).isSnubbed()) {
+				unchoke.add(interested.get(i));
+			}
+		}
+
+		// Rotate the optimistic unchoke every few rounds,
+		// or sooner if that peer left or is already unchoked on merit
+		if (mRound % OPTIMISTIC_ROUNDS == 0 || mOptimistic == null || !interested.contains(mOptimistic) || unchoke.contains(mOptimistic)) {
+			mOptimistic = pickOptimistic(interested, unchoke);
+		}
+		if (mOptimistic != null) {
+			unchoke.add(mOptimistic);
+		}
+
+		for (PeerConnection peer : peers) {
+			peer.setChoking(!unchoke.contains(peer));
+		}
+
+		mRound++;
+	}
+
+	/**
+	 * @return true once every piece has been downloaded
+	 */
+	public boolean isSeeding() {
+		return mFileManager.arePiecesDownloaded();
+	}
+
+	/**
+	 * Unchoke interested peers straight away if there are free slots,
+	 * such as when an unchoked peer leaves or a new peer becomes
+	 * interested, rather than waiting for the next round
+	 *
+	 * @param peers
+	 *            every connected peer
+	 */
+	public synchronized void fillSlots(List<PeerConnection> peers) {
+		boolean seeding = isSeeding();
+		List<PeerConnection> candidates = new ArrayList<PeerConnection>();
+		int unchoked = 0;
+
+		for (PeerConnection peer : peers) {
+			if (!peer.isActive()) {
+				continue;
+			}
+
+			if (!peer.isChoking()) {
+				unchoked++;
+			} else if (peer.isOtherInterested() && (seeding || !peer.isSnubbed())) {
+				candidates.add(peer);
+			}
+		}
+
+		Collections.sort(candidates, seeding ? BY_UPLOAD_RATE : BY_DOWNLOAD_RATE);
+
+		// The regular slots, plus the optimistic one
+		for (int i = 0; i < candidates.size() && unchoked < mUploadSlots + 1; i++) {
+			candidates.get(i).setChoking(false);
+			unchoked++;
+		}
+	}
+
+	/**
+	 * @return a random interested peer that isn't already unchoked, or null
+	 */
+	private PeerConnection pickOptimistic(List<PeerConnection> interested, Set<PeerConnection> unchoke) {
+		List<PeerConnection> candidates = new ArrayList<PeerConnection>();
+		for (PeerConnection peer : interested) {
+			if (!unchoke.contains(peer)) {
+				candidates.add(peer);
+			}
+		}
+
+		return (candidates.isEmpty()) ? (null) : (candidates.get((int) (Math.random() * candidates.size())));
+	}
+
+}
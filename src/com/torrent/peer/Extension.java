@@ -0,0 +1,45 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * An extension to the peer protocol, negotiated with the extension
+ * protocol (BEP 10). One instance handles every connection; it's only
+ * called for peers whose extended handshake names it too. Calls come
+ * from each connection's socket thread, so they shouldn't block.
+ */
+public interface Extension {
+
+	/**
+	 * @return the name the extension has in the handshake's "m"
+	 *         dictionary, such as "ut_pex"
+	 */
+	public String getName();
+
+	/**
+	 * The peer sent its extended handshake, which names this extension;
+	 * it may send another later to change anything it said
+	 */
+	public void onHandshake(PeerConnection connection, Map<?, ?> handshake);
+
+	/**
+	 * The peer sent a message for this extension
+	 *
+	 * @throws IOException
+	 *             if the message is bad enough to drop the peer
+	 */
+	public void onMessage(PeerConnection connection, byte[] payload) throws IOException;
+
+	/**
+	 * A connection whose peer supported this extension closed
+	 */
+	public void onDisconnected(PeerConnection connection);
+
+}
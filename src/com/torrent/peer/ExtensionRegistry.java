@@ -0,0 +1,99 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.torrent.util.Bencoder2;
+import com.torrent.util.BencodingException;
+
+/**
+ * The extensions we support, each given an id for peers to send its
+ * messages with; the ids are ours, so each peer's messages for an
+ * extension arrive with the id we gave it in our extended handshake,
+ * and we send with the id the peer gave in its own.
+ */
+public class ExtensionRegistry {
+
+	/**
+	 * The id of the extended handshake itself
+	 */
+	public static final int HANDSHAKE_ID = 0;
+
+	/**
+	 * How many requests we tell peers we queue
+	 */
+	public static final int REQUEST_QUEUE = 250;
+
+	/**
+	 * The keys of the extended handshake
+	 */
+	public static class Keys {
+		public static final ByteBuffer MESSAGES = ByteBuffer.wrap("m".getBytes());
+		public static final ByteBuffer PORT = ByteBuffer.wrap("p".getBytes());
+		public static final ByteBuffer VERSION = ByteBuffer.wrap("v".getBytes());
+		public static final ByteBuffer REQUEST_QUEUE = ByteBuffer.wrap("reqq".getBytes());
+	}
+
+	private static final String VERSION = "RUBT";
+
+	/**
+	 * Each extension's id is its place in the list, plus one
+	 */
+	private final List<Extension> mExtensions = new CopyOnWriteArrayList<Extension>();
+
+	/**
+	 * Add an extension; should be done before any connections start
+	 */
+	public void register(Extension extension) {
+		mExtensions.add(extension);
+	}
+
+	/**
+	 * @return the extension we gave the id, or null
+	 */
+	public Extension get(int id) {
+		if (id <= 0 || id > mExtensions.size()) {
+			return null;
+		}
+		return mExtensions.get(id - 1);
+	}
+
+	public List<Extension> getExtensions() {
+		return mExtensions;
+	}
+
+	/**
+	 * @param tcpPort
+	 *            the port we take connections on, so peers
+	 *            that connected to us can tell others
+	 * @return our bencoded extended handshake
+	 */
+	public byte[] makeHandshake(int tcpPort) {
+		HashMap<ByteBuffer, Object> messages = new HashMap<ByteBuffer, Object>();
+		for (int i = 0; i < mExtensions.size(); i++) {
+			messages.put(ByteBuffer.wrap(mExtensions.get(i).getName().getBytes()), i + 1);
+		}
+
+		HashMap<ByteBuffer, Object> handshake = new HashMap<ByteBuffer, Object>();
+		handshake.put(Keys.MESSAGES, messages);
+		handshake.put(Keys.PORT, tcpPort);
+		handshake.put(Keys.VERSION, ByteBuffer.wrap(VERSION.getBytes()));
+		handshake.put(Keys.REQUEST_QUEUE, REQUEST_QUEUE);
+
+		try {
+			return Bencoder2.encode(handshake);
+		} catch (BencodingException e) {
+			// Only ever given strings, integers and dictionaries
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
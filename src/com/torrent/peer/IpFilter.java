@@ -0,0 +1,103 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import com.torrent.util.IpRangeSet;
+
+/**
+ * A PeerFilter built from allow and deny lists. If anything is allowed
+ * explicitly, only those addresses are allowed; denied addresses are
+ * never allowed. Lists may be in either of these formats, one entry per
+ * line, with blank lines and lines starting with '#' ignored:
+ * 
+ * CIDR: 10.0.0.0/8 (or a single address)
+ * P2P:  some description:10.0.0.0-10.255.255.255
+ */
+public class IpFilter implements PeerFilter {
+
+	private IpRangeSet mAllow = new IpRangeSet();
+	private IpRangeSet mDeny = new IpRangeSet();
+
+	/**
+	 * Load a list of addresses that are allowed
+	 * 
+	 * @return the number of entries loaded
+	 */
+	public int loadAllowList(File file) throws IOException {
+		return load(file, mAllow);
+	}
+
+	/**
+	 * Load a list of addresses that are denied
+	 * 
+	 * @return the number of entries loaded
+	 */
+	public int loadDenyList(File file) throws IOException {
+		return load(file, mDeny);
+	}
+
+	public boolean isAllowed(String ip) {
+		if (ip == null) {
+			return false;
+		}
+
+		if (mAllow.size() > 0 && !mAllow.contains(ip)) {
+			return false;
+		}
+
+		return !mDeny.contains(ip);
+	}
+
+	public boolean isAllowed(PeerInfo peer) {
+		long address = peer.getAddress();
+		if (address < 0) {
+			// Not IPv4, so only an empty allow list lets it through
+			return isAllowed(peer.getIP());
+		}
+
+		if (mAllow.size() > 0 && !mAllow.contains((int) address)) {
+			return false;
+		}
+
+		return !mDeny.contains((int) address);
+	}
+
+	private static int load(File file, IpRangeSet ranges) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		int loaded = 0;
+
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+
+				// P2P format puts a description before the last ':'
+				int colon = line.lastIndexOf(':');
+				String entry = (colon >= 0) ? (line.substring(colon + 1)) : (line);
+
+				boolean added = (entry.indexOf('-') >= 0) ? (ranges.addRange(entry)) : (ranges.addCidr(entry));
+				if (added) {
+					loaded++;
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		ranges.compact();
+		return loaded;
+	}
+
+}
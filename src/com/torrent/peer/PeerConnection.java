@@ -8,20 +8,111 @@ package com.torrent.peer;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.torrent.file.DiskIO;
 import com.torrent.file.FileManager;
+import com.torrent.util.Bencoder2;
+import com.torrent.util.TokenBucket;
+import com.torrent.util.WheelTimer;
 
 public class PeerConnection {
 
-	private static final int DEFAULT_REQUEST_LENGTH = 16384;
+	/**
+	 * Told about changes to the connection as they happen; called
+	 * from the connection's threads, so it shouldn't block
+	 */
+	public interface Listener {
+		/**
+		 * The connection was closed, by either side
+		 */
+		public void onDisconnected(PeerConnection connection);
+
+		/**
+		 * The peer choked or unchoked us
+		 */
+		public void onChokeChanged(PeerConnection connection);
+
+		/**
+		 * The peer became interested or not interested in our data
+		 */
+		public void onInterestChanged(PeerConnection connection);
+
+		/**
+		 * A piece downloaded from the peer passed its hash check
+		 */
+		public void onPieceCompleted(PeerConnection connection, int index);
+	}
+
+	/**
+	 * Where a connection is in its life; it only ever moves forward,
+	 * and every way out of ACTIVE goes through closeConnection()
+	 */
+	public enum State {
+		CONNECTING, HANDSHAKING, ACTIVE, CLOSING, CLOSED
+	}
+
+	/**
+	 * How often to check whether a keep-alive is due,
+	 * the peer has snubbed us, or the connection has gone idle
+	 */
+	private static final long IDLE_CHECK_INTERVAL = 10000;
+
+	/**
+	 * Send a keep-alive after this long without sending anything
+	 */
+	private static final long KEEP_ALIVE_INTERVAL = 90000;
+
+	/**
+	 * Drop the connection after this long without receiving anything
+	 */
+	private static final long IDLE_TIMEOUT = 180000;
+
+	/**
+	 * Give up on a requested block after this long, so
+	 * that its piece can be downloaded from someone else
+	 */
+	private static final long REQUEST_TIMEOUT = 30000;
+
+	/**
+	 * A peer that has unchoked us but sent none of the blocks we asked
+	 * for in this long is snubbing us, and is no longer given pieces or
+	 * unchoked for its rate
+	 */
+	private static final long SNUB_TIMEOUT = 60000;
+
+	/**
+	 * Pieces part downloaded from a peer that chokes us are kept this
+	 * long, to be finished once it unchokes us, before they are handed
+	 * back for other peers to download
+	 */
+	private static final long CHOKED_PIECE_TIMEOUT = 60000;
+
+	/**
+	 * How long stop() lets the sender thread send the choke before
+	 * the connection is closed anyway
+	 */
+	private static final long STOP_TIMEOUT = 5000;
 
 	/**
 	 * Whether or not to display verbose debugging messages
@@ -55,6 +146,51 @@ public class PeerConnection {
 		mFileManager = fileManager;
 	}
 
+	private static SmartBan mSmartBan;
+
+	public static void setSmartBan(SmartBan smartBan) {
+		mSmartBan = smartBan;
+	}
+
+	/**
+	 * The extensions we offer peers, or null to not
+	 * use the extension protocol at all
+	 */
+	private static ExtensionRegistry mExtensions;
+
+	public static void setExtensions(ExtensionRegistry extensions) {
+		mExtensions = extensions;
+	}
+
+	/**
+	 * Runs every connection's keep-alives and timeouts
+	 */
+	private static WheelTimer mTimer;
+
+	public static void setTimer(WheelTimer timer) {
+		mTimer = timer;
+	}
+
+	/**
+	 * Rate limits shared by every connection to this torrent;
+	 * each connection's own limits are chained to these
+	 */
+	private static TokenBucket mTorrentDownloadLimit = new TokenBucket(0);
+	private static TokenBucket mTorrentUploadLimit = new TokenBucket(0);
+
+	/**
+	 * Default per-peer limits, in bytes per second, 0 for unlimited
+	 */
+	private static long mPeerDownloadRate = 0;
+	private static long mPeerUploadRate = 0;
+
+	public static void setRateLimits(TokenBucket torrentDownloadLimit, TokenBucket torrentUploadLimit, long peerDownloadRate, long peerUploadRate) {
+		mTorrentDownloadLimit = torrentDownloadLimit;
+		mTorrentUploadLimit = torrentUploadLimit;
+		mPeerDownloadRate = peerDownloadRate;
+		mPeerUploadRate = peerUploadRate;
+	}
+
 	private PeerInfo mPeer;
 	private Socket mSocket;
 	private InputStream mIn;
@@ -63,16 +199,89 @@ public class PeerConnection {
 	private DataInputStream mDataIn;
 	private DataOutputStream mDataOut;
 
-	private boolean mBeingChoked = true;
+	private volatile boolean mBeingChoked = true;
 	private boolean mOtherInterested = false;
 
-	private boolean mChoking = true;
+	private volatile boolean mChoking = true;
 	private boolean mInterested = false;
 
-	private byte[] mCurrentPieceBytes;
-	private int mCurrentRequestIndex = -1;
-	private int mCurrentRequestOffset;
-	private int mCurrentRequestLength;
+	/**
+	 * A piece being downloaded from this peer
+	 */
+	private static class PieceDownload {
+		public int index;
+		public byte[] bytes;
+		public boolean[] requested;
+		public boolean[] received;
+		public int receivedCount = 0;
+
+		public PieceDownload(int index, int length) {
+			int blocks = (length + RequestWindow.BLOCK_SIZE - 1) / RequestWindow.BLOCK_SIZE;
+			this.index = index;
+			this.bytes = new byte[length];
+			this.requested = new boolean[blocks];
+			this.received = new boolean[blocks];
+		}
+
+		/**
+		 * @return the first block not yet requested, -1 if none
+		 */
+		public int nextBlock() {
+			for (int i = 0; i < requested.length; i++) {
+				if (!requested[i] && !received[i]) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		public int getBlockLength(int block) {
+			return Math.min(RequestWindow.BLOCK_SIZE, bytes.length - block * RequestWindow.BLOCK_SIZE);
+		}
+
+		public boolean isComplete() {
+			return receivedCount == received.length;
+		}
+	}
+
+	/**
+	 * A block that has been requested but hasn't arrived
+	 */
+	private static class BlockRequest {
+		public int index;
+		public int offset;
+		public int length;
+		public long time = System.currentTimeMillis();
+
+		/**
+		 * If other requests were outstanding ahead of this one
+		 */
+		public boolean queued;
+
+		public BlockRequest(int index, int offset, int length, boolean queued) {
+			this.index = index;
+			this.offset = offset;
+			this.length = length;
+			this.queued = queued;
+		}
+	}
+
+	/**
+	 * Pieces being downloaded, and the requests outstanding for
+	 * them in the order they were sent; guarded by mRequestLock
+	 */
+	private List<PieceDownload> mDownloads = new ArrayList<PieceDownload>();
+	private LinkedList<BlockRequest> mRequests = new LinkedList<BlockRequest>();
+
+	/**
+	 * Decides how many requests are kept outstanding
+	 */
+	private RequestWindow mWindow = new RequestWindow();
+
+	/**
+	 * Told about changes to this connection, if set
+	 */
+	private Listener mListener;
 
 	/**
 	 * The thread that sends requests for pieces
@@ -86,9 +295,24 @@ public class PeerConnection {
 	private Thread mSocketThread;
 
 	/**
-	 * If this peer should have an active connection
+	 * Work for the sender thread, which writes what other threads
+	 * hand it to the socket in order, so that the disk thread, the
+	 * PeerManager and the timer never wait on a slow peer; the
+	 * timer's work goes to the front
+	 */
+	private final BlockingDeque<Runnable> mSendQueue = new LinkedBlockingDeque<Runnable>();
+	private Thread mSenderThread;
+
+	/**
+	 * Where this connection is in its life
+	 */
+	private volatile State mState;
+	private final Object mStateLock = new Object();
+
+	/**
+	 * If the other peer opened this connection
 	 */
-	private boolean mActive = false;
+	private boolean mIncoming;
 
 	/**
 	 * How many bytes received by this peer in the last period of the
@@ -101,16 +325,118 @@ public class PeerConnection {
 	 */
 	private int mBytesSent;
 
+	/**
+	 * Limits on this connection, chained to the torrent's limits
+	 */
+	private TokenBucket mDownloadLimit = new TokenBucket(mPeerDownloadRate, mTorrentDownloadLimit);
+	private TokenBucket mUploadLimit = new TokenBucket(mPeerUploadRate, mTorrentUploadLimit);
+
+	/**
+	 * Blocks the peer asked for that haven't been sent yet; requests
+	 * past the queue we told the peer we keep are ignored, since the
+	 * read loop doesn't wait for the upload limit
+	 */
+	private final AtomicInteger mQueuedUploads = new AtomicInteger();
+
+	/**
+	 * Rolling average rates, in bytes per second,
+	 * updated by the Choker each round
+	 */
+	private double mDownloadRate = 0;
+	private double mUploadRate = 0;
+
+	/**
+	 * When something was last sent to or received from the peer
+	 */
+	private volatile long mLastSent;
+	private volatile long mLastReceived;
+
+	/**
+	 * Sends keep-alives and drops the connection once it goes idle
+	 */
+	private WheelTimer.Timeout mIdleTimeout;
+
+	/**
+	 * Fires if no block arrives while requests are outstanding
+	 */
+	private volatile WheelTimer.Timeout mRequestTimeout;
+
+	/**
+	 * Changed whenever the request timeout is scheduled or cancelled, so
+	 * that one which fired just before is ignored; guarded by mRequestLock
+	 */
+	private int mRequestTimeoutGeneration = 0;
+
+	/**
+	 * Guards the pieces and requests, which the sender thread may
+	 * give up on while the socket thread is handling blocks
+	 */
+	private final Object mRequestLock = new Object();
+
+	/**
+	 * When we started waiting on the requests now outstanding: set by
+	 * the first request, kept through timeouts and re-requests, and
+	 * moved on by each block; 0 when nothing is outstanding, so a peer
+	 * we have nothing to ask of is never counted as snubbing us
+	 */
+	private volatile long mWaitingSince = 0;
+
+	/**
+	 * If the peer has unchoked us but stopped sending data
+	 */
+	private volatile boolean mSnubbed = false;
+
+	/**
+	 * When the peer last choked us
+	 */
+	private volatile long mChokedAt;
+
+	/**
+	 * When the connection was started, 0 if it never was, and whether
+	 * a block has gone either way since
+	 */
+	private volatile long mStartTime = 0;
+	private volatile boolean mTransferred = false;
+
+	/**
+	 * If the peer's handshake said it supports the extension protocol
+	 */
+	private boolean mExtensionsSupported = false;
+
+	/**
+	 * The id the peer gave each extension it supports, by name;
+	 * replaced whole by each extended handshake it sends
+	 */
+	private volatile Map<String, Integer> mPeerExtensions = Collections.emptyMap();
+
+	/**
+	 * Create a new PeerConnection to a peer; connect() must
+	 * be called before anything else
+	 */
 	public PeerConnection(PeerInfo peer) {
 		mPeer = peer;
+		mState = State.CONNECTING;
+	}
+
+	/**
+	 * Open the connection to the peer
+	 * 
+	 * @param timeout
+	 *            milliseconds to wait for the peer to accept
+	 */
+	public void connect(int timeout) throws IOException {
+		mSocket = new Socket();
 		try {
-			mSocket = new Socket(mPeer.getIP(), mPeer.getPort());
+			mSocket.connect(new InetSocketAddress(mPeer.getIP(), mPeer.getPort()), timeout);
 			mOut = mSocket.getOutputStream();
 			mIn = mSocket.getInputStream();
 			mDataIn = new DataInputStream(mIn);
 			mDataOut = new DataOutputStream(mOut);
-		} catch (Exception e) {
-			e.printStackTrace();
+			mState = State.HANDSHAKING;
+		} catch (IOException e) {
+			mSocket.close();
+			mState = State.CLOSED;
+			throw e;
 		}
 	}
 
@@ -121,6 +447,8 @@ public class PeerConnection {
 	 *            the socket the other peer initiated
 	 */
 	public PeerConnection(Socket socket) {
+		mIncoming = true;
+		mState = State.HANDSHAKING;
 		try {
 			mSocket = socket;
 			mOut = mSocket.getOutputStream();
@@ -135,6 +463,7 @@ public class PeerConnection {
 			mDataIn.readFully(response);
 
 			byte[] responseInfoHash = Arrays.copyOfRange(response, 28, 48);
+			mExtensionsSupported = PeerMessage.supportsExtensions(response);
 
 			// If the hash is correct
 			if (Arrays.equals(mInfoHash.array(), responseInfoHash)) {
@@ -151,19 +480,108 @@ public class PeerConnection {
 
 	}
 
+	/**
+	 * Set who is told about changes to this connection;
+	 * should be called before start()
+	 */
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
 	public PeerInfo getPeerInfo() {
 		return mPeer;
 	}
 
+	/**
+	 * @return true if the other peer opened this connection
+	 */
+	public boolean isIncoming() {
+		return mIncoming;
+	}
+
+	/**
+	 * @return milliseconds since the connection was started, 0 if it never was
+	 */
+	public long getConnectedTime() {
+		long start = mStartTime;
+		return (start == 0) ? (0) : (System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @return if a requested block has been sent or received
+	 */
+	public boolean hasTransferred() {
+		return mTransferred;
+	}
+
+	/**
+	 * @return false once this connection has been stopped or dropped
+	 */
+	public boolean isActive() {
+		return mState == State.ACTIVE;
+	}
+
+	public State getState() {
+		return mState;
+	}
+
+	/**
+	 * Start exchanging messages over a connection that has been handshaken
+	 */
 	public void start() {
-		mActive = true;
+		synchronized (mStateLock) {
+			if (mState != State.HANDSHAKING) {
+				return;
+			}
+			mState = State.ACTIVE;
+		}
+
+		// Reads block until something arrives; the timer
+		// closes the connection if nothing does for too long
+		try {
+			mSocket.setSoTimeout(0);
+		} catch (IOException e) {
+		}
+
+		mStartTime = mLastSent = mLastReceived = System.currentTimeMillis();
+		mIdleTimeout = mTimer.schedulePeriodic(new Runnable() {
+			public void run() {
+				checkIdle();
+			}
+		}, IDLE_CHECK_INTERVAL);
+
+		(mSenderThread = new Thread(new Runnable() {
+			public void run() {
+				while (mState == State.ACTIVE) {
+					Runnable task;
+					try {
+						task = mSendQueue.take();
+					} catch (InterruptedException e) {
+						// Woken by closeConnection()
+						continue;
+					}
+					task.run();
+				}
+				mSendQueue.clear();
+			}
+		})).start();
+
 		(mSocketThread = new Thread(new Runnable() {
 			public void run() {
+				// Both sides said they support extensions, so say which
+				if (mExtensions != null && mExtensionsSupported) {
+					send(PeerMessage.makeExtended(ExtensionRegistry.HANDSHAKE_ID, mExtensions.makeHandshake(mTcpPort)));
+				}
+
 				sendInterested();
-				while (!mSocket.isClosed() && mActive) {
+				while (mState == State.ACTIVE) {
 					try {
+						// Leave data in the socket while the disk is backed up
+						mFileManager.getDiskIO().awaitCapacity();
+
 						// Wait for and parse a message
 						PeerMessage.Message message = PeerMessage.readMessage(mDataIn);
+						mLastReceived = System.currentTimeMillis();
 
 						// Determine what to do
 						switch (message.type) {
@@ -177,182 +595,707 @@ public class PeerConnection {
 							debug(mPeer + String.format(" received cancel %d(%d-%d)", message.index, message.offset, message.length));
 							break;
 						case PeerMessage.Type.CHOKE:
-							// Try to get unchoked again
+							// The peer drops our requests when it chokes, but the
+							// blocks already received are kept to finish the pieces
+							// once unchoked; try to get unchoked again
 							debug(mPeer + " is choking");
 							mBeingChoked = true;
+							mChokedAt = System.currentTimeMillis();
+							synchronized (mRequestLock) {
+								forgetRequests();
+								mWaitingSince = 0;
+							}
 							sendInterested();
+							if (mListener != null) {
+								mListener.onChokeChanged(PeerConnection.this);
+							}
 							break;
 						case PeerMessage.Type.HAVE:
-							// Ignore HAVEs
+							// A peer that snubbed us may now have something we need
 							debug(mPeer + " HAVE piece " + message.index);
+							if (mSnubbed) {
+								mSnubbed = false;
+								requestPiece();
+							}
 							break;
 						case PeerMessage.Type.INTERESTED:
-							// Unchoke with some probability
+							// The Choker decides whether to unchoke
 							debug(mPeer + " is interested");
-							if(Math.random() > 0.5){
-								mChoking = false;
-								mOtherInterested = true;
-								sendNotChoking();
+							mOtherInterested = true;
+							if (mListener != null) {
+								mListener.onInterestChanged(PeerConnection.this);
 							}
 							break;
 						case PeerMessage.Type.NOT_INTERESTED:
 							// The other peer is no longer interested
 							debug(mPeer + " is not interested");
 							mOtherInterested = false;
+							if (mListener != null) {
+								mListener.onInterestChanged(PeerConnection.this);
+							}
+							break;
+						case PeerMessage.Type.KEEP_ALIVE:
+							debug(mPeer + " sent keep-alive");
 							break;
 						case PeerMessage.Type.PIECE:
 							// Handle pieces
 							debug(mPeer + String.format(" sent us %d(%d-%d)", message.index, message.offset, message.data.length));
 							debug("handling");
-							handleBlock(message.index, message.offset, message.data);
+							handleBlock(message.index, message.offset, message.data, message.time);
 							debug("requesting");
 							requestPiece();
+
+							// Pay for the block; if over the limit, this waits
+							// before the next read so data stays in the socket
+							mDownloadLimit.consume(message.data.length);
 							break;
 						case PeerMessage.Type.REQUEST:
 							// Send if we're not choking
 							debug(mPeer + String.format(" requested %d(%d-%d)", message.index, message.offset, message.length));
-							if (!mChoking) {
+							if (!mChoking && mQueuedUploads.get() < ExtensionRegistry.REQUEST_QUEUE) {
 								sendPiece(message.index, message.offset, message.length);
 							}
 							break;
+						case PeerMessage.Type.EXTENDED:
+							debug(mPeer + " sent extended message " + message.extendedId);
+							handleExtended(message.extendedId, message.data);
+							break;
 						case PeerMessage.Type.UNCHOKE:
-							// We were unchoked, so begin requesting pieces
+							// We were unchoked, so begin requesting pieces,
+							// giving a snubbing peer another chance
 							debug(mPeer + " is not choking");
 							mBeingChoked = false;
+							mSnubbed = false;
 							requestPiece();
+							if (mListener != null) {
+								mListener.onChokeChanged(PeerConnection.this);
+							}
 							break;
 						}
 
+					} catch (EOFException e) {
+						debug(mPeer + " closed the connection");
+						closeConnection();
+					} catch (IOException e) {
+						// Expected if we closed the socket ourselves
+						if (mState == State.ACTIVE) {
+							debug("Connection to " + mPeer + " failed: " + e);
+						}
+						closeConnection();
 					} catch (Exception e) {
+						// A bug handling one message shouldn't leave a broken connection open
+						e.printStackTrace();
+						closeConnection();
 					}
 				}
+
+				finishClosing();
 			}
 		})).start();
 	}
 
+	/**
+	 * Choke the peer and close the connection, without waiting
+	 */
 	public void stop() {
 		debug("Stopping " + mPeer);
 
-		mActive = false;
+		if (!isActive()) {
+			closeConnection();
+			return;
+		}
 
-		// Send a choke
+		// Close once the sender thread has sent the choke, or after
+		// STOP_TIMEOUT if it's stuck writing to a slow peer; closing the
+		// socket wakes the socket thread, which is blocked reading
+		Runnable close = new Runnable() {
+			public void run() {
+				closeConnection();
+			}
+		};
 		sendChoking();
+		mSendQueue.add(close);
+		mTimer.schedule(close, STOP_TIMEOUT);
+	}
+
+	/**
+	 * Tear the connection down from whatever state it's in: stop its
+	 * timers and close the socket, which wakes the socket thread to give
+	 * back the pieces it was downloading and tell the listener. Never
+	 * blocks, and only the first call does anything, so the timer or
+	 * any thread that finds the connection dead may call it.
+	 */
+	public void closeConnection() {
+		State previous;
+		synchronized (mStateLock) {
+			previous = mState;
+			if (previous == State.CLOSING || previous == State.CLOSED) {
+				return;
+			}
+			mState = State.CLOSING;
+		}
+
+		if (mIdleTimeout != null) {
+			mIdleTimeout.cancel();
+		}
+		WheelTimer.Timeout requestTimeout = mRequestTimeout;
+		if (requestTimeout != null) {
+			requestTimeout.cancel();
+		}
+		if (mSenderThread != null) {
+			mSenderThread.interrupt();
+		}
 
-		// Try to peacefully stop
 		try {
-			mSocketThread.join(8000);
-		} catch (Exception e) {
+			if (mSocket != null) {
+				mSocket.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 
-		// Close socket to forcefully stop
-		closeConnection();
+		if (previous != State.ACTIVE) {
+			// Never started, so there is no socket thread to finish
+			mState = State.CLOSED;
+		}
+	}
+
+	/**
+	 * Run by the socket thread as it stops: tell the FileManager
+	 * that our pieces are not being downloaded any more, and tell
+	 * the extensions and the listener that the connection closed
+	 */
+	private void finishClosing() {
+		synchronized (mRequestLock) {
+			releasePieces();
+		}
 
-		// Tell the filemanager that this piece
-		// is not being downloaded any more
-		mFileManager.setPieceDownloading(mCurrentRequestIndex, false);
+		mState = State.CLOSED;
+
+		if (mExtensions != null) {
+			for (Extension extension : mExtensions.getExtensions()) {
+				if (supportsExtension(extension.getName())) {
+					extension.onDisconnected(this);
+				}
+			}
+		}
+
+		if (mListener != null) {
+			mListener.onDisconnected(this);
+		}
 	}
 
-	public void closeConnection() {
+	/**
+	 * Handle the peer's extended handshake, or pass a message to
+	 * the extension we gave its id; messages for extensions we
+	 * don't have, or that we never offered this peer, are ignored
+	 */
+	private void handleExtended(int id, byte[] payload) throws IOException {
+		if (mExtensions == null || !mExtensionsSupported) {
+			return;
+		}
+
+		if (id != ExtensionRegistry.HANDSHAKE_ID) {
+			Extension extension = mExtensions.get(id);
+			if (extension != null) {
+				extension.onMessage(this, payload);
+			}
+			return;
+		}
+
+		Object decoded;
 		try {
-			mDataIn.close();
-			mDataOut.close();
-			mSocket.close();
+			decoded = Bencoder2.decode(payload);
 		} catch (Exception e) {
-			e.printStackTrace();
+			throw new IOException("Bad extended handshake from " + mPeer + ": " + e);
+		}
+		if (!(decoded instanceof Map)) {
+			throw new IOException("Bad extended handshake from " + mPeer + ": not a dictionary");
+		}
+		Map<?, ?> handshake = (Map<?, ?>) decoded;
+
+		// An id of 0 turns an extension off
+		Map<String, Integer> peerExtensions = new HashMap<String, Integer>();
+		Object messages = handshake.get(ExtensionRegistry.Keys.MESSAGES);
+		if (messages instanceof Map) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) messages).entrySet()) {
+				if (entry.getKey() instanceof ByteBuffer && entry.getValue() instanceof Integer && (Integer) entry.getValue() > 0) {
+					peerExtensions.put(new String(((ByteBuffer) entry.getKey()).array()), (Integer) entry.getValue());
+				}
+			}
+		}
+		mPeerExtensions = peerExtensions;
+
+		Object requestQueue = handshake.get(ExtensionRegistry.Keys.REQUEST_QUEUE);
+		if (requestQueue instanceof Integer) {
+			mWindow.setMaxWindow((Integer) requestQueue);
+		}
+
+		for (Extension extension : mExtensions.getExtensions()) {
+			if (peerExtensions.containsKey(extension.getName())) {
+				extension.onHandshake(this, handshake);
+			}
 		}
 	}
 
 	/**
-	 * Process the block that was received by the other peer
+	 * @return if the peer's extended handshake named the extension
+	 */
+	public boolean supportsExtension(String name) {
+		return mPeerExtensions.containsKey(name);
+	}
+
+	/**
+	 * Send a message for an extension, with the id the peer gave it
+	 * 
+	 * @return false if the peer doesn't support the extension, or the
+	 *         connection is closed
 	 */
-	private void handleBlock(int index, int offset, byte[] data) {
-		if (mCurrentPieceBytes == null) {
-			mCurrentPieceBytes = new byte[mPieceLength];
+	public boolean sendExtended(String name, byte[] payload) {
+		Integer id = mPeerExtensions.get(name);
+		if (id == null) {
+			return false;
 		}
+		return send(PeerMessage.makeExtended(id, payload));
+	}
 
-		System.arraycopy(data, 0, mCurrentPieceBytes, mCurrentRequestOffset, mCurrentRequestLength);
-		mCurrentRequestOffset += mCurrentRequestLength;
+	/**
+	 * Process the block that was received by the other peer
+	 * 
+	 * @param firstByteTime
+	 *            when the first byte of the message arrived
+	 */
+	private void handleBlock(int index, int offset, byte[] data, long firstByteTime) {
+		synchronized (mRequestLock) {
+			BlockRequest request = removeRequest(index, offset);
+			PieceDownload piece = getDownload(index);
+
+			// A block that was given up on, or never requested, arriving late
+			if (request == null || piece == null || data.length != request.length) {
+				debug(String.format("Ignoring unexpected block %d(%d) from " + mPeer, index, offset));
+				addBytesReceived(data.length);
+				return;
+			}
 
-		// Need to take into account if this is the last piece
-		int pieceLength = (mCurrentRequestIndex == mPieceHashes.length - 1) ? (mFileLength % mPieceLength) : (mPieceLength);
+			mWindow.blockReceived(data.length, request.time, firstByteTime, request.queued);
+			mSnubbed = false;
+			mTransferred = true;
 
-		if (mCurrentRequestOffset >= pieceLength) {
-			// Should be done downloading this piece; check hash
-			debug("Checking hash on piece " + mCurrentRequestIndex);
+			// The clock starts again for whatever is still outstanding
+			cancelRequestTimeout();
+			if (!mRequests.isEmpty()) {
+				scheduleRequestTimeout();
+				mWaitingSince = System.currentTimeMillis();
+			} else {
+				mWaitingSince = 0;
+			}
 
-			if (checkPieceHash(mCurrentRequestIndex, pieceLength)) {
-				// Hash is good, send to FileManager
-				mFileManager.setPieceDownloaded(mCurrentRequestIndex, Arrays.copyOf(mCurrentPieceBytes, pieceLength));
+			System.arraycopy(data, 0, piece.bytes, offset, data.length);
+			piece.received[offset / RequestWindow.BLOCK_SIZE] = true;
+			piece.receivedCount++;
+			addBytesReceived(data.length);
 
-				// Increment number of good bytes received
-				mBytesReceived += pieceLength;
+			if (piece.isComplete()) {
+				mDownloads.remove(piece);
+				handlePiece(piece);
+			}
+		}
+	}
+
+	/**
+	 * Every block of the piece has arrived; check its hash
+	 * and hand it to the FileManager; must hold mRequestLock
+	 */
+	private void handlePiece(PieceDownload piece) {
+		debug("Checking hash on piece " + piece.index);
+
+		if (checkPieceHash(piece.index, piece.bytes)) {
+			// Blame anyone who sent a bad copy of this piece earlier
+			mSmartBan.piecePassed(this, piece.index, piece.bytes);
+
+			// Hash is good, send to FileManager
+			mFileManager.setPieceDownloaded(piece.index, piece.bytes);
 
-				// Send a HAVE message
-				sendHave(mCurrentRequestIndex);
+			// Let every peer know, or just this one
+			if (mListener != null) {
+				mListener.onPieceCompleted(this, piece.index);
 			} else {
-				debug("Hash failed: " + mPeer);
+				sendHave(piece.index);
 			}
+		} else {
+			debug("Hash failed: " + mPeer);
+
+			// Let another peer download this piece
+			mFileManager.setPieceDownloading(piece.index, false);
 
-			// Reset for next piece
-			mCurrentRequestOffset = 0;
-			Arrays.fill(mCurrentPieceBytes, (byte) 0);
+			if (mSmartBan.pieceFailed(this, piece.index, piece.bytes)) {
+				// This peer keeps sending bad data, so stop wasting time on it
+				System.out.println("Disconnecting banned peer " + mPeer);
+				closeConnection();
+			}
+		}
+	}
 
-			// Get the next piece to download
-			mCurrentRequestIndex = mFileManager.getNeededPiece();
+	/**
+	 * Pick a piece to download that this peer hasn't already sent us
+	 * a bad copy of and isn't already sending, and mark it as being downloaded
+	 * 
+	 * @return the piece, -1 if none
+	 */
+	private int getNeededPiece() {
+		Set<Integer> excluded = mSmartBan.getExcludedPieces(mPeer);
+		for (PieceDownload piece : mDownloads) {
+			excluded.add(piece.index);
 		}
+
+		int index = mFileManager.getNeededPiece(excluded);
+		mFileManager.setPieceDownloading(index, true);
+		return index;
 	}
 
 	/**
-	 * Request a block of a piece that is not already downloaded
+	 * Request blocks of pieces that are not already downloaded,
+	 * until the request window is full
 	 */
 	private void requestPiece() {
-		if (mBeingChoked) {
+		synchronized (mRequestLock) {
+			fillRequests();
+		}
+	}
+
+	private void fillRequests() {
+		if (mSnubbed) {
+			// Leave the pieces for peers that are sending data
+			debug("Not requesting, snubbed by " + mPeer);
+			return;
+		} else if (mBeingChoked) {
 			// Need to get unchoked first
 			sendInterested();
 			debug("Can't request, being choked: " + mPeer);
-		} else {
-			// If this is the first piece requested, find what is needed
-			// to be downloaded
-			if (mCurrentRequestIndex == -1) {
-				mCurrentRequestIndex = mFileManager.getNeededPiece();
+			return;
+		}
+
+		while (isActive() && mRequests.size() < mWindow.getWindow()) {
+			PieceDownload piece = getPieceToRequest();
+			if (piece == null) {
+				debug("Can't request, nothing needed: " + mPeer);
+				break;
 			}
 
-			// If we can request something
-			if (mCurrentRequestIndex != -1) {
-				// Piece length based on whether or not this is the final piece
-				int pieceLength = (mCurrentRequestIndex == mPieceHashes.length - 1) ? (mFileLength % mPieceLength) : (mPieceLength);
+			int block = piece.nextBlock();
+			piece.requested[block] = true;
 
-				if (mCurrentRequestOffset + mCurrentRequestLength > pieceLength) {
-					// Adjust requested length if needed
-					mCurrentRequestLength = pieceLength % DEFAULT_REQUEST_LENGTH;
-				} else {
-					mCurrentRequestLength = DEFAULT_REQUEST_LENGTH;
+			BlockRequest request = new BlockRequest(piece.index, block * RequestWindow.BLOCK_SIZE, piece.getBlockLength(block), !mRequests.isEmpty());
+			debug(String.format(" requesting piece %d from %d to %d: " + mPeer, request.index, request.offset, request.offset + request.length));
+
+			if (mRequests.isEmpty()) {
+				scheduleRequestTimeout();
+				if (mWaitingSince == 0) {
+					mWaitingSince = System.currentTimeMillis();
 				}
+			}
+			mRequests.add(request);
+			sendRequest(request.index, request.offset, request.length);
+		}
 
-				debug(String.format(" requesting piece %d from %d to %d: " + mPeer, mCurrentRequestIndex, mCurrentRequestOffset, mCurrentRequestOffset + mCurrentRequestLength));
+		if (mRequests.isEmpty()) {
+			mWaitingSince = 0;
+		}
+	}
 
-				sendRequest(mCurrentRequestIndex, mCurrentRequestOffset, mCurrentRequestLength);
-			} else {
-				debug("Can't request, nothing needed: " + mPeer);
+	/**
+	 * @return a piece being downloaded that still has blocks to request,
+	 *         or a new one if there are none; null if nothing is needed
+	 */
+	private PieceDownload getPieceToRequest() {
+		for (PieceDownload piece : mDownloads) {
+			if (piece.nextBlock() != -1) {
+				return piece;
+			}
+		}
+
+		int index = getNeededPiece();
+		if (index == -1) {
+			return null;
+		}
+
+		PieceDownload piece = new PieceDownload(index, mFileManager.getPieceSize(index));
+		mDownloads.add(piece);
+		return piece;
+	}
+
+	private PieceDownload getDownload(int index) {
+		for (PieceDownload piece : mDownloads) {
+			if (piece.index == index) {
+				return piece;
 			}
 		}
+		return null;
 	}
 
-	private void sendPiece(int index, int offset, int length) {
+	/**
+	 * @return the outstanding request for this block, removed, or null
+	 */
+	private BlockRequest removeRequest(int index, int offset) {
+		for (Iterator<BlockRequest> it = mRequests.iterator(); it.hasNext();) {
+			BlockRequest request = it.next();
+			if (request.index == index && request.offset == offset) {
+				it.remove();
+				return request;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Give up if no block arrives in time; must hold mRequestLock
+	 */
+	private void scheduleRequestTimeout() {
+		final int generation = ++mRequestTimeoutGeneration;
+		mRequestTimeout = mTimer.schedule(new Runnable() {
+			public void run() {
+				runOnSender(new Runnable() {
+					public void run() {
+						requestTimedOut(generation);
+					}
+				});
+			}
+		}, REQUEST_TIMEOUT);
+	}
+
+	/**
+	 * Run on the sender thread once the timer fires: cancel every
+	 * outstanding block and hand the pieces back so other peers can
+	 * download them, then start again with a small request window
+	 */
+	private void requestTimedOut(int generation) {
+		synchronized (mRequestLock) {
+			// A block arrived, or the requests were dropped, since it fired
+			if (generation != mRequestTimeoutGeneration || !isActive() || mRequests.isEmpty()) {
+				return;
+			}
+
+			debug("Requests timed out: " + mPeer);
+			cancelRequests();
+			releasePieces();
+			mWindow.timedOut();
+			fillRequests();
+		}
+	}
+
+	/**
+	 * Take back every outstanding request; must hold mRequestLock
+	 */
+	private void cancelRequests() {
+		for (BlockRequest request : mRequests) {
+			sendCancel(request.index, request.offset, request.length);
+		}
+		forgetRequests();
+	}
+
+	/**
+	 * Drop every outstanding request without telling the peer,
+	 * such as when it chokes us; must hold mRequestLock
+	 */
+	private void forgetRequests() {
+		for (BlockRequest request : mRequests) {
+			PieceDownload piece = getDownload(request.index);
+			if (piece != null) {
+				piece.requested[request.offset / RequestWindow.BLOCK_SIZE] = false;
+			}
+		}
+		mRequests.clear();
+		cancelRequestTimeout();
+	}
+
+	/**
+	 * Stop downloading every piece, throwing away what has arrived
+	 * so far, and let other peers download them; must hold mRequestLock
+	 */
+	private void releasePieces() {
+		forgetRequests();
+
+		for (PieceDownload piece : mDownloads) {
+			mFileManager.setPieceDownloading(piece.index, false);
+		}
+		mDownloads.clear();
+	}
+
+	/**
+	 * Must hold mRequestLock
+	 */
+	private void cancelRequestTimeout() {
+		mRequestTimeoutGeneration++;
+		WheelTimer.Timeout timeout = mRequestTimeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+
+	/**
+	 * Run by the timer: keep the connection alive from our side, and
+	 * close it if the peer has gone quiet. Anything that writes to the
+	 * socket or takes mRequestLock is handed to the sender thread, so
+	 * that one stuck peer can't hold up every other timeout.
+	 */
+	private void checkIdle() {
+		if (!isActive()) {
+			// Closed before this was first scheduled
+			mIdleTimeout.cancel();
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+
+		if (now - mLastReceived >= IDLE_TIMEOUT) {
+			System.out.println("Dropping idle peer " + mPeer);
+			closeConnection();
+			return;
+		}
+
+		if (now - mLastSent >= KEEP_ALIVE_INTERVAL) {
+			sendKeepAlive();
+		}
+
+		if (mBeingChoked && now - mChokedAt >= CHOKED_PIECE_TIMEOUT) {
+			runOnSender(new Runnable() {
+				public void run() {
+					synchronized (mRequestLock) {
+						// Still choked, so let other peers finish our pieces
+						if (mBeingChoked && !mDownloads.isEmpty()) {
+							debug("Giving up pieces while choked by " + mPeer);
+							releasePieces();
+						}
+					}
+				}
+			});
+		}
+
+		// Only time spent waiting on our requests counts
+		long waitingSince = mWaitingSince;
+		if (!mSnubbed && !mBeingChoked && waitingSince != 0 && now - waitingSince >= SNUB_TIMEOUT) {
+			System.out.println("Snubbed by " + mPeer);
+			mSnubbed = true;
+			runOnSender(new Runnable() {
+				public void run() {
+					synchronized (mRequestLock) {
+						// Unless the peer unchoked us again in the meantime
+						if (mSnubbed) {
+							cancelRequests();
+							releasePieces();
+							mWindow.timedOut();
+							mWaitingSince = 0;
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Have the sender thread do some work before any queued messages
+	 */
+	private void runOnSender(Runnable task) {
+		if (isActive()) {
+			mSendQueue.addFirst(task);
+		}
+	}
+
+	private void sendPiece(final int index, final int offset, final int length) {
 		debug(String.format(" sending piece %d from %d to %d: " + mPeer, index, offset, offset + length));
+		mQueuedUploads.incrementAndGet();
+
+		// The block is read on the disk thread, which hands it to
+		// the sender thread rather than writing to the socket itself
+		boolean queued = mFileManager.readBlockForUpload(index, offset, length, new DiskIO.Callback() {
+			public void onComplete(DiskIO.Job job) {
+				// If the block couldn't be read, send no bytes for the data
+				queueBlock(index, offset, (job.error == null) ? (job.data) : (new byte[0]));
+			}
+		});
 
-		byte[] piece = mFileManager.getPieceForUpload(index);
+		if (!queued) {
+			// If we don't have this piece, send no bytes for the data
+			queueBlock(index, offset, new byte[0]);
+		}
+	}
 
-		// If we don't have this piece, send no bytes for the data
-		piece = (piece == null) ? (new byte[0]) : (Arrays.copyOfRange(piece, offset, offset + length));
+	/**
+	 * Have the sender thread send a block the peer asked for, once the
+	 * upload limit allows it; only the sender thread waits for the limit,
+	 * so data from the peer is still read in the meantime
+	 */
+	private void queueBlock(int index, int offset, byte[] block) {
+		// A choke dropped the request while the block was being read
+		if (!isActive() || mChoking) {
+			mQueuedUploads.decrementAndGet();
+			return;
+		}
+		mSendQueue.add(new Upload(index, offset, block));
+	}
 
-		byte[] message = PeerMessage.makePiece(index, offset, piece);
+	/**
+	 * A block waiting for the sender thread
+	 */
+	private class Upload implements Runnable {
+		private int mIndex;
+		private int mOffset;
+		private byte[] mBlock;
+
+		public Upload(int index, int offset, byte[] block) {
+			mIndex = index;
+			mOffset = offset;
+			mBlock = block;
+		}
 
-		try {
+		public void run() {
+			mUploadLimit.consume(mBlock.length);
+			mQueuedUploads.decrementAndGet();
+			try {
+				writeMessage(PeerMessage.makePiece(mIndex, mOffset, mBlock));
+				addBytesSent(mBlock.length);
+				mTransferred = true;
+			} catch (IOException e) {
+				closeConnection();
+			}
+		}
+	}
+
+	/**
+	 * Have the sender thread write a message, so that the caller never
+	 * waits on the socket
+	 * 
+	 * @return false if the connection is closed
+	 */
+	private boolean send(final byte[] message) {
+		if (!isActive()) {
+			return false;
+		}
+
+		mSendQueue.add(new Runnable() {
+			public void run() {
+				try {
+					writeMessage(message);
+				} catch (IOException e) {
+					closeConnection();
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Write a message to the peer, so all writes to the socket go through
+	 * here: the handshake, before the sender thread starts; requests and
+	 * cancels, from the connection's own threads that hold mRequestLock;
+	 * and everything else from the sender thread
+	 */
+	private void writeMessage(byte[] message) throws IOException {
+		synchronized (mDataOut) {
 			mDataOut.write(message);
 			mDataOut.flush();
-		} catch (Exception e) {
 		}
+		mLastSent = System.currentTimeMillis();
 	}
 
 	/**
@@ -362,18 +1305,37 @@ public class PeerConnection {
 	 * @return if the handshake seemed successful
 	 */
 	public boolean doHandshake() {
+		return doHandshake(20000);
+	}
+
+	/**
+	 * Make a handshake with the peer: send handshake, and parse other's
+	 * handshake
+	 * 
+	 * @param timeout
+	 *            milliseconds to wait for the other's handshake
+	 * @return if the handshake seemed successful
+	 */
+	public boolean doHandshake(int timeout) {
 		try {
 			sendHandshake();
+			mSocket.setSoTimeout(timeout);
 
 			byte[] response = new byte[68];
 			mDataIn.readFully(response);
 
 			byte[] responseInfoHash = Arrays.copyOfRange(response, 28, 48);
+			mExtensionsSupported = PeerMessage.supportsExtensions(response);
+
+			// Trackers don't always give peer IDs, so remember the real one
+			if (mPeer.getPeerID() == null) {
+				mPeer.setPeerID(new String(Arrays.copyOfRange(response, 48, 68)));
+			}
 
 			return Arrays.equals(mInfoHash.array(), responseInfoHash);
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			debug("Handshake with " + mPeer + " failed: " + e);
 		}
 
 		return false;
@@ -385,9 +1347,7 @@ public class PeerConnection {
 	public void sendHandshake() {
 		debug(" sending handshake: " + mPeer);
 		try {
-			mSocket.setSoTimeout(20000);
-			mDataOut.write(PeerMessage.makeHandshake());
-			mDataOut.flush();
+			writeMessage(PeerMessage.makeHandshake(mExtensions != null));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -398,19 +1358,10 @@ public class PeerConnection {
 	 * 
 	 * @param index
 	 *            the index of the piece
-	 * @return true if successful
+	 * @return false if the connection is closed
 	 */
 	public boolean sendHave(int index) {
-		try {
-			mSocket.setSoTimeout(20000);
-			mDataOut.write(PeerMessage.makeHave(index));
-			mDataOut.flush();
-			return true;
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-
-		return false;
+		return send(PeerMessage.makeHave(index));
 	}
 
 	/**
@@ -418,16 +1369,16 @@ public class PeerConnection {
 	 * 
 	 * @param index
 	 *            index of the piece to be checked
-	 * @param length
-	 *            how much of the piece should be hashed
+	 * @param bytes
+	 *            the whole piece
 	 * @return true if the hash matches
 	 */
-	private boolean checkPieceHash(int index, int length) {
+	private boolean checkPieceHash(int index, byte[] bytes) {
 		try {
 			byte[] pieceHash = new byte[20];
 			MessageDigest md = MessageDigest.getInstance("SHA-1");
 
-			pieceHash = md.digest(Arrays.copyOfRange(mCurrentPieceBytes, 0, length));
+			pieceHash = md.digest(bytes);
 
 			return Arrays.equals(pieceHash, mPieceHashes[index].array());
 
@@ -449,8 +1400,18 @@ public class PeerConnection {
 	 */
 	private void sendRequest(int index, int offset, int length) {
 		try {
-			mDataOut.write(PeerMessage.makeRequest(index, offset, length));
-			mDataOut.flush();
+			writeMessage(PeerMessage.makeRequest(index, offset, length));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Take back a request for data
+	 */
+	private void sendCancel(int index, int offset, int length) {
+		try {
+			writeMessage(PeerMessage.makeCancel(index, offset, length));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -463,42 +1424,31 @@ public class PeerConnection {
 	 */
 	public void sendInterested() {
 		debug(" sending interested: " + mPeer);
-
-		try {
-			mSocket.setSoTimeout(20000);
-			mDataOut.write(PeerMessage.makeInterested());
-			mDataOut.flush();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		send(PeerMessage.makeInterested());
 	}
 
 	/**
 	 * Send a blank, keepalive message
 	 */
 	public void sendKeepAlive() {
-		try {
-			mOut.write(PeerMessage.makeKeepAlive());
-			mOut.flush();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		send(PeerMessage.makeKeepAlive());
 	}
 
 	/**
-	 * Send a choking message
+	 * Send a choking message; the peer forgets its requests
+	 * once choked, so blocks still queued for it are dropped
 	 */
 	public void sendChoking() {
 		debug(" sending choking: " + mPeer);
 
-		try {
-			mOut.write(PeerMessage.makeChoking());
-			mOut.flush();
-		} catch (Exception e) {
-			if (!e.getMessage().contains("Socket closed")) {
-				e.printStackTrace();
+		mChoking = true;
+		for (Iterator<Runnable> it = mSendQueue.iterator(); it.hasNext();) {
+			if (it.next() instanceof Upload) {
+				it.remove();
+				mQueuedUploads.decrementAndGet();
 			}
 		}
+		send(PeerMessage.makeChoking());
 	}
 
 	/**
@@ -507,40 +1457,167 @@ public class PeerConnection {
 	public void sendNotChoking() {
 		debug(" sending not choking: " + mPeer);
 
-		try {
-			mOut.write(PeerMessage.makeNotChoking());
-			mOut.flush();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		mChoking = false;
+		send(PeerMessage.makeNotChoking());
 	}
 
 	/**
 	 * @return number of bytes received from this peer
 	 */
-	public int getBytesReceived() {
+	public synchronized int getBytesReceived() {
 		return mBytesReceived;
 	}
 
 	/**
 	 * @return number of bytes sent to this peer
 	 */
-	public int getBytesSent() {
+	public synchronized int getBytesSent() {
 		return mBytesSent;
 	}
 
+	private synchronized void addBytesReceived(int bytes) {
+		mBytesReceived += bytes;
+	}
+
+	private synchronized void addBytesSent(int bytes) {
+		mBytesSent += bytes;
+	}
+
 	/**
 	 * Reset the number of bytes sent to and received from this peer
 	 */
-	public void resetBytesSentAndReceived() {
+	public synchronized void resetBytesSentAndReceived() {
 		mBytesReceived = 0;
 		mBytesSent = 0;
 	}
 
 	/**
-	 * Change the if statement to show debug messages
+	 * Fold the bytes transferred since the last call into the rolling
+	 * rates, then start counting again
+	 * 
+	 * @param elapsed
+	 *            milliseconds since the last call
+	 */
+	public synchronized void updateRates(long elapsed) {
+		if (elapsed <= 0) {
+			return;
+		}
+
+		// Weight the latest period equally with everything before it
+		mDownloadRate = (mDownloadRate + mBytesReceived * 1000d / elapsed) / 2;
+		mUploadRate = (mUploadRate + mBytesSent * 1000d / elapsed) / 2;
+
+		resetBytesSentAndReceived();
+	}
+
+	/**
+	 * @return rolling rate of data received from this peer, in bytes per second
+	 */
+	public synchronized double getDownloadRate() {
+		return mDownloadRate;
+	}
+
+	/**
+	 * @return rolling rate of data sent to this peer, in bytes per second
+	 */
+	public synchronized double getUploadRate() {
+		return mUploadRate;
+	}
+
+	/**
+	 * Change this connection's own limits
+	 * 
+	 * @param downloadRate
+	 *            bytes per second, 0 for unlimited
+	 * @param uploadRate
+	 *            bytes per second, 0 for unlimited
+	 */
+	public void setRateLimits(long downloadRate, long uploadRate) {
+		mDownloadLimit.setRate(downloadRate);
+		mUploadLimit.setRate(uploadRate);
+	}
+
+	/**
+	 * @return smoothed time from a request to the first byte
+	 *         of its block arriving, in milliseconds
+	 */
+	public double getRoundTripTime() {
+		return mWindow.getRoundTripTime();
+	}
+
+	/**
+	 * @return rate that requested blocks arrive, in bytes per second
+	 */
+	public double getDeliveryRate() {
+		return mWindow.getDeliveryRate();
+	}
+
+	/**
+	 * @return how many requests may be outstanding
+	 */
+	public int getRequestWindow() {
+		return mWindow.getWindow();
+	}
+
+	/**
+	 * @return how many requests are outstanding
+	 */
+	public int getOutstandingRequests() {
+		synchronized (mRequestLock) {
+			return mRequests.size();
+		}
+	}
+
+	/**
+	 * @return the request window's measurements, for diagnostics
+	 */
+	public String getRequestStats() {
+		return String.format("%d outstanding, %s", getOutstandingRequests(), mWindow);
+	}
+
+	/**
+	 * @return if the peer has unchoked us but stopped sending data
+	 */
+	public boolean isSnubbed() {
+		return mSnubbed;
+	}
+
+	/**
+	 * @return if the other peer wants data from us
+	 */
+	public boolean isOtherInterested() {
+		return mOtherInterested;
+	}
+
+	/**
+	 * @return if we are choking the other peer
+	 */
+	public boolean isChoking() {
+		return mChoking;
+	}
+
+	/**
+	 * Choke or unchoke the other peer, only
+	 * sending a message if that changes anything
+	 */
+	public void setChoking(boolean choking) {
+		if (choking == mChoking) {
+			return;
+		}
+
+		mChoking = choking;
+		if (choking) {
+			sendChoking();
+		} else {
+			sendNotChoking();
+		}
+	}
+
+	/**
+	 * Change the if statement to show debug messages; also
+	 * used for the PeerManager's per-message logging
 	 */
-	private void debug(String s) {
+	static void debug(String s) {
 		if (DEBUG) {
 			System.out.println(s);
 		}
@@ -0,0 +1,186 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to many peers at once. Each attempt runs on a pool
+ * thread with connect and handshake timeouts, and the number of
+ * attempts in progress (half-open connections) is limited.
+ * Results are reported to a Listener.
+ */
+public class PeerConnector {
+
+	/**
+	 * Default milliseconds to wait for a peer to accept a connection
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * Default milliseconds to wait for a peer's handshake
+	 */
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+
+	/**
+	 * Default number of connection attempts in progress at once
+	 */
+	public static final int DEFAULT_HALF_OPEN_LIMIT = 16;
+
+	/**
+	 * Told the outcome of each connection attempt,
+	 * on the thread that made the attempt
+	 */
+	public interface Listener {
+		/**
+		 * The peer connected and handshook; the connection is not started
+		 */
+		public void onConnected(PeerConnection connection);
+
+		/**
+		 * The peer could not be reached, or didn't handshake properly
+		 * 
+		 * @param handshake
+		 *            true if connected but the handshake failed
+		 */
+		public void onFailed(PeerInfo peer, boolean handshake);
+	}
+
+	private Listener mListener;
+
+	private int mConnectTimeout;
+	private int mHandshakeTimeout;
+
+	/**
+	 * Permits for attempts in progress
+	 */
+	private Semaphore mHalfOpen;
+
+	/**
+	 * Addresses of peers being connected to
+	 */
+	private Set<String> mPending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private ExecutorService mExecutor;
+
+	public PeerConnector(Listener listener, int halfOpenLimit, int connectTimeout, int handshakeTimeout) {
+		mListener = listener;
+		mConnectTimeout = connectTimeout;
+		mHandshakeTimeout = handshakeTimeout;
+		mHalfOpen = new Semaphore(halfOpenLimit);
+
+		mExecutor = Executors.newFixedThreadPool(halfOpenLimit, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "PeerConnector");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start connecting to a peer, if there is room for another attempt
+	 * and it isn't already being connected to
+	 * 
+	 * @return true if an attempt was started
+	 */
+	public boolean connect(final PeerInfo peer) {
+		final String address = peer.getIP() + ":" + peer.getPort();
+
+		if (!mHalfOpen.tryAcquire()) {
+			return false;
+		}
+
+		if (!mPending.add(address)) {
+			mHalfOpen.release();
+			return false;
+		}
+
+		Runnable attempt = new Runnable() {
+			public void run() {
+				PeerConnection connection = null;
+				boolean connected = false;
+				boolean handshook = false;
+
+				try {
+					connection = new PeerConnection(peer);
+					connection.connect(mConnectTimeout);
+					connected = true;
+					handshook = connection.doHandshake(mHandshakeTimeout);
+				} catch (Exception e) {
+				}
+
+				// Free the slot first so the listener can start another attempt,
+				// but keep this peer pending until it has been dealt with
+				mHalfOpen.release();
+				try {
+					if (handshook) {
+						mListener.onConnected(connection);
+					} else {
+						if (connected) {
+							connection.closeConnection();
+						}
+						mListener.onFailed(peer, connected);
+					}
+				} finally {
+					mPending.remove(address);
+				}
+			}
+		};
+
+		try {
+			mExecutor.execute(attempt);
+		} catch (RejectedExecutionException e) {
+			// Stopped, so no more attempts are started
+			mPending.remove(address);
+			mHalfOpen.release();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return if this peer is being connected to
+	 */
+	public boolean isPending(PeerInfo peer) {
+		return mPending.contains(peer.getIP() + ":" + peer.getPort());
+	}
+
+	/**
+	 * @return the number of attempts in progress
+	 */
+	public int getPendingCount() {
+		return mPending.size();
+	}
+
+	/**
+	 * @return if another attempt could be started now
+	 */
+	public boolean hasCapacity() {
+		return mHalfOpen.availablePermits() > 0;
+	}
+
+	/**
+	 * Stop starting attempts, and give those in progress a moment to finish
+	 */
+	public void stop() {
+		mExecutor.shutdown();
+		try {
+			mExecutor.awaitTermination(mConnectTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		}
+	}
+
+}
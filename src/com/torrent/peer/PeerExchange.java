@@ -0,0 +1,264 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.torrent.util.Bencoder2;
+import com.torrent.util.BencodingException;
+
+/**
+ * Peer exchange (ut_pex): every minute, each connected peer that
+ * supports it is told which peers we connected to or dropped since we
+ * last told it, and peers it tells us about are passed to the Listener.
+ * Only IPv4 peers are exchanged.
+ */
+public class PeerExchange implements Extension {
+
+	/**
+	 * Told about the peers other peers sent us
+	 */
+	public interface Listener {
+		public void onPeers(PeerConnection from, List<PeerInfo> peers);
+	}
+
+	public static final String NAME = "ut_pex";
+
+	/**
+	 * Messages aren't sent to a peer more often than this, and ones
+	 * arriving much more often are ignored
+	 */
+	public static final long INTERVAL = 60 * 1000;
+	private static final long MIN_RECEIVE_INTERVAL = INTERVAL / 2;
+
+	/**
+	 * Most peers added or dropped in one message
+	 */
+	private static final int MAX_PEERS = 50;
+
+	/**
+	 * Flag of a peer that accepts connections, as it does
+	 * when we connected to it
+	 */
+	private static final byte FLAG_REACHABLE = 0x10;
+
+	private static class Keys {
+		public static final ByteBuffer ADDED = ByteBuffer.wrap("added".getBytes());
+		public static final ByteBuffer ADDED_FLAGS = ByteBuffer.wrap("added.f".getBytes());
+		public static final ByteBuffer DROPPED = ByteBuffer.wrap("dropped".getBytes());
+	}
+
+	/**
+	 * What we know of each peer that supports peer exchange
+	 */
+	private static class Exchange {
+		/**
+		 * The port the peer takes connections on, from its
+		 * extended handshake, or 0 if it didn't say
+		 */
+		public int port = 0;
+
+		/**
+		 * The peers we've told it about, in the compact format
+		 */
+		public Set<ByteBuffer> sent = new HashSet<ByteBuffer>();
+
+		/**
+		 * 0 until the first message, which is sent at the next round
+		 */
+		public long lastSent = 0;
+		public long lastReceived = 0;
+	}
+
+	private final Map<PeerConnection, Exchange> mExchanges = new ConcurrentHashMap<PeerConnection, Exchange>();
+
+	private volatile Listener mListener;
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	public String getName() {
+		return NAME;
+	}
+
+	public void onHandshake(PeerConnection connection, Map<?, ?> handshake) {
+		Exchange exchange = mExchanges.get(connection);
+		if (exchange == null) {
+			exchange = new Exchange();
+			mExchanges.put(connection, exchange);
+		}
+
+		Object port = handshake.get(ExtensionRegistry.Keys.PORT);
+		if (port instanceof Integer && (Integer) port > 0 && (Integer) port <= 0xFFFF) {
+			synchronized (exchange) {
+				exchange.port = (Integer) port;
+			}
+		}
+	}
+
+	public void onMessage(PeerConnection connection, byte[] payload) throws IOException {
+		Exchange exchange = mExchanges.get(connection);
+		if (exchange == null) {
+			return;
+		}
+
+		// Ignore a peer flooding us, rather than let it fill our candidates
+		synchronized (exchange) {
+			long now = System.currentTimeMillis();
+			if (now - exchange.lastReceived < MIN_RECEIVE_INTERVAL) {
+				return;
+			}
+			exchange.lastReceived = now;
+		}
+
+		Object added;
+		try {
+			Object message = Bencoder2.decode(payload);
+			added = (message instanceof Map) ? (((Map<?, ?>) message).get(Keys.ADDED)) : (null);
+		} catch (Exception e) {
+			throw new IOException("Bad peer exchange message from " + connection.getPeerInfo() + ": " + e);
+		}
+
+		if (!(added instanceof ByteBuffer) || mListener == null) {
+			return;
+		}
+
+		ByteBuffer compact = (ByteBuffer) added;
+		int length = Math.min(compact.remaining(), MAX_PEERS * PeerInfo.COMPACT_LENGTH);
+		List<PeerInfo> peers = PeerInfo.fromCompact(compact.array(), compact.arrayOffset() + compact.position(), length);
+		if (!peers.isEmpty()) {
+			mListener.onPeers(connection, peers);
+		}
+	}
+
+	public void onDisconnected(PeerConnection connection) {
+		mExchanges.remove(connection);
+	}
+
+	/**
+	 * Tell each peer that supports peer exchange, and hasn't been told
+	 * anything for INTERVAL, how our connections changed since
+	 *
+	 * @param connections
+	 *            every peer we're connected to
+	 */
+	public void sendRound(List<PeerConnection> connections) {
+		// Every connected peer others could connect to, and its flags
+		Map<ByteBuffer, Byte> connected = new HashMap<ByteBuffer, Byte>();
+		for (PeerConnection connection : connections) {
+			byte[] compact = getCompact(connection);
+			if (compact != null) {
+				connected.put(ByteBuffer.wrap(compact), connection.isIncoming() ? (byte) 0 : FLAG_REACHABLE);
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		for (PeerConnection connection : connections) {
+			Exchange exchange = mExchanges.get(connection);
+			if (exchange == null) {
+				continue;
+			}
+
+			byte[] message;
+			synchronized (exchange) {
+				if (now - exchange.lastSent < INTERVAL) {
+					continue;
+				}
+				message = makeMessage(exchange, connected, getCompact(connection));
+				exchange.lastSent = now;
+			}
+
+			if (message != null) {
+				connection.sendExtended(NAME, message);
+			}
+		}
+	}
+
+	/**
+	 * @return the bencoded changes since the peer was last told, or null
+	 *         if nothing changed; what's sent is then remembered as told
+	 */
+	private static byte[] makeMessage(Exchange exchange, Map<ByteBuffer, Byte> connected, byte[] self) {
+		ByteBuffer added = ByteBuffer.allocate(MAX_PEERS * PeerInfo.COMPACT_LENGTH);
+		ByteBuffer addedFlags = ByteBuffer.allocate(MAX_PEERS);
+		ByteBuffer dropped = ByteBuffer.allocate(MAX_PEERS * PeerInfo.COMPACT_LENGTH);
+		ByteBuffer ourself = (self != null) ? (ByteBuffer.wrap(self)) : (null);
+
+		for (Map.Entry<ByteBuffer, Byte> peer : connected.entrySet()) {
+			if (!addedFlags.hasRemaining()) {
+				break;
+			}
+			if (!peer.getKey().equals(ourself) && exchange.sent.add(peer.getKey())) {
+				added.put(peer.getKey().array());
+				addedFlags.put(peer.getValue());
+			}
+		}
+
+		for (ByteBuffer peer : new HashSet<ByteBuffer>(exchange.sent)) {
+			if (!dropped.hasRemaining()) {
+				break;
+			}
+			if (!connected.containsKey(peer)) {
+				exchange.sent.remove(peer);
+				dropped.put(peer.array());
+			}
+		}
+
+		if (added.position() == 0 && dropped.position() == 0) {
+			return null;
+		}
+
+		HashMap<ByteBuffer, Object> message = new HashMap<ByteBuffer, Object>();
+		message.put(Keys.ADDED, ByteBuffer.wrap(copy(added)));
+		message.put(Keys.ADDED_FLAGS, ByteBuffer.wrap(copy(addedFlags)));
+		message.put(Keys.DROPPED, ByteBuffer.wrap(copy(dropped)));
+		try {
+			return Bencoder2.encode(message);
+		} catch (BencodingException e) {
+			// Only ever given strings
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the address others can reach the peer at, in the compact
+	 *         format, or null if we don't know its listening port
+	 */
+	private byte[] getCompact(PeerConnection connection) {
+		PeerInfo peer = connection.getPeerInfo();
+		if (!connection.isIncoming()) {
+			return peer.toCompact();
+		}
+
+		// An incoming connection comes from a port it doesn't listen on
+		Exchange exchange = mExchanges.get(connection);
+		if (exchange == null) {
+			return null;
+		}
+
+		int port;
+		synchronized (exchange) {
+			port = exchange.port;
+		}
+		return (port > 0) ? (new PeerInfo(peer.getIP(), port, null).toCompact()) : (null);
+	}
+
+	private static byte[] copy(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,29 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+/**
+ * Decides which peers may be connected to or accepted,
+ * whatever source they came from
+ */
+public interface PeerFilter {
+
+	/**
+	 * @param ip
+	 *            the peer's address
+	 * @return true if the peer may be used
+	 */
+	public boolean isAllowed(String ip);
+
+	/**
+	 * @param peer
+	 *            the peer, which may only have a numeric address so far
+	 * @return true if the peer may be used
+	 */
+	public boolean isAllowed(PeerInfo peer);
+
+}
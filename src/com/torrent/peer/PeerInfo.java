@@ -6,11 +6,49 @@
 
 package com.torrent.peer;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import com.torrent.util.IpRangeSet;
+
 public class PeerInfo {
+
+	/**
+	 * Bytes per peer in the compact format: a 4 byte IPv4
+	 * address and a 2 byte port, both big-endian
+	 */
+	public static final int COMPACT_LENGTH = 6;
+
+	/**
+	 * Where we heard of a peer
+	 */
+	public enum Source {
+		TRACKER, DHT, PEX,
+		/**
+		 * It connected to us
+		 */
+		INCOMING,
+		/**
+		 * The PeerTable remembered it doing well before
+		 */
+		HISTORY
+	}
 	
 	private String mIP;
 	private int mPort;
 	private String mPeerID;
+
+	/**
+	 * The IPv4 address, for peers read from the compact format;
+	 * mIP is only built from it when it's asked for
+	 */
+	private int mAddress;
+	private boolean mHasAddress = false;
+
+	/**
+	 * Where we first heard of the peer, null if not yet known
+	 */
+	private Source mSource;
 	
 	public PeerInfo(){
 		
@@ -21,13 +59,73 @@ public class PeerInfo {
 		mPort = port;
 		mPeerID = peerId;
 	}
+
+	/**
+	 * @param address
+	 *            an IPv4 address
+	 */
+	public PeerInfo(int address, int port){
+		mAddress = address;
+		mHasAddress = true;
+		mPort = port;
+	}
+
+	/**
+	 * Read peers in the compact format that trackers (BEP 23) and
+	 * other peers use, six bytes each; any trailing partial entry is ignored
+	 */
+	public static List<PeerInfo> fromCompact(byte[] bytes, int offset, int length){
+		List<PeerInfo> peers = new ArrayList<PeerInfo>(length / COMPACT_LENGTH);
+
+		for(int i = offset; i + COMPACT_LENGTH <= offset + length; i += COMPACT_LENGTH){
+			int address = ((bytes[i] & 0xff) << 24) | ((bytes[i + 1] & 0xff) << 16) | ((bytes[i + 2] & 0xff) << 8) | (bytes[i + 3] & 0xff);
+			int port = ((bytes[i + 4] & 0xff) << 8) | (bytes[i + 5] & 0xff);
+
+			// Port 0 can't be connected to
+			if(port != 0){
+				peers.add(new PeerInfo(address, port));
+			}
+		}
+
+		return peers;
+	}
+
+	/**
+	 * @return this peer in the compact format, or null
+	 *         if it doesn't have an IPv4 address
+	 */
+	public byte[] toCompact(){
+		long address = getAddress();
+		if(address < 0){
+			return null;
+		}
+
+		return new byte[] { (byte) (address >> 24), (byte) (address >> 16), (byte) (address >> 8), (byte) address,
+				(byte) (mPort >> 8), (byte) mPort };
+	}
 	
-	public String getIP() {
+	public synchronized String getIP() {
+		if(mIP == null && mHasAddress){
+			mIP = ((mAddress >>> 24) & 0xff) + "." + ((mAddress >>> 16) & 0xff) + "." + ((mAddress >>> 8) & 0xff) + "." + (mAddress & 0xff);
+		}
 		return mIP;
 	}
 
-	public void setIP(String mIP) {
+	public synchronized void setIP(String mIP) {
 		this.mIP = mIP;
+		mHasAddress = false;
+	}
+
+	/**
+	 * @return the IPv4 address as an unsigned number,
+	 *         or -1 if this peer doesn't have one
+	 */
+	public synchronized long getAddress() {
+		if(mHasAddress){
+			return mAddress & 0xffffffffL;
+		}
+
+		return (mIP == null) ? (-1) : (IpRangeSet.parse(mIP, 0, mIP.length()));
 	}
 
 	public String getPeerID() {
@@ -45,10 +143,23 @@ public class PeerInfo {
 	public void setPort(int mPort) {
 		this.mPort = mPort;
 	}
+
+	public synchronized Source getSource() {
+		return mSource;
+	}
+
+	/**
+	 * Remember where the peer came from, unless that's already known
+	 */
+	public synchronized void setSource(Source source) {
+		if(mSource == null){
+			mSource = source;
+		}
+	}
 	
 	@Override
 	public String toString(){
-		return mPeerID + " @ " + mIP + ":" + mPort;
+		return mPeerID + " @ " + getIP() + ":" + mPort;
 	}
 	
 }
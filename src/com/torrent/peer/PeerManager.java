@@ -8,13 +8,28 @@ package com.torrent.peer;
 
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import com.torrent.dht.DhtNode;
+import com.torrent.tracker.AnnounceList;
+import com.torrent.tracker.ScrapeInfo;
+import com.torrent.tracker.TrackerResponse;
 import com.torrent.tracker.TrackerUtil;
+import com.torrent.util.Config;
+import com.torrent.util.WheelTimer;
 
+/**
+ * Decides which peers to connect to, keep, and upload to. Everything
+ * that happens to the swarm - peers connecting and disconnecting, choke
+ * and interest changes, finished pieces, tracker and DHT answers - is posted as
+ * an Event, and a single event thread reacts to each one as it arrives.
+ * Periodic work is posted by the timer the same way.
+ */
 public class PeerManager {
 	
 	/**
@@ -22,18 +37,101 @@ public class PeerManager {
 	 * to determine which ones should be dropped
 	 */
 	private static final long MONITOR_INTERVAL = 30000;
-	
+
 	/**
-	 * Maximum number of peers that can 
-	 * be downloaded from simultaneously
+	 * Most peers remembered from the trackers; the oldest are forgotten first
 	 */
-	private static final int MAX_DOWNLOAD_PEERS = 3;
-	
+	private static final int MAX_AVAILABLE_PEERS = 1000;
+
+	/**
+	 * How often the DHT is asked for peers, and how soon
+	 * it may be asked again when we run out
+	 */
+	private static final long DHT_INTERVAL = 15 * 60 * 1000;
+	private static final long DHT_MIN_INTERVAL = 60 * 1000;
+
 	/**
-	 * Maximum number of peers that can 
-	 * be uploaded to simultaneously
+	 * An outgoing connection that exchanged blocks and lasted this long
+	 * was useful, and resets the peer's backoff when it ends; any other
+	 * counts as a failure, so the peer isn't redialed straight away
 	 */
-	private static final int MAX_UPLOAD_PEERS = 3;
+	private static final long MIN_USEFUL_LIFETIME = 60 * 1000;
+
+	/**
+	 * Something the event thread should react to
+	 */
+	private static class Event {
+		public enum Type {
+			/**
+			 * An outgoing or incoming connection is ready to be started
+			 */
+			CONNECTED,
+			/**
+			 * An outgoing connection or its handshake failed
+			 */
+			CONNECT_FAILED,
+			DISCONNECTED,
+			/**
+			 * A peer choked or unchoked us
+			 */
+			CHOKE_CHANGED,
+			/**
+			 * A peer became interested or not interested in our data
+			 */
+			INTEREST_CHANGED,
+			PIECE_COMPLETED,
+			/**
+			 * SmartBan banned an address; every connection from it is closed
+			 */
+			BANNED,
+			/**
+			 * A tier of trackers answered, or couldn't be reached
+			 */
+			TRACKER_RESPONSE,
+			/**
+			 * Check how big the swarm is, and the
+			 * answer, which may change how many peers we want
+			 */
+			SCRAPE,
+			SCRAPE_RESPONSE,
+			/**
+			 * Look the torrent up in the DHT, the peers it
+			 * found so far, and the end of the lookup
+			 */
+			DHT_LOOKUP,
+			DHT_PEERS,
+			DHT_FINISHED,
+			/**
+			 * Tell peers how our connections changed, and
+			 * the peers they told us about
+			 */
+			PEX_ROUND,
+			PEX_PEERS,
+			MONITOR,
+			CHOKE_ROUND,
+			/**
+			 * Stop the event thread
+			 */
+			STOP
+		}
+
+		public Type type;
+		public PeerConnection connection;
+		public PeerInfo peer;
+		public boolean handshake;
+		public int index;
+		public List<PeerInfo> peers;
+		public String ip;
+
+		public Event(Type type) {
+			this.type = type;
+		}
+
+		public Event(Type type, PeerConnection connection) {
+			this.type = type;
+			this.connection = connection;
+		}
+	}
 
 	/**
 	 * The Socket opened in PeerUtil to listen
@@ -50,52 +148,225 @@ public class PeerManager {
 	 * Whether or not to listen for and accept connections
 	 * on the TCP Socket
 	 */
-	private boolean mSocketListening = false;
+	private volatile boolean mSocketListening = false;
 	
 	/**
 	 * Whether or not to regularly check in with tracker
 	 * and get a new list of peers 
 	 */
-	private boolean mTrackerPolling = false;
+	private volatile boolean mTrackerPolling = false;
 	
 	/**
-	 * The thread that polls the tracker and shuffles
-	 * peers as needed
+	 * Fires every scrape TTL to check the swarm's size
 	 */
-	private Thread mTrackerThread;
-	
+	private WheelTimer.Timeout mScrapeTimeout;
+
 	/**
-	 * Whether or not to monitor the peers every 30 seconds
-	 * and continue allowing them to download / upload
+	 * Whether or not to manage peers; false once stopping
 	 */
-	private boolean mMonitorPeers = false;
+	private volatile boolean mMonitorPeers = false;
 	
 	/**
-	 * The thread that monitors the peers, stopping connections
-	 * to the slowest upload and download peer, and connects to new
-	 * peers
+	 * Fires every MONITOR_INTERVAL to stop connections to the
+	 * slowest peers and connect to new peers
 	 */
-	private Thread mMonitorThread;
-	
+	private WheelTimer.Timeout mMonitorTimeout;
+
+	/**
+	 * Schedules the tracker, monitor and choke work
+	 */
+	private WheelTimer mTimer;
+
 	/**
-	 * The list of peers returned by the tracker
+	 * Events waiting for the event thread
+	 */
+	private BlockingQueue<Event> mEvents = new LinkedBlockingQueue<Event>();
+
+	/**
+	 * Reacts to every event, one at a time, so that the
+	 * fields below need no locking of their own
+	 */
+	private Thread mEventThread;
+
+	/**
+	 * The peers the trackers and the DHT gave
 	 */
 	private List<PeerInfo> mAvailablePeers;
 	
 	/**
-	 * Peers that are currently connected to
+	 * Peers that are currently connected to; those we connected
+	 * to are downloaded from, those that connected to us are uploaded to
 	 */
-	private List<PeerConnection> mDownloadPeers, mUploadPeers;
+	private PeerRegistry mPeers;
+
+	/**
+	 * Keeps track of peers that have sent bad data
+	 */
+	private SmartBan mSmartBan;
+
+	/**
+	 * Decides which peers are uploaded to
+	 */
+	private Choker mChoker;
+
+	/**
+	 * Fires every Choker.ROUND_INTERVAL to run the Choker
+	 */
+	private WheelTimer.Timeout mChokeTimeout;
 	
 	
-	public PeerManager(ServerSocket socket) {
-		mSocket = socket;
+	/**
+	 * Makes outgoing connections in parallel
+	 */
+	private PeerConnector mConnector;
+	
+	/**
+	 * How peers have behaved in the past, which
+	 * decides which peers are connected to
+	 */
+	private PeerTable mPeerTable;
+
+	/**
+	 * Decides which addresses may be connected to or accepted
+	 */
+	private PeerFilter mPeerFilter;
+
+	/**
+	 * Finds peers without the trackers, may be null
+	 */
+	private DhtNode mDht;
+	private byte[] mInfoHash;
+	private int mPort;
+
+	/**
+	 * Fires every DHT_INTERVAL to look the torrent up in the DHT
+	 */
+	private WheelTimer.Timeout mDhtTimeout;
+
+	/**
+	 * When the last DHT lookup started, and whether it's still going
+	 */
+	private long mLastDhtLookup = 0;
+	private boolean mDhtLookupRunning = false;
+
+	/**
+	 * Swaps peers with the peers we're connected to, may be null
+	 */
+	private PeerExchange mPeerExchange;
+
+	/**
+	 * Fires every PeerExchange.INTERVAL to send peer exchange messages
+	 */
+	private WheelTimer.Timeout mPexTimeout;
+
+	/**
+	 * Posts everything that happens to a connection as an event
+	 */
+	private PeerConnection.Listener mConnectionListener = new PeerConnection.Listener() {
+		public void onDisconnected(PeerConnection connection) {
+			post(new Event(Event.Type.DISCONNECTED, connection));
+		}
+
+		public void onChokeChanged(PeerConnection connection) {
+			post(new Event(Event.Type.CHOKE_CHANGED, connection));
+		}
+
+		public void onInterestChanged(PeerConnection connection) {
+			post(new Event(Event.Type.INTEREST_CHANGED, connection));
+		}
+
+		public void onPieceCompleted(PeerConnection connection, int index) {
+			Event event = new Event(Event.Type.PIECE_COMPLETED, connection);
+			event.index = index;
+			post(event);
+		}
+	};
 	
-		mDownloadPeers = new ArrayList<PeerConnection>(3);
-		mUploadPeers = new ArrayList<PeerConnection>(3);
+	public PeerManager(ServerSocket socket, PeerRegistry peers, PeerTable peerTable, PeerFilter peerFilter, SmartBan smartBan, Choker choker, WheelTimer timer) {
+		mSocket = socket;
+		mTimer = timer;
+		mPeers = peers;
+		mPeerTable = peerTable;
+		mPeerFilter = peerFilter;
+		mSmartBan = smartBan;
+		mChoker = choker;
+
+		mSmartBan.setListener(new SmartBan.Listener() {
+			public void onBanned(String ip) {
+				Event event = new Event(Event.Type.BANNED);
+				event.ip = ip;
+				post(event);
+			}
+		});
+
+		mConnector = new PeerConnector(new PeerConnector.Listener() {
+			public void onConnected(PeerConnection connection) {
+				post(new Event(Event.Type.CONNECTED, connection));
+			}
+
+			public void onFailed(PeerInfo peer, boolean handshake) {
+				Event event = new Event(Event.Type.CONNECT_FAILED);
+				event.peer = peer;
+				event.handshake = handshake;
+				post(event);
+			}
+		}, Config.getInt("halfopen", PeerConnector.DEFAULT_HALF_OPEN_LIMIT),
+				Config.getInt("connecttimeout", PeerConnector.DEFAULT_CONNECT_TIMEOUT),
+				Config.getInt("handshaketimeout", PeerConnector.DEFAULT_HANDSHAKE_TIMEOUT));
+	}
+
+	/**
+	 * Also find peers through the DHT, announcing that we take
+	 * connections on the given port; call before start()
+	 */
+	public void setDht(DhtNode dht, byte[] infoHash, int port) {
+		mDht = dht;
+		mInfoHash = infoHash;
+		mPort = port;
+	}
+
+	/**
+	 * Also find peers through peer exchange, which must be registered
+	 * with the connections' ExtensionRegistry; call before start()
+	 */
+	public void setPeerExchange(PeerExchange peerExchange) {
+		mPeerExchange = peerExchange;
+		mPeerExchange.setListener(new PeerExchange.Listener() {
+			public void onPeers(PeerConnection from, List<PeerInfo> peers) {
+				Event event = new Event(Event.Type.PEX_PEERS, from);
+				event.peers = peers;
+				post(event);
+			}
+		});
 	}
 
 	public void start() {
+		mMonitorPeers = true;
+
+		(mEventThread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					Event event;
+					try {
+						event = mEvents.take();
+					} catch (InterruptedException e) {
+						continue;
+					}
+
+					if (event.type == Event.Type.STOP) {
+						break;
+					}
+
+					try {
+						handleEvent(event);
+					} catch (Exception e) {
+						// Keep handling events whatever goes wrong with one
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "PeerManager")).start();
+
 		// Start listening for connections on this socket
 		mSocketListening = true;
 		(mSocketThread = new Thread(new Runnable() {
@@ -108,30 +379,31 @@ public class PeerManager {
 					try {
 						System.out.println("Waiting for incoming connection");
 						Socket peerSocket = mSocket.accept();
+
+						// Check the address before spending any time on a handshake
+						if(!mPeerFilter.isAllowed(peerSocket.getInetAddress().getHostAddress())){
+							System.out.println("Refusing filtered peer " + peerSocket.getInetAddress().getHostAddress());
+							peerSocket.close();
+							continue;
+						}
 						
 						System.out.println("Accepting new peer");
 						
 						PeerConnection peerConnection = new PeerConnection(peerSocket);
 						
-						if(peerConnection.getPeerInfo() != null){
+						if(mSmartBan.isBanned(peerConnection.getPeerInfo())){
+							System.out.println("Refusing banned peer " + peerConnection.getPeerInfo());
+							peerConnection.closeConnection();
+						} else if(peerConnection.getPeerInfo() != null){
 							// The handshake received was good, so send our handshake
 							peerConnection.sendHandshake();
 							System.out.println("Accepted a connection with " + peerConnection);
-
-							// Drop a leeching peer if needed
-							if(mUploadPeers.size() >= MAX_UPLOAD_PEERS){
-								PeerConnection slowest = getSlowestUploadPeer();
-								if(slowest != null) {
-									System.out.println("Dropping leech " + slowest);
-									slowest.stop();
-								}
-							}
-
-							peerConnection.start();
-							mUploadPeers.add(peerConnection);
+							post(new Event(Event.Type.CONNECTED, peerConnection));
+						} else {
+							peerConnection.closeConnection();
 						}
 					} catch (Exception e) { 
-						if(!e.getMessage().contains("Socket closed")){
+						if(e.getMessage() == null || !e.getMessage().contains("Socket closed")){
 							e.printStackTrace(); 
 						}
 					}
@@ -140,138 +412,365 @@ public class PeerManager {
 		})).start();
 		
 
-		// Start asking the tracker for peers and begin downloading
+		// Start asking the trackers for peers, each on its own
+		// schedule, and begin downloading as their answers come in
 		mTrackerPolling = true;
-		(mTrackerThread = new Thread(new Runnable(){
+		TrackerUtil.setNumWant(getNumWant());
+		TrackerUtil.start(mTimer, new AnnounceList.Callback() {
+			public void onResponse(TrackerResponse response) {
+				Event event = new Event(Event.Type.TRACKER_RESPONSE);
+				event.peers = (response != null) ? (response.peers) : (null);
+				post(event);
+			}
+		});
+
+		mMonitorTimeout = mTimer.schedulePeriodic(new Runnable() {
 			public void run() {
-				// While the tracker 
-				while(mTrackerPolling){
-					// Get the peers and filter by IP address
-					mAvailablePeers = filterPeers(TrackerUtil.getPeers());
-					
-					System.out.println("Available peers:");
-					for(PeerInfo peer : mAvailablePeers){
-						System.out.println("     " + peer);
-					}
-					System.out.println();
-					
-					// Check to make sure the tracker could be reached
-					if(mAvailablePeers == null){
-						// No way to contact tracker, so stop everything
-						System.out.println("Error: cannot reach tracker");
-						break;
-					}
-					
-					if(mAvailablePeers.isEmpty()){
-						System.out.println("No peers available");
-						break;
-					}
-					
-					
-					// Wait the Tracker's request interval
-					try{
-						// Keep checking to make sure this thread isn't being stopped
-						for(int i = 0; i < 10; i++){
-							Thread.sleep((int)(TrackerUtil.getInterval() / 10f));
-							if(!mTrackerPolling){
-								break;
-							}
-						}
-					} catch (InterruptedException e){ }
-				}
+				post(new Event(Event.Type.MONITOR));
 			}
-		})).start();
+		}, MONITOR_INTERVAL);
 
-		mMonitorPeers = true;
-		(mMonitorThread = new Thread(new Runnable(){
+		mChokeTimeout = mTimer.schedulePeriodic(new Runnable() {
 			public void run() {
-				while(mMonitorPeers) {
-					try{
-						Thread.sleep(MONITOR_INTERVAL / 10);
-					} catch (InterruptedException e) { }
-
-
-					if(mDownloadPeers.size() >= MAX_DOWNLOAD_PEERS) {
-						// There's a different peer we can try to connect to
-						// Drop the slowest peer and pick a new one
-						PeerConnection slowest = getSlowestDownloadPeer();
-						if(slowest != null) {
-							System.out.println("Dropping " + slowest.getPeerInfo());
-							slowest.stop();
-							mDownloadPeers.remove(slowest);
-						}
-					}
-					
-					if(mDownloadPeers.size() < MAX_DOWNLOAD_PEERS && mDownloadPeers.size() < mAvailablePeers.size()){
-						for(int i = 0; i < MAX_DOWNLOAD_PEERS && mDownloadPeers.size() <= MAX_DOWNLOAD_PEERS; i++) {
-							PeerInfo peer = pickRandomUnconnectedPeer(mAvailablePeers);
-							
-							if(peer == null){
-								return;
-							}
-							
-							System.out.println("Connecting to " + peer);
-							
-							// Connect to this peer
-							PeerConnection peerConnection = PeerUtil.handshakeWithPeer(peer);
-							
-							if (peerConnection != null) {
-								peerConnection.start();
-								mDownloadPeers.add(peerConnection);
-							}
-						}
-					}
+				post(new Event(Event.Type.CHOKE_ROUND));
+			}
+		}, Choker.ROUND_INTERVAL);
 
-					// Keep checking to make sure this thread isn't being stopped
-					for(int i = 0; i < 9; i++){
-						try{
-							Thread.sleep(MONITOR_INTERVAL / 10);
-						} catch (InterruptedException e) { }
-						if(!mMonitorPeers){
-							break;
-						}
-					}
+		mScrapeTimeout = mTimer.schedulePeriodic(new Runnable() {
+			public void run() {
+				post(new Event(Event.Type.SCRAPE));
+			}
+		}, TrackerUtil.getScrapeTtl());
+
+		if(mDht != null){
+			post(new Event(Event.Type.DHT_LOOKUP));
+			mDhtTimeout = mTimer.schedulePeriodic(new Runnable() {
+				public void run() {
+					post(new Event(Event.Type.DHT_LOOKUP));
+				}
+			}, DHT_INTERVAL);
+		}
+
+		if(mPeerExchange != null){
+			mPexTimeout = mTimer.schedulePeriodic(new Runnable() {
+				public void run() {
+					post(new Event(Event.Type.PEX_ROUND));
+				}
+			}, PeerExchange.INTERVAL);
+		}
+	}
+
+	/**
+	 * Queue an event for the event thread; never blocks
+	 */
+	private void post(Event event) {
+		mEvents.add(event);
+	}
+
+	/**
+	 * React to an event; only ever called on the event thread
+	 */
+	private void handleEvent(Event event) {
+		switch (event.type) {
+		case CONNECTED:
+			addConnection(event.connection);
+			break;
+		case CONNECT_FAILED:
+			System.out.println((event.handshake ? "Handshake failed with " : "Could not connect to ") + event.peer);
+			if(event.handshake){
+				mPeerTable.recordHandshakeFailure(event.peer);
+			} else {
+				mPeerTable.recordConnectFailure(event.peer);
+			}
+			fillConnectionSlots();
+			break;
+		case DISCONNECTED:
+			// Replace the peer straight away, and pass on its upload slot
+			if(mPeers.isConnectedTo(event.connection.getPeerInfo())){
+				System.out.println("Disconnected from " + event.connection.getPeerInfo());
+			}
+			mPeers.remove(event.connection);
+			if(!event.connection.isIncoming()){
+				mPeerTable.recordDisconnected(event.connection.getPeerInfo(), event.connection.hasTransferred()
+						&& event.connection.getConnectedTime() >= MIN_USEFUL_LIFETIME);
+			}
+			fillConnectionSlots();
+			mChoker.fillSlots(mPeers.getPeers());
+			break;
+		case CHOKE_CHANGED:
+		case INTEREST_CHANGED:
+			// Use any free upload slot on this peer now,
+			// rather than at the next choke round
+			mChoker.fillSlots(mPeers.getPeers());
+			break;
+		case PIECE_COMPLETED:
+			// Tell every peer, so they can start requesting it from us
+			for(PeerConnection peer : mPeers.getPeers()){
+				peer.sendHave(event.index);
+			}
+			break;
+		case BANNED:
+			for(PeerConnection peer : mPeers.getPeers(event.ip)){
+				System.out.println("Disconnecting banned peer " + peer.getPeerInfo());
+				mPeers.remove(peer);
+				peer.closeConnection();
+			}
+			break;
+		case TRACKER_RESPONSE:
+			handleTrackerResponse(event.peers);
+			break;
+		case SCRAPE:
+			TrackerUtil.scrape(new AnnounceList.ScrapeCallback() {
+				public void onScrape(ScrapeInfo[] results) {
+					post(new Event(Event.Type.SCRAPE_RESPONSE));
 				}
+			});
+			break;
+		case SCRAPE_RESPONSE:
+			System.out.println("Swarm: " + TrackerUtil.getSwarm());
+			TrackerUtil.setNumWant(getNumWant());
+			fillConnectionSlots();
+			break;
+		case DHT_LOOKUP:
+			lookUpDht();
+			break;
+		case DHT_PEERS:
+			if(mMonitorPeers){
+				addAvailablePeers(filterPeers(event.peers), PeerInfo.Source.DHT);
 			}
-		})).start();
+			break;
+		case DHT_FINISHED:
+			mDhtLookupRunning = false;
+			break;
+		case PEX_ROUND:
+			if(mMonitorPeers){
+				mPeerExchange.sendRound(mPeers.getPeers());
+			}
+			break;
+		case PEX_PEERS:
+			if(mMonitorPeers){
+				PeerConnection.debug(event.connection.getPeerInfo() + " told us of " + event.peers.size() + " peers");
+				addAvailablePeers(filterPeers(event.peers), PeerInfo.Source.PEX);
+			}
+			break;
+		case MONITOR:
+			monitorPeers();
+			break;
+		case CHOKE_ROUND:
+			mChoker.runRound(mPeers.getPeers());
+			recordRates();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Start a connection that finished its handshake,
+	 * making room for it if it's incoming
+	 */
+	private void addConnection(PeerConnection connection) {
+		// Banned while this connection was being made
+		if(mSmartBan.isBanned(connection.getPeerInfo())){
+			System.out.println("Refusing banned peer " + connection.getPeerInfo());
+			connection.closeConnection();
+			if(!connection.isIncoming()){
+				fillConnectionSlots();
+			}
+			return;
+		}
+
+		if(connection.isIncoming()){
+			// Drop a leeching peer if needed
+			if(mMonitorPeers && !mPeers.hasIncomingSlot()){
+				PeerConnection slowest = getSlowestUploadPeer();
+				if(slowest != null) {
+					System.out.println("Dropping leech " + slowest);
+					mPeers.remove(slowest);
+					slowest.stop();
+				}
+			}
+			connection.getPeerInfo().setSource(PeerInfo.Source.INCOMING);
+		} else {
+			mPeerTable.recordConnected(connection.getPeerInfo());
+		}
+
+		if(mMonitorPeers && mPeers.add(connection)){
+			System.out.println("Connected to " + connection.getPeerInfo());
+			connection.setListener(mConnectionListener);
+			connection.start();
+		} else {
+			System.out.println("Already connected to " + connection.getPeerInfo());
+			connection.closeConnection();
+		}
+
+		if(!connection.isIncoming()){
+			fillConnectionSlots();
+		}
+	}
+
+	/**
+	 * Start connecting to the peers a tier of trackers gave; each
+	 * tier schedules its own next announce
+	 * 
+	 * @param peers
+	 *            the tier's peers, null if it couldn't be reached
+	 */
+	private void handleTrackerResponse(List<PeerInfo> peers) {
+		if(!mTrackerPolling){
+			return;
+		}
+
+		// Filter by IP address
+		List<PeerInfo> trackerPeers = filterPeers(peers);
+		
+		// Check to make sure the tracker could be reached
+		if(trackerPeers == null){
+			// The tier will retry, so use the peers
+			// that worked last time in the meantime
+			System.out.println("Error: cannot reach tracker");
+			trackerPeers = new ArrayList<PeerInfo>();
+		} else {
+			System.out.println("Available peers:");
+			for(PeerInfo peer : trackerPeers){
+				System.out.println("     " + peer);
+			}
+			System.out.println();
+		}
+
+		addAvailablePeers(trackerPeers, PeerInfo.Source.TRACKER);
+	}
+
+	/**
+	 * Add newly found peers to those we may connect to, and
+	 * start connecting to them
+	 * 
+	 * @param newPeers
+	 *            peers that already went through filterPeers()
+	 * @param source
+	 *            where they came from
+	 */
+	private void addAvailablePeers(List<PeerInfo> newPeers, PeerInfo.Source source) {
+		for(PeerInfo peer : newPeers){
+			peer.setSource(source);
+		}
+
+		// Newest peers first, then those found before,
+		// then the peers that worked well last time
+		if(mAvailablePeers != null){
+			newPeers = mergePeers(newPeers, mAvailablePeers);
+		}
+		List<PeerInfo> knownGood = filterPeers(mPeerTable.getKnownGoodPeers());
+		for(PeerInfo peer : knownGood){
+			peer.setSource(PeerInfo.Source.HISTORY);
+		}
+		mAvailablePeers = mergePeers(newPeers, knownGood);
+		if(mAvailablePeers.size() > MAX_AVAILABLE_PEERS){
+			mAvailablePeers = new ArrayList<PeerInfo>(mAvailablePeers.subList(0, MAX_AVAILABLE_PEERS));
+		}
+		
+		if(mAvailablePeers.isEmpty()){
+			System.out.println("No peers available");
+			return;
+		}
+
+		// Start connecting right away rather than waiting for the monitor
+		fillConnectionSlots();
+	}
+
+	/**
+	 * Ask the DHT for peers, unless a lookup is still going or one
+	 * started too recently; peers are posted as the lookup finds them
+	 */
+	private void lookUpDht() {
+		long now = System.currentTimeMillis();
+		if(mDht == null || !mMonitorPeers || mDhtLookupRunning || now - mLastDhtLookup < DHT_MIN_INTERVAL){
+			return;
+		}
+
+		mDhtLookupRunning = true;
+		mLastDhtLookup = now;
+		mDht.getPeers(mInfoHash, mPort, new DhtNode.Callback() {
+			public void onPeers(List<PeerInfo> peers) {
+				Event event = new Event(Event.Type.DHT_PEERS);
+				event.peers = peers;
+				post(event);
+			}
+
+			public void onFinished() {
+				post(new Event(Event.Type.DHT_FINISHED));
+			}
+		});
+	}
+
+	/**
+	 * Drop dead and slow peers, and connect to new ones
+	 */
+	private void monitorPeers() {
+		if(!mMonitorPeers){
+			return;
+		}
+
+		// Forget about connections that have been dropped
+		// without a DISCONNECTED event, as a safety net
+		mPeers.removeInactive();
+
+		if(!mPeers.hasOutgoingSlot()) {
+			// There's a different peer we can try to connect to
+			// Drop the slowest peer and pick a new one
+			PeerConnection slowest = getSlowestDownloadPeer();
+			if(slowest != null) {
+				System.out.println("Dropping " + slowest.getPeerInfo());
+				mPeers.remove(slowest);
+				slowest.stop();
+			}
+		}
+		
+		fillConnectionSlots();
+
+		mPeerTable.save();
 	}
 	
 	public void stop() {
-		// mSocketThread will pick up this message within
-		// 10 seconds (because mSocket only blocks for 10s)
-		// and stop
 		mSocketListening = false;
 		mTrackerPolling = false;
 		mMonitorPeers = false;
 
+		// Nothing more should be scheduled, and no more events handled
+		mMonitorTimeout.cancel();
+		mChokeTimeout.cancel();
+		mScrapeTimeout.cancel();
+		if(mDhtTimeout != null){
+			mDhtTimeout.cancel();
+		}
+		if(mPexTimeout != null){
+			mPexTimeout.cancel();
+		}
+		post(new Event(Event.Type.STOP));
+
 		System.out.println("\n _____________________________ ");
 		System.out.println("|--------SHUTTING-DOWN--------|");
 		System.out.println("|-----------------------------|");
 		
 		
 		try {
+			mEventThread.join(10000);
+
 			System.out.println("|-----Disconnecting peers-----|");
 			System.out.println("|-----------------------------|");
 			
-			for(PeerConnection peer : mDownloadPeers){
-				peer.stop();
-			}
-			
-			for(PeerConnection peer : mUploadPeers){
+			recordRates();
+			for(PeerConnection peer : mPeers.getPeers()){
+				mPeers.remove(peer);
 				peer.stop();
 			}
+			mPeerTable.save();
 
 			System.out.println("|-----Closing TCP socket------|");
 			System.out.println("|-----------------------------|");
 			mSocketThread.join(3000);
 			
-			System.out.println("|--Stopping tracker requests--|");
-			System.out.println("|-----------------------------|");
-			mTrackerThread.join(10000);
-			
-			System.out.println("|-Ending performance monitor--|");
-			System.out.println("|-----------------------------|");
-			mMonitorThread.join(10000);
+			mConnector.stop();
 			
 		} catch (InterruptedException e){
 			e.printStackTrace();
@@ -280,7 +779,7 @@ public class PeerManager {
 		// Tell the tracker that we're stopped
 		System.out.println("|--Notifying tracker of STOP--|");
 		System.out.println("|-----------------------------|");
-		TrackerUtil.sendEvent(TrackerUtil.Events.STOPPED);
+		TrackerUtil.stop();
 		
 		System.out.println("|------------DONE-------------|");
 		System.out.println("|-----------------------------|\n");
@@ -288,9 +787,97 @@ public class PeerManager {
 	}
 	
 	/**
-	 * Filter peers in a list by IP address
+	 * @return every connected peer
+	 */
+	public List<PeerConnection> getPeers(){
+		return mPeers.getPeers();
+	}
+
+	/**
+	 * Start connecting to as many new peers as there are free
+	 * outgoing slots, without going over the half-open limit
+	 */
+	private void fillConnectionSlots(){
+		int target = getOutgoingTarget();
+		while(mMonitorPeers && mConnector.hasCapacity()
+				&& mPeers.getOutgoingCount() + mConnector.getPendingCount() < target) {
+			PeerInfo peer = pickUnconnectedPeer(mAvailablePeers);
+			
+			if(peer == null){
+				// Out of peers to try, so ask the trackers and the DHT
+				// for more as soon as they allow, not at the next interval
+				if(mTrackerPolling){
+					TrackerUtil.announceSoon();
+				}
+				lookUpDht();
+				break;
+			} else if(!mConnector.connect(peer)){
+				break;
+			}
+
+			System.out.println("Connecting to " + peer);
+		}
+	}
+
+	/**
+	 * How many connections to open ourselves, going by the swarm
+	 * the trackers last reported: none once seeding to a swarm with
+	 * nobody left downloading, since other seeds have no use for us
+	 */
+	private int getOutgoingTarget(){
+		ScrapeInfo swarm = TrackerUtil.getSwarm();
+		if(swarm != null && swarm.leechers == 0 && mChoker.isSeeding()){
+			return 0;
+		}
+		return mPeers.getMaxOutgoing();
+	}
+
+	/**
+	 * How many peers to ask the tracker for: enough to fill our outgoing
+	 * slots when the swarm is bigger than the tracker's default answer
+	 */
+	private int getNumWant(){
+		int target = getOutgoingTarget();
+		ScrapeInfo swarm = TrackerUtil.getSwarm();
+		if(target == 0 || swarm == null || swarm.seeders + swarm.leechers == 0){
+			return -1;
+		}
+		return Math.min(target, swarm.seeders + swarm.leechers);
+	}
+
+	/**
+	 * Remember how fast each peer we connected to is sending
+	 */
+	private void recordRates(){
+		for(PeerConnection peer : mPeers.getPeers(false)){
+			mPeerTable.recordRate(peer.getPeerInfo(), peer.getDownloadRate());
+		}
+	}
+
+	/**
+	 * @return the peers in both lists, without duplicate addresses
+	 */
+	private List<PeerInfo> mergePeers(List<PeerInfo> first, List<PeerInfo> second){
+		List<PeerInfo> merged = new ArrayList<PeerInfo>(first);
+		Set<String> addresses = new HashSet<String>();
+		for(PeerInfo peer : first){
+			addresses.add(peer.getIP() + ":" + peer.getPort());
+		}
+
+		for(PeerInfo peer : second){
+			if(addresses.add(peer.getIP() + ":" + peer.getPort())){
+				merged.add(peer);
+			}
+		}
+
+		return merged;
+	}
+
+	/**
+	 * Filter peers in a list by IP address; every source
+	 * of peers should go through here
 	 * @param peerList a list of peers
-	 * @return a list of peers that can be connected to, as specified by assignment
+	 * @return a list of peers that the PeerFilter allows
 	 */
 	private List<PeerInfo> filterPeers(List<PeerInfo> peerList){
 		if(peerList == null){
@@ -300,7 +887,7 @@ public class PeerManager {
 		List<PeerInfo> goodPeers = new ArrayList<PeerInfo>();
 		
 		for(PeerInfo peer : peerList) {
-			if(peer.getIP().contains("128.6.5.130") || peer.getIP().contains("128:6:5:130") || peer.getIP().contains("128.6.5.131") || peer.getIP().contains("128:6:5:131") || peer.getPeerID().contains("RU1103")){
+			if(mPeerFilter.isAllowed(peer)){
 				goodPeers.add(peer);
 			}
 		}
@@ -312,15 +899,11 @@ public class PeerManager {
 	 * @return the currently slowest PeerConnection that data is being received from
 	 */
 	private PeerConnection getSlowestDownloadPeer(){
-		if(mDownloadPeers == null){
-			return null;
-		}
-		
 		PeerConnection slowestPeer = null;
-		int slowestRate = Integer.MAX_VALUE;
-		for(PeerConnection peer : mDownloadPeers) {
-			if(peer.getBytesReceived() < slowestRate){
-				slowestRate = peer.getBytesReceived();
+		double slowestRate = Double.MAX_VALUE;
+		for(PeerConnection peer : mPeers.getPeers(false)) {
+			if(peer.getDownloadRate() < slowestRate){
+				slowestRate = peer.getDownloadRate();
 				slowestPeer = peer;
 			}
 		}
@@ -332,15 +915,11 @@ public class PeerManager {
 	 * @return the currently slowest PeerConnection that data is being received from
 	 */
 	private PeerConnection getSlowestUploadPeer(){
-		if(mUploadPeers == null){
-			return null;
-		}
-		
 		PeerConnection slowestPeer = null;
-		int slowestRate = Integer.MAX_VALUE;
-		for(PeerConnection peer : mUploadPeers) {
-			if(peer.getBytesSent() < slowestRate){
-				slowestRate = peer.getBytesReceived();
+		double slowestRate = Double.MAX_VALUE;
+		for(PeerConnection peer : mPeers.getPeers(true)) {
+			if(peer.getUploadRate() < slowestRate){
+				slowestRate = peer.getUploadRate();
 				slowestPeer = peer;
 			}
 		}
@@ -349,38 +928,23 @@ public class PeerManager {
 	}
 	
 	/**
-	 * @return if there is an active connection to this peer
+	 * Pick a peer that isn't connected or banned, letting the
+	 * PeerTable skip peers that recently failed and prefer fast ones
 	 */
-	private boolean isConnectedTo(PeerInfo info){
-		for(PeerConnection conn : mDownloadPeers){
-			if(conn.getPeerInfo().getPeerID().equals(info.getPeerID())){
-				return true;
-			}
-		}
-		
-		for(PeerConnection conn : mDownloadPeers){
-			if(conn.getPeerInfo().getPeerID().equals(info.getPeerID())){
-				return true;
-			}
-		}
-		
-		return false;
-	}
-	
-	private PeerInfo pickRandomUnconnectedPeer(List<PeerInfo> peerList){
-		if(mAvailablePeers == null || mAvailablePeers.isEmpty()){
+	private PeerInfo pickUnconnectedPeer(List<PeerInfo> peerList){
+		if(peerList == null || peerList.isEmpty()){
 			return null;
 		}
 
 		List<PeerInfo> notConnectedPeers = new ArrayList<PeerInfo>();
 		
 		for(PeerInfo info : peerList){
-			if(!isConnectedTo(info)){
+			if(!mPeers.isConnectedTo(info) && !mConnector.isPending(info) && !mSmartBan.isBanned(info)){
 				notConnectedPeers.add(info);
 			}
 		}
 
-		return (notConnectedPeers.isEmpty()) ? (null) : (notConnectedPeers.get((int) (Math.random() * notConnectedPeers.size())));
+		return mPeerTable.choose(notConnectedPeers);
 	}
 
 }
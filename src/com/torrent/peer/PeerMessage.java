@@ -7,12 +7,21 @@
 package com.torrent.peer;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public class PeerMessage {
 
-	private static final String HANDSHAKE = ((char) 19) + "BitTorrent Protocol";
+	private static final String HANDSHAKE = ((char) 19) + "BitTorrent protocol";
+
+	/**
+	 * Where the reserved bytes start in a handshake, and the bit
+	 * that says the extension protocol (BEP 10) is supported
+	 */
+	private static final int RESERVED_OFFSET = 20;
+	private static final int EXTENSION_BYTE = RESERVED_OFFSET + 5;
+	private static final byte EXTENSION_BIT = 0x10;
 
 	public static class Type {
 		public static final byte CHOKE = 0x00;
@@ -24,6 +33,10 @@ public class PeerMessage {
 		public static final byte REQUEST = 0x06;
 		public static final byte PIECE = 0x07;
 		public static final byte CANCEL = 0x08;
+		public static final byte EXTENDED = 0x14;
+
+		// Not sent on the wire; a message with no ID
+		public static final byte KEEP_ALIVE = -1;
 	}
 
 	public static class Message {
@@ -36,6 +49,13 @@ public class PeerMessage {
 		public int length;
 
 		public byte[] data;
+
+		// Which extension an extended message is for,
+		// 0 for the extended handshake
+		public int extendedId;
+
+		// When the first byte of the message arrived
+		public long time;
 	}
 
 	private static ByteBuffer mInfoHash;
@@ -46,71 +66,124 @@ public class PeerMessage {
 		mPeerID = peerID;
 	}
 
-	public static Message readMessage(DataInputStream inStream){
+	/**
+	 * Largest message accepted: a block of the largest size
+	 * peers send, or a bitfield of a very large torrent
+	 */
+	private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+
+	/**
+	 * Read exactly one message, blocking until it has all arrived
+	 * 
+	 * @throws EOFException
+	 *             if the peer closed the connection
+	 * @throws IOException
+	 *             if the connection failed, or the peer sent something
+	 *             that can't be a message
+	 */
+	public static Message readMessage(DataInputStream inStream) throws IOException {
 		Message message = new Message();
 
-		try {
-			// Read the length of the message
-			int length = inStream.readInt();
-
-			if(length == 0){
-				// This is a keep alive message
-				// that has no importance
-				return null;
-			}
-
-			// First byte after the length bytes is the message type
-			message.type = inStream.readByte();
-
-			switch (message.type){
-				case Type.BITFIELD:
-					// TODO implement bitfield parsing
-					inStream.readFully(new byte[length - 1]);
-					break;
-
-				case Type.HAVE:
-					message.index = inStream.readInt();
-					break;
-
-				case Type.REQUEST:
-				case Type.CANCEL:
-					message.index = inStream.readInt();
-					message.offset = inStream.readInt();
-					message.length = inStream.readInt();
-					break;
-				case Type.PIECE:
-					message.index = inStream.readInt();
-					message.offset = inStream.readInt();
-					message.data = new byte[length - 9];
-					inStream.readFully(message.data);
-					break;
-				default:
-					break;
-			}
-
-			inStream.readFully(new byte[inStream.available()]);
+		// Read the length of the message
+		int length = inStream.readInt();
+		message.time = System.currentTimeMillis();
 
+		if(length == 0){
+			// This is a keep alive message, which
+			// only shows the peer is still there
+			message.type = Type.KEEP_ALIVE;
 			return message;
-		} catch (IOException e) { 
-			return null;
 		}
+
+		if(length < 0 || length > MAX_MESSAGE_LENGTH){
+			throw new IOException("Bad message length " + length);
+		}
+
+		// First byte after the length bytes is the message type
+		message.type = inStream.readByte();
+		int remaining = length - 1;
+
+		switch (message.type){
+			case Type.BITFIELD:
+				message.data = new byte[remaining];
+				inStream.readFully(message.data);
+				remaining = 0;
+				break;
+
+			case Type.HAVE:
+				message.index = inStream.readInt();
+				remaining -= 4;
+				break;
+
+			case Type.REQUEST:
+			case Type.CANCEL:
+				message.index = inStream.readInt();
+				message.offset = inStream.readInt();
+				message.length = inStream.readInt();
+				remaining -= 12;
+				break;
+			case Type.PIECE:
+				if(length < 9){
+					throw new IOException("Piece message too short");
+				}
+				message.index = inStream.readInt();
+				message.offset = inStream.readInt();
+				message.data = new byte[length - 9];
+				inStream.readFully(message.data);
+				remaining = 0;
+				break;
+			case Type.EXTENDED:
+				if(length < 2){
+					throw new IOException("Extended message too short");
+				}
+				message.extendedId = inStream.readUnsignedByte();
+				message.data = new byte[length - 2];
+				inStream.readFully(message.data);
+				remaining = 0;
+				break;
+			default:
+				break;
+		}
+
+		if(remaining < 0){
+			throw new IOException("Message " + message.type + " too short");
+		}
+
+		// Skip whatever is left of this message, such as the payload
+		// of one we don't understand, but nothing of the next one
+		inStream.readFully(new byte[remaining]);
+
+		return message;
 	}
 
 
 	/**
 	 * Handshakes have the following format:
 	 * HANDSHAKE_STRING + 8_BYTES_RESERVED + INFO_HASH + PEER_ID
+	 * 
+	 * @param extensions
+	 *            whether to say we support the extension protocol
 	 */
-	public static byte[] makeHandshake() {
+	public static byte[] makeHandshake(boolean extensions) {
 		byte[] bytes = new byte[68];
 		
 		System.arraycopy(HANDSHAKE.getBytes(), 0, bytes, 0, 20);
+		if(extensions){
+			bytes[EXTENSION_BYTE] |= EXTENSION_BIT;
+		}
 		System.arraycopy(mInfoHash.array(), 0, bytes, 28, 20);
 		System.arraycopy(mPeerID.getBytes(), 0, bytes, 48, 20);
 		
 		return bytes;
 	}
 	
+	/**
+	 * @return if the peer's handshake says it supports the extension protocol
+	 */
+	public static boolean supportsExtensions(byte[] handshake) {
+		return (handshake[EXTENSION_BYTE] & EXTENSION_BIT) != 0;
+	}
+	
 	/**
 	 * Keep alive messages are length 0, should be sent every two minutes
 	 */
@@ -199,4 +272,20 @@ public class PeerMessage {
 		return bytes;
 	}
 	
+	/**
+	 * @param extendedId
+	 *            the id the peer gave the extension, or 0 for our handshake
+	 */
+	public static byte[] makeExtended(int extendedId, byte[] payload){
+		byte[] bytes = new byte[6 + payload.length];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		
+		buffer.putInt(2 + payload.length); // Length Prefix
+		buffer.put(Type.EXTENDED);
+		buffer.put((byte) extendedId);
+		buffer.put(payload);
+		
+		return bytes;
+	}
+	
 }
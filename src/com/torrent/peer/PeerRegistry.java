@@ -0,0 +1,206 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every connection to a peer, incoming or outgoing, indexed by both
+ * address and peer ID so that duplicate connections are caught in
+ * constant time. Safe to use from the accept, monitor and peer threads.
+ */
+public class PeerRegistry {
+
+	/**
+	 * Default limit on all connections
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 200;
+
+	/**
+	 * Default limit on connections that we make to peers; the
+	 * rest of DEFAULT_MAX_CONNECTIONS is left for incoming peers
+	 */
+	public static final int DEFAULT_MAX_OUTGOING = 120;
+
+	/**
+	 * Connections by "ip:port"
+	 */
+	private ConcurrentHashMap<String, PeerConnection> mByAddress = new ConcurrentHashMap<String, PeerConnection>();
+
+	/**
+	 * Connections by peer ID, for those whose ID is known
+	 */
+	private ConcurrentHashMap<String, PeerConnection> mByPeerID = new ConcurrentHashMap<String, PeerConnection>();
+
+	private AtomicInteger mOutgoing = new AtomicInteger();
+	private AtomicInteger mIncoming = new AtomicInteger();
+
+	private volatile int mMaxConnections;
+	private volatile int mMaxOutgoing;
+
+	public PeerRegistry(int maxConnections, int maxOutgoing) {
+		mMaxConnections = maxConnections;
+		mMaxOutgoing = Math.min(maxOutgoing, maxConnections);
+	}
+
+	public PeerRegistry() {
+		this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_OUTGOING);
+	}
+
+	/**
+	 * Change the limits; existing connections
+	 * over the new limits are not dropped
+	 */
+	public void setLimits(int maxConnections, int maxOutgoing) {
+		mMaxConnections = maxConnections;
+		mMaxOutgoing = Math.min(maxOutgoing, maxConnections);
+	}
+
+	/**
+	 * Add a connection, unless there is already a connection
+	 * to the same peer or there is no room for it
+	 * 
+	 * @return true if added
+	 */
+	public boolean add(PeerConnection connection) {
+		PeerInfo peer = connection.getPeerInfo();
+		if (peer == null) {
+			return false;
+		}
+
+		AtomicInteger count = connection.isIncoming() ? mIncoming : mOutgoing;
+		int limit = connection.isIncoming() ? (mMaxConnections - mMaxOutgoing) : (mMaxOutgoing);
+
+		// Claim a slot first, so concurrent adds can't exceed the limit
+		if (count.incrementAndGet() > limit) {
+			count.decrementAndGet();
+			return false;
+		}
+
+		String address = getAddress(peer);
+		if (mByAddress.putIfAbsent(address, connection) != null) {
+			count.decrementAndGet();
+			return false;
+		}
+
+		if (peer.getPeerID() != null && mByPeerID.putIfAbsent(peer.getPeerID(), connection) != null) {
+			mByAddress.remove(address, connection);
+			count.decrementAndGet();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Remove a connection, if it is still registered
+	 */
+	public void remove(PeerConnection connection) {
+		PeerInfo peer = connection.getPeerInfo();
+		if (peer == null) {
+			return;
+		}
+
+		if (mByAddress.remove(getAddress(peer), connection)) {
+			if (peer.getPeerID() != null) {
+				mByPeerID.remove(peer.getPeerID(), connection);
+			}
+
+			(connection.isIncoming() ? mIncoming : mOutgoing).decrementAndGet();
+		}
+	}
+
+	/**
+	 * Remove every connection that is no longer active
+	 */
+	public void removeInactive() {
+		for (PeerConnection connection : mByAddress.values()) {
+			if (!connection.isActive()) {
+				remove(connection);
+			}
+		}
+	}
+
+	/**
+	 * @return if there is a connection to this peer,
+	 *         matched by either address or peer ID
+	 */
+	public boolean isConnectedTo(PeerInfo peer) {
+		return mByAddress.containsKey(getAddress(peer)) || (peer.getPeerID() != null && mByPeerID.containsKey(peer.getPeerID()));
+	}
+
+	/**
+	 * @return a snapshot of every connection
+	 */
+	public List<PeerConnection> getPeers() {
+		return new ArrayList<PeerConnection>(mByAddress.values());
+	}
+
+	/**
+	 * @return a snapshot of the connections to an IP address, on any port
+	 */
+	public List<PeerConnection> getPeers(String ip) {
+		List<PeerConnection> peers = new ArrayList<PeerConnection>();
+		for (PeerConnection connection : mByAddress.values()) {
+			if (connection.getPeerInfo().getIP().equals(ip)) {
+				peers.add(connection);
+			}
+		}
+		return peers;
+	}
+
+	/**
+	 * @return a snapshot of the connections in one direction
+	 */
+	public List<PeerConnection> getPeers(boolean incoming) {
+		List<PeerConnection> peers = new ArrayList<PeerConnection>();
+		for (PeerConnection connection : mByAddress.values()) {
+			if (connection.isIncoming() == incoming) {
+				peers.add(connection);
+			}
+		}
+		return peers;
+	}
+
+	public int getMaxOutgoing() {
+		return mMaxOutgoing;
+	}
+
+	public int size() {
+		return mByAddress.size();
+	}
+
+	public int getOutgoingCount() {
+		return mOutgoing.get();
+	}
+
+	public int getIncomingCount() {
+		return mIncoming.get();
+	}
+
+	/**
+	 * @return if another outgoing connection would be allowed
+	 */
+	public boolean hasOutgoingSlot() {
+		return mOutgoing.get() < mMaxOutgoing;
+	}
+
+	/**
+	 * @return if another incoming connection would be allowed
+	 */
+	public boolean hasIncomingSlot() {
+		return mIncoming.get() < mMaxConnections - mMaxOutgoing;
+	}
+
+	private static String getAddress(PeerInfo peer) {
+		return peer.getIP() + ":" + peer.getPort();
+	}
+
+}
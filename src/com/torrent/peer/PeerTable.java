@@ -0,0 +1,328 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers how every peer we have tried has behaved: failed connections,
+ * failed handshakes, connections that ended before they were any use, bad
+ * pieces and how fast it sent us data. Peers that failed are not retried
+ * until an exponentially growing backoff has passed, which only a useful
+ * connection resets, and historically fast peers are preferred. The
+ * table is saved to a file so that known-good peers can be used right
+ * away after a restart.
+ */
+public class PeerTable {
+
+	/**
+	 * How long to wait before retrying a peer after its first failure
+	 */
+	private static final long BASE_BACKOFF = 30000;
+
+	/**
+	 * Longest wait before retrying a peer
+	 */
+	private static final long MAX_BACKOFF = 60 * 60 * 1000;
+
+	/**
+	 * Chance of picking the fastest known peer rather than
+	 * a random one, leaving room to discover new fast peers
+	 */
+	private static final double PREFER_FAST_CHANCE = 0.75;
+
+	/**
+	 * Records not seen for this long are not saved
+	 */
+	private static final long RECORD_EXPIRY = 7L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * What is known about one peer
+	 */
+	private static class Record {
+		public String ip;
+		public int port;
+		public int connectFailures = 0;
+		public int handshakeFailures = 0;
+		public int hashFailures = 0;
+		public int successes = 0;
+
+		/**
+		 * Best rolling download rate seen, in bytes per second
+		 */
+		public double rate = 0;
+
+		/**
+		 * Failures since the last success, which sets the backoff
+		 */
+		public int consecutiveFailures = 0;
+
+		public long lastSeen = 0;
+		public long retryAfter = 0;
+
+		public Record(String ip, int port) {
+			this.ip = ip;
+			this.port = port;
+		}
+	}
+
+	/**
+	 * Records by "ip:port", or by "ip" alone for peers that connected
+	 * to us, whose port is only the one they happened to connect from
+	 */
+	private Map<String, Record> mRecords = new HashMap<String, Record>();
+
+	/**
+	 * Where the table is saved, may be null
+	 */
+	private File mFile;
+
+	public PeerTable(File file) {
+		mFile = file;
+		load();
+	}
+
+	/**
+	 * The peer finished its handshake; that alone doesn't reset its
+	 * backoff, since a peer may handshake and drop us straight away
+	 */
+	public synchronized void recordConnected(PeerInfo peer) {
+		Record record = getRecord(peer);
+		record.successes++;
+	}
+
+	/**
+	 * A connection to the peer ended. Even after a useful connection it
+	 * isn't retried for a while, so a peer that keeps closing on us
+	 * isn't redialed in a loop; otherwise it counts as a failure.
+	 *
+	 * @param useful
+	 *            if blocks were exchanged over a long enough connection
+	 */
+	public synchronized void recordDisconnected(PeerInfo peer, boolean useful) {
+		Record record = getRecord(peer);
+		if (useful) {
+			record.consecutiveFailures = 0;
+			record.retryAfter = System.currentTimeMillis() + BASE_BACKOFF;
+		} else {
+			backOff(record);
+		}
+	}
+
+	public synchronized void recordConnectFailure(PeerInfo peer) {
+		Record record = getRecord(peer);
+		record.connectFailures++;
+		backOff(record);
+	}
+
+	public synchronized void recordHandshakeFailure(PeerInfo peer) {
+		Record record = getRecord(peer);
+		record.handshakeFailures++;
+		backOff(record);
+	}
+
+	public synchronized void recordHashFailure(PeerInfo peer) {
+		Record record = getRecord(peer);
+		record.hashFailures++;
+		backOff(record);
+	}
+
+	/**
+	 * Remember a peer's measured download rate
+	 */
+	public synchronized void recordRate(PeerInfo peer, double rate) {
+		Record record = getRecord(peer);
+		record.rate = Math.max(record.rate, rate);
+	}
+
+	/**
+	 * @return if this peer's backoff has passed
+	 */
+	public synchronized boolean canRetry(PeerInfo peer) {
+		// Bad pieces sent when the peer connected to us count as well
+		return canRetry(mRecords.get(getKey(peer))) && canRetry(mRecords.get(peer.getIP()));
+	}
+
+	private static boolean canRetry(Record record) {
+		return record == null || record.retryAfter <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Pick a peer to connect to: usually the fastest known peer
+	 * that is allowed to be retried, otherwise a random one
+	 * 
+	 * @return null if none of the candidates can be tried now
+	 */
+	public synchronized PeerInfo choose(List<PeerInfo> candidates) {
+		List<PeerInfo> eligible = new ArrayList<PeerInfo>();
+		PeerInfo fastest = null;
+		double fastestRate = 0;
+
+		for (PeerInfo peer : candidates) {
+			if (!canRetry(peer)) {
+				continue;
+			}
+			eligible.add(peer);
+
+			Record record = mRecords.get(getKey(peer));
+			if (record != null && record.rate > fastestRate) {
+				fastestRate = record.rate;
+				fastest = peer;
+			}
+		}
+
+		if (eligible.isEmpty()) {
+			return null;
+		}
+
+		if (fastest != null && Math.random() < PREFER_FAST_CHANCE) {
+			return fastest;
+		}
+
+		return eligible.get((int) (Math.random() * eligible.size()));
+	}
+
+	/**
+	 * @return peers that have connected successfully before,
+	 *         fastest first
+	 */
+	public synchronized List<PeerInfo> getKnownGoodPeers() {
+		List<Record> good = new ArrayList<Record>();
+		for (Record record : mRecords.values()) {
+			if (record.successes > 0 && record.hashFailures == 0 && record.port != 0) {
+				good.add(record);
+			}
+		}
+
+		Collections.sort(good, new Comparator<Record>() {
+			public int compare(Record a, Record b) {
+				return Double.compare(b.rate, a.rate);
+			}
+		});
+
+		List<PeerInfo> peers = new ArrayList<PeerInfo>();
+		for (Record record : good) {
+			peers.add(new PeerInfo(record.ip, record.port, null));
+		}
+		return peers;
+	}
+
+	/**
+	 * Write the table to its file
+	 */
+	public synchronized void save() {
+		if (mFile == null) {
+			return;
+		}
+
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(new FileWriter(mFile));
+			long oldest = System.currentTimeMillis() - RECORD_EXPIRY;
+
+			for (Record record : mRecords.values()) {
+				if (record.lastSeen < oldest) {
+					continue;
+				}
+
+				out.println(record.ip + " " + record.port + " " + record.connectFailures + " " + record.handshakeFailures + " "
+						+ record.hashFailures + " " + record.successes + " " + (long) record.rate + " " + record.consecutiveFailures + " "
+						+ record.lastSeen + " " + record.retryAfter);
+			}
+		} catch (IOException e) {
+			System.out.println("Could not save peer table: " + e);
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+	private void load() {
+		if (mFile == null || !mFile.exists()) {
+			return;
+		}
+
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(mFile));
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.trim().split(" ");
+				if (fields.length != 10) {
+					continue;
+				}
+
+				try {
+					Record record = new Record(fields[0], Integer.parseInt(fields[1]));
+					record.connectFailures = Integer.parseInt(fields[2]);
+					record.handshakeFailures = Integer.parseInt(fields[3]);
+					record.hashFailures = Integer.parseInt(fields[4]);
+					record.successes = Integer.parseInt(fields[5]);
+					record.rate = Long.parseLong(fields[6]);
+					record.consecutiveFailures = Integer.parseInt(fields[7]);
+					record.lastSeen = Long.parseLong(fields[8]);
+					record.retryAfter = Long.parseLong(fields[9]);
+					mRecords.put(getKey(record.ip, record.port), record);
+				} catch (NumberFormatException e) {
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Could not load peer table: " + e);
+		} finally {
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void backOff(Record record) {
+		record.consecutiveFailures++;
+		long backoff = BASE_BACKOFF << Math.min(record.consecutiveFailures - 1, 20);
+		record.retryAfter = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF);
+	}
+
+	private Record getRecord(PeerInfo peer) {
+		String key = getKey(peer);
+		Record record = mRecords.get(key);
+		if (record == null) {
+			record = new Record(peer.getIP(), isIncoming(peer) ? (0) : (peer.getPort()));
+			mRecords.put(key, record);
+		}
+
+		record.lastSeen = System.currentTimeMillis();
+		return record;
+	}
+
+	private static String getKey(PeerInfo peer) {
+		return getKey(peer.getIP(), isIncoming(peer) ? (0) : (peer.getPort()));
+	}
+
+	private static String getKey(String ip, int port) {
+		return (port == 0) ? (ip) : (ip + ":" + port);
+	}
+
+	private static boolean isIncoming(PeerInfo peer) {
+		return peer.getSource() == PeerInfo.Source.INCOMING;
+	}
+
+}
@@ -88,7 +88,14 @@ public class PeerUtil {
 	 */
 	public static PeerConnection handshakeWithPeer(PeerInfo peer) {
 		PeerConnection connection = new PeerConnection(peer);
-		if (connection.doHandshake() ){
+		try {
+			connection.connect(PeerConnector.DEFAULT_CONNECT_TIMEOUT);
+		} catch (Exception e) {
+			System.out.println("Could not connect to " + peer);
+			return null;
+		}
+
+		if (connection.doHandshake(PeerConnector.DEFAULT_HANDSHAKE_TIMEOUT) ){
 			return connection;
 		} else {
 			System.out.println("Handshake with peer failed, cannot continue");
@@ -0,0 +1,220 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+/**
+ * Decides how many requests to keep outstanding with a peer. Enough
+ * blocks should be in flight to cover the bandwidth-delay product (the
+ * peer's delivery rate times the round trip time), or the connection
+ * sits idle between blocks; many more than that only queue up at the peer.
+ *
+ * New connections start in slow-start, growing the window by one block
+ * for every block received (doubling it each round trip) until it
+ * reaches the bandwidth-delay product. A timeout starts over.
+ */
+public class RequestWindow {
+
+	/**
+	 * Size of each requested block
+	 */
+	public static final int BLOCK_SIZE = 16384;
+
+	/**
+	 * Window of a new connection, or one that timed out
+	 */
+	public static final int INITIAL_WINDOW = 2;
+
+	/**
+	 * Most requests ever kept outstanding; many clients
+	 * drop requests beyond a queue of a few hundred
+	 */
+	public static final int MAX_WINDOW = 128;
+
+	/**
+	 * Extra blocks beyond the bandwidth-delay product, so that the
+	 * window keeps probing for more bandwidth than was measured
+	 */
+	private static final double HEADROOM = 1.5;
+	private static final int EXTRA_BLOCKS = 2;
+
+	/**
+	 * The minimum round trip time is taken over about this long, so
+	 * that it can rise if the route to the peer changes
+	 */
+	private static final long MIN_RTT_WINDOW = 10000;
+
+	/**
+	 * Shortest time over which the delivery rate is sampled
+	 */
+	private static final long RATE_INTERVAL = 1000;
+
+	private int mWindow = INITIAL_WINDOW;
+
+	/**
+	 * Most requests this peer says it queues, if less than MAX_WINDOW
+	 */
+	private int mMaxWindow = MAX_WINDOW;
+	private boolean mSlowStart = true;
+
+	/**
+	 * Smoothed round trip time, in milliseconds
+	 */
+	private double mRoundTripTime = 0;
+
+	/**
+	 * The least round trip time in each of two slots of half of
+	 * MIN_RTT_WINDOW, 0 if none; the smaller of the two covers the last
+	 * half to whole window of samples. Only requests sent while nothing
+	 * else was outstanding are sampled, since the rest include time
+	 * queued at the peer behind earlier requests; while the pipeline
+	 * stays full the minimum is kept, rather than aged out.
+	 */
+	private long mMinRoundTripTime = 0;
+	private long mPreviousMinRoundTripTime = 0;
+	private long mMinSlotStart = 0;
+
+	/**
+	 * Smoothed delivery rate, in bytes per second
+	 */
+	private double mDeliveryRate = 0;
+	private long mRateBytes = 0;
+	private long mRateStart = 0;
+
+	/**
+	 * A requested block arrived
+	 *
+	 * @param length
+	 *            the size of the block
+	 * @param requestTime
+	 *            when the block was requested
+	 * @param firstByteTime
+	 *            when the first byte of the block arrived
+	 * @param queued
+	 *            if other requests were outstanding when it was requested
+	 */
+	public synchronized void blockReceived(int length, long requestTime, long firstByteTime, boolean queued) {
+		long now = System.currentTimeMillis();
+
+		addRoundTripTime(Math.max(1, firstByteTime - requestTime), queued, now);
+		addDelivery(length, now);
+
+		if (mSlowStart) {
+			mWindow++;
+			if (mDeliveryRate > 0 && mWindow >= getTargetWindow()) {
+				mSlowStart = false;
+			}
+		} else if (mDeliveryRate > 0) {
+			mWindow = getTargetWindow();
+		}
+
+		mWindow = Math.max(INITIAL_WINDOW, Math.min(mMaxWindow, mWindow));
+	}
+
+	/**
+	 * Never keep more requests outstanding than the peer queues,
+	 * since it drops the rest
+	 */
+	public synchronized void setMaxWindow(int maxWindow) {
+		mMaxWindow = Math.max(INITIAL_WINDOW, Math.min(MAX_WINDOW, maxWindow));
+		mWindow = Math.min(mWindow, mMaxWindow);
+	}
+
+	/**
+	 * A request went unanswered, so start again from a small window
+	 */
+	public synchronized void timedOut() {
+		mWindow = INITIAL_WINDOW;
+		mSlowStart = true;
+		mRateBytes = 0;
+		mRateStart = 0;
+	}
+
+	private void addRoundTripTime(long sample, boolean queued, long now) {
+		mRoundTripTime = (mRoundTripTime == 0) ? (sample) : (mRoundTripTime * 7 / 8 + sample / 8d);
+		if (queued) {
+			return;
+		}
+
+		if (now - mMinSlotStart >= MIN_RTT_WINDOW / 2) {
+			// Only keep the last slot if it ended just now
+			mPreviousMinRoundTripTime = (now - mMinSlotStart < MIN_RTT_WINDOW) ? (mMinRoundTripTime) : (0);
+			mMinRoundTripTime = 0;
+			mMinSlotStart = now;
+		}
+
+		if (mMinRoundTripTime == 0 || sample < mMinRoundTripTime) {
+			mMinRoundTripTime = sample;
+		}
+	}
+
+	private void addDelivery(int length, long now) {
+		if (mRateStart == 0) {
+			// Start timing at the first block, whose bytes arrived before then
+			mRateStart = now;
+			return;
+		}
+
+		mRateBytes += length;
+		long elapsed = now - mRateStart;
+		if (elapsed >= RATE_INTERVAL) {
+			double sample = mRateBytes * 1000d / elapsed;
+			mDeliveryRate = (mDeliveryRate == 0) ? (sample) : (mDeliveryRate * 3 / 4 + sample / 4);
+			mRateBytes = 0;
+			mRateStart = now;
+		}
+	}
+
+	/**
+	 * @return the bandwidth-delay product in blocks, with headroom
+	 */
+	private int getTargetWindow() {
+		double bytesInFlight = mDeliveryRate * getMinRoundTripTime() / 1000d;
+		return (int) Math.ceil(bytesInFlight * HEADROOM / BLOCK_SIZE) + EXTRA_BLOCKS;
+	}
+
+	/**
+	 * @return how many requests may be outstanding
+	 */
+	public synchronized int getWindow() {
+		return mWindow;
+	}
+
+	public synchronized boolean isSlowStart() {
+		return mSlowStart;
+	}
+
+	/**
+	 * @return smoothed time from request to first byte, in milliseconds
+	 */
+	public synchronized double getRoundTripTime() {
+		return mRoundTripTime;
+	}
+
+	/**
+	 * @return smallest recent time from request to first byte, in milliseconds
+	 */
+	public synchronized long getMinRoundTripTime() {
+		if (mPreviousMinRoundTripTime == 0) {
+			return mMinRoundTripTime;
+		}
+		return Math.min(mMinRoundTripTime, mPreviousMinRoundTripTime);
+	}
+
+	/**
+	 * @return smoothed rate blocks are arriving, in bytes per second
+	 */
+	public synchronized double getDeliveryRate() {
+		return mDeliveryRate;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("window %d%s, rtt %.0f ms (min %d ms), rate %.1f KB/s", mWindow, mSlowStart ? " (slow start)" : "",
+				mRoundTripTime, getMinRoundTripTime(), mDeliveryRate / 1024);
+	}
+
+}
@@ -0,0 +1,235 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.peer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out which peers send bad data. Each connection downloads a
+ * piece whole from its own peer, so when a copy fails its hash check,
+ * a hash of each of its blocks is kept along with that peer, and the
+ * piece is downloaded again from a different peer. Once it passes,
+ * each old block is compared with the good copy, and the peers whose
+ * blocks differ are banned. Blocks are only hashed when a piece fails
+ * or passes after failing, and never while holding the lock.
+ */
+public class SmartBan {
+
+	/**
+	 * Told about each peer as it is banned, so that every
+	 * connection from its address can be closed
+	 */
+	public interface Listener {
+		public void onBanned(String ip);
+	}
+
+	/**
+	 * Number of failed pieces a peer may contribute to
+	 * before it is banned even without a confirmed bad block
+	 */
+	private static final int MAX_HASH_FAILURES = 3;
+
+	/**
+	 * Where a block of a piece came from
+	 */
+	private static class BlockRecord {
+		public int offset;
+		public int length;
+		public String peer;
+		public byte[] hash;
+
+		public BlockRecord(int offset, int length, String peer, byte[] hash) {
+			this.offset = offset;
+			this.length = length;
+			this.peer = peer;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Blocks of pieces that failed their hash check,
+	 * kept until a good copy of the piece arrives
+	 */
+	private Map<Integer, List<BlockRecord>> mFailedBlocks = new HashMap<Integer, List<BlockRecord>>();
+
+	/**
+	 * How many failed pieces each peer has contributed to
+	 */
+	private Map<String, Integer> mHashFailures = new HashMap<String, Integer>();
+
+	/**
+	 * Peers that will not be connected to again
+	 */
+	private Set<String> mBanned = new HashSet<String>();
+
+	/**
+	 * Told about every hash failure
+	 */
+	private PeerTable mPeerTable;
+
+	private volatile Listener mListener;
+
+	public SmartBan(PeerTable peerTable) {
+		mPeerTable = peerTable;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * The connection's copy of the piece failed its hash check; keep a
+	 * hash of each of its blocks and count a failure against its peer
+	 *
+	 * @param bytes
+	 *            the bad copy of the piece
+	 * @return true if the connection's peer is now banned
+	 */
+	public boolean pieceFailed(PeerConnection connection, int index, byte[] bytes) {
+		PeerInfo peer = connection.getPeerInfo();
+		String key = getKey(peer);
+
+		List<BlockRecord> blocks = new ArrayList<BlockRecord>();
+		for (int offset = 0; offset < bytes.length; offset += RequestWindow.BLOCK_SIZE) {
+			int length = Math.min(RequestWindow.BLOCK_SIZE, bytes.length - offset);
+			blocks.add(new BlockRecord(offset, length, key, hash(bytes, offset, length)));
+		}
+
+		mPeerTable.recordHashFailure(peer);
+
+		List<String> banned = new ArrayList<String>();
+		synchronized (this) {
+			List<BlockRecord> failed = mFailedBlocks.get(index);
+			if (failed == null) {
+				mFailedBlocks.put(index, blocks);
+			} else {
+				failed.addAll(blocks);
+			}
+
+			Integer failures = mHashFailures.get(key);
+			failures = (failures == null) ? (1) : (failures + 1);
+			mHashFailures.put(key, failures);
+
+			if (failures >= MAX_HASH_FAILURES) {
+				ban(key, banned);
+			}
+		}
+		notifyBanned(banned);
+		return isBanned(peer);
+	}
+
+	/**
+	 * The connection's copy of the piece passed its hash check; any peer
+	 * that earlier sent a block of this piece that doesn't match is banned
+	 *
+	 * @param bytes
+	 *            the verified bytes of the piece
+	 */
+	public void piecePassed(PeerConnection connection, int index, byte[] bytes) {
+		List<BlockRecord> failed;
+		synchronized (this) {
+			failed = mFailedBlocks.remove(index);
+		}
+		if (failed == null) {
+			return;
+		}
+
+		Set<String> bad = new HashSet<String>();
+		for (BlockRecord block : failed) {
+			if (block.offset + block.length > bytes.length) {
+				bad.add(block.peer);
+			} else if (!Arrays.equals(block.hash, hash(bytes, block.offset, block.length))) {
+				bad.add(block.peer);
+			}
+		}
+
+		List<String> banned = new ArrayList<String>();
+		synchronized (this) {
+			for (String peer : bad) {
+				ban(peer, banned);
+			}
+		}
+		notifyBanned(banned);
+	}
+
+	/**
+	 * @return the pieces that this peer sent bad data for, which
+	 *         should be downloaded from someone else
+	 */
+	public synchronized Set<Integer> getExcludedPieces(PeerInfo peer) {
+		Set<Integer> excluded = new HashSet<Integer>();
+		String key = getKey(peer);
+
+		for (Map.Entry<Integer, List<BlockRecord>> entry : mFailedBlocks.entrySet()) {
+			for (BlockRecord block : entry.getValue()) {
+				if (block.peer.equals(key)) {
+					excluded.add(entry.getKey());
+					break;
+				}
+			}
+		}
+
+		return excluded;
+	}
+
+	public synchronized boolean isBanned(PeerInfo peer) {
+		return peer != null && mBanned.contains(getKey(peer));
+	}
+
+	/**
+	 * @param banned
+	 *            given the peer if it wasn't already banned
+	 */
+	private void ban(String peer, List<String> banned) {
+		if (mBanned.add(peer)) {
+			System.out.println("Banning " + peer + " for sending bad data");
+			banned.add(peer);
+		}
+	}
+
+	/**
+	 * Tell the listener about newly banned peers, without
+	 * holding the lock, since it may close connections
+	 */
+	private void notifyBanned(List<String> banned) {
+		Listener listener = mListener;
+		if (listener == null) {
+			return;
+		}
+		for (String peer : banned) {
+			listener.onBanned(peer);
+		}
+	}
+
+	/**
+	 * Peers are identified by IP address, since a
+	 * bad peer can easily change its peer ID
+	 */
+	private String getKey(PeerInfo peer) {
+		return peer.getIP();
+	}
+
+	private static byte[] hash(byte[] bytes, int offset, int length) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(bytes, offset, length);
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return new byte[0];
+		}
+	}
+
+}
@@ -0,0 +1,663 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.torrent.peer.PeerInfo;
+import com.torrent.util.Config;
+import com.torrent.util.WheelTimer;
+
+/**
+ * The trackers of a torrent, in tiers (BEP 12). Within a tier, trackers
+ * are shuffled once and then tried in order until one answers, which is
+ * moved to the front so it's tried first next time. Every tier is
+ * announced to at the same time, and their peers are merged, so a
+ * tracker that is down costs nothing as long as another one is up.
+ *
+ * Announces never block the caller: they are queued on each tier and
+ * run on the given executor, and the result is handed to a callback.
+ *
+ * Once started, each tier also schedules its own regular announces:
+ * after the interval its tracker asked for (never sooner than its min
+ * interval), or after a backoff of 15 seconds doubling with each failure,
+ * spread by some jitter so that clients don't all retry together.
+ */
+public class AnnounceList {
+
+	/**
+	 * Announce interval when a tracker doesn't give one
+	 */
+	private static final int DEFAULT_INTERVAL = 30 * 60 * 1000;
+
+	/**
+	 * Shortest time between announces to a tier when asking early
+	 * for more peers, if its tracker gave no min interval
+	 */
+	private static final int DEFAULT_MIN_INTERVAL = 2 * 60 * 1000;
+
+	/**
+	 * Wait after a tier's first failed announce, doubled
+	 * for each failure after that, up to MAX_RETRY
+	 */
+	private static final long RETRY_BASE = 15000;
+	private static final long MAX_RETRY = 30 * 60 * 1000;
+
+	/**
+	 * Fraction that retries are moved by either way
+	 */
+	private static final double RETRY_JITTER = 0.25;
+
+	/**
+	 * One announce URL and what we know about it
+	 */
+	private static class Entry {
+		public String url;
+		public Tracker tracker;
+
+		/**
+		 * Whether this tracker has been sent the STARTED event,
+		 * and not since been sent STOPPED
+		 */
+		public boolean started = false;
+
+		/**
+		 * Announces that failed in a row
+		 */
+		public int failures = 0;
+
+		/**
+		 * Announces tried, and those that worked
+		 */
+		public int attempts = 0;
+		public int successes = 0;
+
+		/**
+		 * Smoothed time for the tracker to answer, in milliseconds
+		 */
+		public double latency = 0;
+
+		public String trackerId;
+		public String warning;
+		public String lastError;
+
+		public Entry(String url) {
+			this.url = url;
+		}
+
+		public synchronized Tracker getTracker() throws IOException {
+			if (tracker == null) {
+				tracker = createTracker(url);
+			}
+			return tracker;
+		}
+
+		public TrackerResponse announce(AnnounceRequest request) throws IOException {
+			// Each tracker has to hear STARTED before anything else, even
+			// COMPLETED, such as a backup that never answered before; a
+			// tracker that was never started isn't told STOPPED at all
+			String event = request.event;
+			if (!started && !TrackerUtil.Events.STOPPED.equals(event)) {
+				event = TrackerUtil.Events.STARTED;
+			}
+
+			AnnounceRequest trackerRequest = new AnnounceRequest(request, event);
+			trackerRequest.trackerId = trackerId;
+
+			attempts++;
+			long start = System.currentTimeMillis();
+			TrackerResponse response;
+			try {
+				response = getTracker().announce(trackerRequest);
+			} catch (IOException e) {
+				failures++;
+				lastError = e.getMessage();
+				throw e;
+			}
+
+			long time = System.currentTimeMillis() - start;
+			latency = (latency == 0) ? (time) : (latency * 3 / 4 + time / 4d);
+			successes++;
+			failures = 0;
+			lastError = null;
+
+			if (response.trackerId != null) {
+				trackerId = response.trackerId;
+			}
+			if (response.warning != null && !response.warning.equals(warning)) {
+				System.out.println("Tracker " + url + " warns: " + response.warning);
+			}
+			warning = response.warning;
+
+			if (TrackerUtil.Events.STARTED.equals(event)) {
+				started = true;
+			} else if (TrackerUtil.Events.STOPPED.equals(event)) {
+				started = false;
+			}
+			return response;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s  %d/%d ok, %.0f ms%s%s", url, successes, attempts, latency, (warning != null) ? (", warning: " + warning) : (""),
+					(lastError != null) ? (", error: " + lastError) : (""));
+		}
+	}
+
+	/**
+	 * Makes the request for a regular announce, with up-to-date counts
+	 */
+	public interface RequestFactory {
+		public AnnounceRequest createRequest();
+	}
+
+	/**
+	 * Told the merged result of an announce
+	 */
+	public interface Callback {
+		/**
+		 * @param response
+		 *            the peers of every tier that answered, without
+		 *            duplicates, and the shortest interval any of them
+		 *            asked for; or null if no tracker could be reached
+		 */
+		public void onResponse(TrackerResponse response);
+	}
+
+	/**
+	 * Told the merged result of a scrape
+	 */
+	public interface ScrapeCallback {
+		/**
+		 * @param results
+		 *            for each info hash, in order, the biggest swarm any
+		 *            tier reported, or null if none did
+		 */
+		public void onScrape(ScrapeInfo[] results);
+	}
+
+	/**
+	 * The trackers of one tier, and the announces waiting for them.
+	 * Announces to a tier run one at a time, in the order they were
+	 * made, so each tracker hears STARTED, COMPLETED and STOPPED in order
+	 */
+	private class Tier implements Runnable {
+		private List<Entry> mEntries = new ArrayList<Entry>();
+		private LinkedList<Pending> mQueue = new LinkedList<Pending>();
+		private boolean mRunning = false;
+
+		/**
+		 * When this tier last announced, and what its tracker said about
+		 * the next one, in milliseconds
+		 */
+		private long mLastAnnounce = 0;
+		private int mInterval = 0;
+		private int mMinInterval = 0;
+
+		/**
+		 * Regular announces that failed in a row
+		 */
+		private int mRetries = 0;
+
+		/**
+		 * The next regular announce
+		 */
+		private WheelTimer.Timeout mTimeout;
+		private long mNextAnnounce = Long.MAX_VALUE;
+
+		public void enqueue(Pending pending) {
+			synchronized (this) {
+				mQueue.add(pending);
+				if (mRunning) {
+					return;
+				}
+				mRunning = true;
+			}
+
+			try {
+				mExecutor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// Shutting down, so there is nothing left to announce on
+				synchronized (this) {
+					mRunning = false;
+				}
+				abandon();
+			}
+		}
+
+		/**
+		 * Drop every queued announce, telling each it got no answer here
+		 */
+		private void abandon() {
+			List<Pending> abandoned;
+			synchronized (this) {
+				abandoned = new ArrayList<Pending>(mQueue);
+				mQueue.clear();
+			}
+
+			for (Pending pending : abandoned) {
+				pending.add(null);
+			}
+		}
+
+		public void run() {
+			while (true) {
+				Pending pending;
+				synchronized (this) {
+					pending = mQueue.poll();
+					if (pending == null) {
+						mRunning = false;
+						return;
+					}
+				}
+
+				TrackerResponse response = null;
+				try {
+					response = announce(pending.request);
+				} finally {
+					announced(pending.request, response);
+					pending.add(response);
+				}
+			}
+		}
+
+		/**
+		 * Try each tracker in turn until one answers, and move it to the front
+		 *
+		 * @return its response, or null if none did
+		 */
+		private TrackerResponse announce(AnnounceRequest request) {
+			for (int i = 0; i < mEntries.size(); i++) {
+				Entry entry = mEntries.get(i);
+
+				// Nothing to stop on a tracker that was never started
+				if (TrackerUtil.Events.STOPPED.equals(request.event) && !entry.started) {
+					continue;
+				}
+
+				try {
+					TrackerResponse response = entry.announce(request);
+					synchronized (this) {
+						mEntries.remove(i);
+						mEntries.add(0, entry);
+					}
+					return response;
+				} catch (IOException e) {
+					System.out.println("Tracker " + entry.url + ": " + e.getMessage());
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Schedule the next regular announce, replacing any already scheduled
+		 */
+		private synchronized void schedule(long delay) {
+			unschedule();
+			if (mTimer == null || mStopped) {
+				return;
+			}
+
+			mNextAnnounce = System.currentTimeMillis() + delay;
+			mTimeout = mTimer.schedule(new Runnable() {
+				public void run() {
+					enqueue(new Pending(mRequests.createRequest(), mListener, 1));
+				}
+			}, delay);
+		}
+
+		private synchronized void unschedule() {
+			if (mTimeout != null) {
+				mTimeout.cancel();
+				mTimeout = null;
+			}
+			mNextAnnounce = Long.MAX_VALUE;
+		}
+
+		/**
+		 * After any announce, schedule the next regular one
+		 */
+		private synchronized void announced(AnnounceRequest request, TrackerResponse response) {
+			mLastAnnounce = System.currentTimeMillis();
+
+			if (TrackerUtil.Events.STOPPED.equals(request.event)) {
+				unschedule();
+			} else if (response != null) {
+				mRetries = 0;
+				mInterval = response.interval;
+				mMinInterval = response.minInterval;
+				schedule(Math.max((mInterval > 0) ? (mInterval) : (DEFAULT_INTERVAL), mMinInterval));
+			} else {
+				long retry = Math.min(MAX_RETRY, RETRY_BASE << Math.min(mRetries, 16));
+				mRetries++;
+				schedule((long) (retry * (1 - RETRY_JITTER + 2 * RETRY_JITTER * mRandom.nextDouble())));
+			}
+		}
+
+		/**
+		 * Announce as soon as the tracker allows, unless that's already scheduled
+		 */
+		public synchronized void announceSoon() {
+			if (mTimeout == null) {
+				return;
+			}
+
+			long earliest = mLastAnnounce + Math.max(mMinInterval, DEFAULT_MIN_INTERVAL);
+			if (earliest < mNextAnnounce) {
+				schedule(Math.max(0, earliest - System.currentTimeMillis()));
+			}
+		}
+
+		/**
+		 * Scrape the trackers in the order they'd be announced
+		 * to, until one answers
+		 *
+		 * @return the swarms, or null if no tracker answered
+		 */
+		public ScrapeInfo[] scrape(byte[][] infoHashes) {
+			List<Entry> entries;
+			synchronized (this) {
+				entries = new ArrayList<Entry>(mEntries);
+			}
+
+			for (Entry entry : entries) {
+				try {
+					return entry.getTracker().scrape(infoHashes);
+				} catch (IOException e) {
+					System.out.println("Scrape " + entry.url + ": " + e.getMessage());
+				}
+			}
+
+			return null;
+		}
+
+		public void close() {
+			abandon();
+			synchronized (this) {
+				unschedule();
+				for (Entry entry : mEntries) {
+					if (entry.tracker != null) {
+						entry.tracker.close();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * One announce, collecting the answer of each tier
+	 */
+	private static class Pending {
+		public AnnounceRequest request;
+		public Callback callback;
+
+		private int mWaiting;
+		private TrackerResponse mMerged = null;
+		private Map<String, PeerInfo> mPeers = new LinkedHashMap<String, PeerInfo>();
+
+		public Pending(AnnounceRequest request, Callback callback, int tiers) {
+			this.request = request;
+			this.callback = callback;
+			mWaiting = tiers;
+		}
+
+		/**
+		 * A tier has answered, or failed with null; the
+		 * last one to do so tells the callback
+		 */
+		public void add(TrackerResponse response) {
+			synchronized (this) {
+				if (response != null) {
+					merge(response);
+				}
+				if (--mWaiting > 0) {
+					return;
+				}
+				if (mMerged != null) {
+					mMerged.peers = new ArrayList<PeerInfo>(mPeers.values());
+				}
+			}
+
+			if (callback != null) {
+				callback.onResponse(mMerged);
+			}
+		}
+
+		private void merge(TrackerResponse response) {
+			if (mMerged == null) {
+				mMerged = new TrackerResponse();
+				mMerged.interval = response.interval;
+			} else if (response.interval > 0 && (mMerged.interval <= 0 || response.interval < mMerged.interval)) {
+				mMerged.interval = response.interval;
+			}
+			mMerged.minInterval = Math.max(mMerged.minInterval, response.minInterval);
+			mMerged.seeders = Math.max(mMerged.seeders, response.seeders);
+			mMerged.leechers = Math.max(mMerged.leechers, response.leechers);
+
+			for (PeerInfo peer : response.peers) {
+				String key = peer.getIP() + ":" + peer.getPort();
+				if (!mPeers.containsKey(key)) {
+					mPeers.put(key, peer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One scrape, collecting the answer of each tier
+	 */
+	private static class PendingScrape {
+		private ScrapeCallback mCallback;
+		private int mWaiting;
+		private ScrapeInfo[] mMerged;
+
+		public PendingScrape(ScrapeCallback callback, int infoHashes, int tiers) {
+			mCallback = callback;
+			mMerged = new ScrapeInfo[infoHashes];
+			mWaiting = tiers;
+		}
+
+		public void add(ScrapeInfo[] results) {
+			synchronized (this) {
+				for (int i = 0; results != null && i < results.length; i++) {
+					if (results[i] != null) {
+						mMerged[i] = results[i].merge(mMerged[i]);
+					}
+				}
+				if (--mWaiting > 0) {
+					return;
+				}
+			}
+
+			mCallback.onScrape(mMerged);
+		}
+	}
+
+	private List<Tier> mTiers = new ArrayList<Tier>();
+
+	/**
+	 * Set once regular announces start
+	 */
+	private WheelTimer mTimer;
+	private RequestFactory mRequests;
+	private Callback mListener;
+	private volatile boolean mStopped = false;
+
+	private Random mRandom = new Random();
+
+	/**
+	 * Runs the announces; may be shared by many torrents
+	 */
+	private Executor mExecutor;
+
+	/**
+	 * @param tiers
+	 *            the announce URLs, most preferred tier first
+	 * @param executor
+	 *            where announces run, since they block on the network
+	 */
+	public AnnounceList(List<List<String>> tiers, Executor executor) {
+		mExecutor = executor;
+
+		for (List<String> urls : tiers) {
+			Tier tier = new Tier();
+			for (String url : urls) {
+				tier.mEntries.add(new Entry(url));
+			}
+			if (!tier.mEntries.isEmpty()) {
+				Collections.shuffle(tier.mEntries);
+				mTiers.add(tier);
+			}
+		}
+	}
+
+	/**
+	 * Queue an announce to every tier at once, without waiting for it
+	 *
+	 * @param callback
+	 *            told the result on a tracker thread, may be null
+	 */
+	public void announce(AnnounceRequest request, Callback callback) {
+		Pending pending = new Pending(request, callback, mTiers.size());
+		if (mTiers.isEmpty()) {
+			pending.add(null);
+			return;
+		}
+
+		for (Tier tier : mTiers) {
+			tier.enqueue(pending);
+		}
+	}
+
+	/**
+	 * Start announcing to every tier regularly
+	 *
+	 * @param requests
+	 *            makes each regular announce
+	 * @param listener
+	 *            told each tier's response, or null when
+	 *            every tracker of a tier failed
+	 */
+	public void start(WheelTimer timer, RequestFactory requests, Callback listener) {
+		mTimer = timer;
+		mRequests = requests;
+		mListener = listener;
+
+		for (Tier tier : mTiers) {
+			tier.schedule(0);
+		}
+	}
+
+	/**
+	 * Announce to every tier as soon as its tracker allows, such as when
+	 * we've run short of peers, rather than waiting for the interval
+	 */
+	public void announceSoon() {
+		for (Tier tier : mTiers) {
+			tier.announceSoon();
+		}
+	}
+
+	/**
+	 * Stop scheduling regular announces; events can still be sent
+	 */
+	public void stop() {
+		mStopped = true;
+		for (Tier tier : mTiers) {
+			tier.unschedule();
+		}
+	}
+
+	/**
+	 * @return a line for each tracker, and when each tier announces next
+	 */
+	public List<String> getStatus() {
+		List<String> status = new ArrayList<String>();
+		for (int i = 0; i < mTiers.size(); i++) {
+			Tier tier = mTiers.get(i);
+			synchronized (tier) {
+				long next = tier.mNextAnnounce - System.currentTimeMillis();
+				status.add("Tier " + (i + 1) + ((tier.mNextAnnounce == Long.MAX_VALUE) ? ("") : (", next announce in " + Math.max(0, next / 1000) + " s"))
+						+ ((tier.mRetries > 0) ? (", " + tier.mRetries + " failed") : ("")));
+				for (Entry entry : tier.mEntries) {
+					status.add("    " + entry);
+				}
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Ask every tier at once how big several torrents' swarms are,
+	 * batching them into as few requests as each tracker allows.
+	 * Unlike announces, scrapes aren't queued behind each other
+	 *
+	 * @param callback
+	 *            told the result on a tracker thread
+	 */
+	public void scrape(final byte[][] infoHashes, ScrapeCallback callback) {
+		final PendingScrape pending = new PendingScrape(callback, infoHashes.length, mTiers.size());
+		if (mTiers.isEmpty()) {
+			pending.add(null);
+			return;
+		}
+
+		for (final Tier tier : mTiers) {
+			Runnable scrape = new Runnable() {
+				public void run() {
+					ScrapeInfo[] results = null;
+					try {
+						results = tier.scrape(infoHashes);
+					} finally {
+						pending.add(results);
+					}
+				}
+			};
+
+			try {
+				mExecutor.execute(scrape);
+			} catch (RejectedExecutionException e) {
+				pending.add(null);
+			}
+		}
+	}
+
+	/**
+	 * Drop any announces that haven't started, and close every tracker
+	 */
+	public void close() {
+		for (Tier tier : mTiers) {
+			tier.close();
+		}
+	}
+
+	/**
+	 * @return a tracker for the scheme of the announce URL
+	 */
+	private static Tracker createTracker(String url) throws IOException {
+		if (url.startsWith("udp://")) {
+			UdpTracker tracker = new UdpTracker(url);
+			tracker.setRetransmit(Config.getInt("udptimeout", UdpTracker.DEFAULT_TIMEOUT), Config.getInt("udpattempts", UdpTracker.DEFAULT_ATTEMPTS));
+			return tracker;
+		} else if (url.startsWith("http://") || url.startsWith("https://")) {
+			return new HttpTracker(url);
+		}
+
+		throw new IOException("Unsupported tracker " + url);
+	}
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+/**
+ * What we tell a tracker when announcing
+ */
+public class AnnounceRequest {
+
+	public byte[] infoHash;
+	public byte[] peerId;
+
+	/**
+	 * The port we listen for peers on
+	 */
+	public int port;
+
+	public long downloaded;
+	public long uploaded;
+	public long left;
+
+	/**
+	 * One of TrackerUtil.Events, or null for a regular announce
+	 */
+	public String event;
+
+	/**
+	 * How many peers to ask for, -1 for the tracker's default
+	 */
+	public int numWant = -1;
+
+	/**
+	 * What the tracker last gave as its tracker id, or null
+	 */
+	public String trackerId;
+
+	public AnnounceRequest() {
+	}
+
+	/**
+	 * Copy a request, changing its event; the
+	 * tracker id belongs to one tracker, so isn't copied
+	 */
+	public AnnounceRequest(AnnounceRequest request, String event) {
+		infoHash = request.infoHash;
+		peerId = request.peerId;
+		port = request.port;
+		downloaded = request.downloaded;
+		uploaded = request.uploaded;
+		left = request.left;
+		numWant = request.numWant;
+		this.event = event;
+	}
+
+}
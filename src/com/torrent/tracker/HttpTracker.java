@@ -0,0 +1,302 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import com.torrent.peer.PeerInfo;
+import com.torrent.util.Bencoder2;
+import com.torrent.util.HexStringConverter;
+import com.torrent.util.StreamUtil;
+
+/**
+ * Talks to a tracker over HTTP
+ */
+public class HttpTracker implements Tracker {
+
+	/**
+	 * The keys used as HTTP parameters in requests to the tracker
+	 */
+	private static class Keys {
+		public static final String PEER_ID = "peer_id";
+		public static final String INFO_HASH = "info_hash";
+		public static final String IP = "ip";
+		public static final String PORT = "port";
+		public static final String UPLOADED = "uploaded";
+		public static final String DOWNLOADED = "downloaded";
+		public static final String LEFT = "left";
+		public static final String EVENT = "event";
+		public static final String COMPACT = "compact";
+		public static final String NUM_WANT = "numwant";
+		public static final String TRACKER_ID = "trackerid";
+	}
+
+	/**
+	 * The constant keys that are used in the byte encoded response
+	 */
+	private static class TrackerConstants {
+		public static final ByteBuffer COMPLETE = ByteBuffer.wrap("complete".getBytes());
+		public static final ByteBuffer INCOMPLETE = ByteBuffer.wrap("incomplete".getBytes());
+		public static final ByteBuffer FAILURE_REASON = ByteBuffer.wrap("failure reason".getBytes());
+		public static final ByteBuffer WARNING_MESSAGE = ByteBuffer.wrap("warning message".getBytes());
+		public static final ByteBuffer TRACKER_ID = ByteBuffer.wrap("tracker id".getBytes());
+		public static final ByteBuffer INTERVAL = ByteBuffer.wrap("interval".getBytes());
+		public static final ByteBuffer MIN_INTERVAL = ByteBuffer.wrap("min interval".getBytes());
+		public static final ByteBuffer PEERS = ByteBuffer.wrap("peers".getBytes());
+		public static final ByteBuffer FILES = ByteBuffer.wrap("files".getBytes());
+		public static final ByteBuffer DOWNLOADED = ByteBuffer.wrap("downloaded".getBytes());
+
+		public static class Response {
+			public static final String PORT = "port";
+			public static final String IP = "ip";
+			public static final String PEER_ID = "peer id";
+		}
+	}
+
+	/**
+	 * Milliseconds to wait for the tracker to accept and to answer
+	 */
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 30000;
+
+	/**
+	 * Most info hashes in one scrape, which keeps the URL a sensible length
+	 */
+	private static final int MAX_SCRAPE = 50;
+
+	private String mAnnounceURL;
+
+	/**
+	 * By convention, the announce URL with its last "announce"
+	 * changed to "scrape"; null if the tracker doesn't scrape
+	 */
+	private String mScrapeURL;
+
+	public HttpTracker(String announceURL) {
+		mAnnounceURL = announceURL;
+
+		int slash = announceURL.lastIndexOf('/');
+		if (slash >= 0 && announceURL.startsWith("announce", slash + 1)) {
+			mScrapeURL = announceURL.substring(0, slash + 1) + "scrape" + announceURL.substring(slash + 1 + "announce".length());
+		}
+	}
+
+	public TrackerResponse announce(AnnounceRequest request) throws IOException {
+		// Add all the URL params needed (info hash, our peer id, the port
+		// we'll listen on, and how much we've transferred)
+		String connectURL = mAnnounceURL + ((mAnnounceURL.indexOf('?') < 0) ? ("?") : ("&")) + Keys.INFO_HASH + "="
+				+ HexStringConverter.toHexString(request.infoHash) + "&" + Keys.PEER_ID + "=" + HexStringConverter.toHexString(request.peerId) + "&"
+				+ Keys.PORT + "=" + request.port + "&" + Keys.DOWNLOADED + "=" + request.downloaded + "&" + Keys.UPLOADED + "=" + request.uploaded
+				+ "&" + Keys.LEFT + "=" + request.left + "&" + Keys.COMPACT + "=1"
+				+ ((request.numWant >= 0) ? ("&" + Keys.NUM_WANT + "=" + request.numWant) : (""))
+				+ ((request.trackerId != null) ? ("&" + Keys.TRACKER_ID + "=" + URLEncoder.encode(request.trackerId, "ISO-8859-1")) : (""))
+				+ ((request.event != null) ? ("&" + Keys.EVENT + "=" + request.event) : (""));
+
+		return decodeResponse(get(connectURL));
+	}
+
+	public ScrapeInfo[] scrape(byte[][] infoHashes) throws IOException {
+		if (mScrapeURL == null) {
+			throw new IOException("Tracker " + mAnnounceURL + " doesn't scrape");
+		}
+
+		ScrapeInfo[] results = new ScrapeInfo[infoHashes.length];
+
+		for (int start = 0; start < infoHashes.length; start += MAX_SCRAPE) {
+			int count = Math.min(MAX_SCRAPE, infoHashes.length - start);
+
+			StringBuilder scrapeURL = new StringBuilder(mScrapeURL);
+			for (int i = start; i < start + count; i++) {
+				scrapeURL.append((i == start && mScrapeURL.indexOf('?') < 0) ? ('?') : ('&'));
+				scrapeURL.append(Keys.INFO_HASH).append('=').append(HexStringConverter.toHexString(infoHashes[i]));
+			}
+
+			Map<?, ?> files = decodeScrape(get(scrapeURL.toString()));
+			for (int i = start; i < start + count; i++) {
+				Object file = files.get(ByteBuffer.wrap(infoHashes[i]));
+				if (file instanceof Map) {
+					Map<?, ?> counts = (Map<?, ?>) file;
+					results[i] = new ScrapeInfo(getInt(counts, TrackerConstants.COMPLETE), getInt(counts, TrackerConstants.INCOMPLETE),
+							getInt(counts, TrackerConstants.DOWNLOADED));
+				}
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * @return the body of the tracker's answer to a GET of the URL
+	 */
+	private byte[] get(String connectURL) throws IOException {
+		URL trackerURL = new URL(connectURL);
+
+		HttpURLConnection getRequest = (HttpURLConnection) trackerURL.openConnection();
+		getRequest.setRequestMethod("GET");
+		getRequest.setConnectTimeout(CONNECT_TIMEOUT);
+		getRequest.setReadTimeout(READ_TIMEOUT);
+
+		// Helps with HttpURLConnection work when the port number is not 80
+		getRequest.setRequestProperty("User-Agent", "Mozilla/5.0 ( compatible ) ");
+		getRequest.setRequestProperty("Accept", "*/*");
+		getRequest.setRequestProperty("Accept-Encoding", "gzip");
+
+		getRequest.connect();
+
+		int status = getRequest.getResponseCode();
+
+		if (status != 200) {
+			// There was a problem reaching the tracker
+			InputStream errorStream = getRequest.getErrorStream();
+			String error = (errorStream != null) ? (StreamUtil.streamToString(errorStream)) : ("");
+			if (errorStream != null) {
+				errorStream.close();
+			}
+
+			throw new IOException("Tracker " + mAnnounceURL + " answered " + status + " " + error);
+		}
+
+		// Get the tracker's response, reading all of it so
+		// that the connection can be reused for the next announce
+		InputStream getResponse = getRequest.getInputStream();
+		if ("gzip".equalsIgnoreCase(getRequest.getContentEncoding())) {
+			getResponse = new GZIPInputStream(getResponse);
+		}
+		byte[] response = StreamUtil.streamToBytes(getResponse);
+		getResponse.close();
+
+		return response;
+	}
+
+	public void close() {
+	}
+
+	private TrackerResponse decodeResponse(byte[] response) throws IOException {
+		try {
+			TrackerResponse result = new TrackerResponse();
+
+			// Decode the response from the tracker
+			HashMap<ByteBuffer, Object> decodedResponse = (HashMap<ByteBuffer, Object>) Bencoder2.decode(response);
+
+			if (decodedResponse.containsKey(TrackerConstants.FAILURE_REASON)) {
+				throw new IOException("Tracker " + mAnnounceURL + " failed: "
+						+ new String(((ByteBuffer) decodedResponse.get(TrackerConstants.FAILURE_REASON)).array()));
+			}
+
+			if (decodedResponse.containsKey(TrackerConstants.PEERS)) {
+				result.peers = decodePeers(decodedResponse.get(TrackerConstants.PEERS));
+			}
+
+			if (decodedResponse.containsKey(TrackerConstants.INTERVAL)) {
+				result.interval = (Integer) decodedResponse.get(TrackerConstants.INTERVAL) * 1000;
+			}
+			if (decodedResponse.containsKey(TrackerConstants.MIN_INTERVAL)) {
+				result.minInterval = (Integer) decodedResponse.get(TrackerConstants.MIN_INTERVAL) * 1000;
+			}
+			if (decodedResponse.containsKey(TrackerConstants.COMPLETE)) {
+				result.seeders = (Integer) decodedResponse.get(TrackerConstants.COMPLETE);
+			}
+			if (decodedResponse.containsKey(TrackerConstants.INCOMPLETE)) {
+				result.leechers = (Integer) decodedResponse.get(TrackerConstants.INCOMPLETE);
+			}
+			if (decodedResponse.containsKey(TrackerConstants.WARNING_MESSAGE)) {
+				result.warning = new String(((ByteBuffer) decodedResponse.get(TrackerConstants.WARNING_MESSAGE)).array());
+			}
+			if (decodedResponse.containsKey(TrackerConstants.TRACKER_ID)) {
+				result.trackerId = new String(((ByteBuffer) decodedResponse.get(TrackerConstants.TRACKER_ID)).array(), "ISO-8859-1");
+			}
+
+			return result;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Bad response from tracker " + mAnnounceURL + ": " + e);
+		}
+	}
+
+	/**
+	 * @return the counts of each torrent, keyed by info hash
+	 */
+	private Map<?, ?> decodeScrape(byte[] response) throws IOException {
+		try {
+			Object decoded = Bencoder2.decode(response);
+			if (!(decoded instanceof Map)) {
+				throw new IOException("Bad response from tracker " + mScrapeURL);
+			}
+			Map<?, ?> decodedResponse = (Map<?, ?>) decoded;
+
+			if (decodedResponse.containsKey(TrackerConstants.FAILURE_REASON)) {
+				throw new IOException("Tracker " + mScrapeURL + " failed: "
+						+ new String(((ByteBuffer) decodedResponse.get(TrackerConstants.FAILURE_REASON)).array()));
+			}
+
+			Object files = decodedResponse.get(TrackerConstants.FILES);
+			return (files instanceof Map) ? ((Map<?, ?>) files) : (new HashMap<ByteBuffer, Object>());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Bad response from tracker " + mScrapeURL + ": " + e);
+		}
+	}
+
+	private static int getInt(Map<?, ?> map, ByteBuffer key) {
+		Object value = map.get(key);
+		return (value instanceof Integer) ? ((Integer) value) : (0);
+	}
+
+	/**
+	 * Trackers send peers either as a compact string (BEP 23), six bytes
+	 * per peer, or as a list of dictionaries if they don't support it
+	 */
+	private static List<PeerInfo> decodePeers(Object peers) {
+		if (peers instanceof ByteBuffer) {
+			ByteBuffer compact = (ByteBuffer) peers;
+			return PeerInfo.fromCompact(compact.array(), compact.arrayOffset() + compact.position(), compact.remaining());
+		}
+
+		List<PeerInfo> peerInfos = new ArrayList<PeerInfo>();
+		ArrayList<HashMap> peerMapList = (ArrayList<HashMap>) peers;
+
+		for (HashMap<ByteBuffer, Object> peerMap : peerMapList) {
+
+			// Translate this data structure into a PeerInfo object
+			PeerInfo peer = new PeerInfo();
+			for (ByteBuffer key : peerMap.keySet()) {
+				String attributeKey = new String(key.array());
+				Object value = peerMap.get(key);
+
+				if (attributeKey.equals(TrackerConstants.Response.IP)) {
+					peer.setIP(new String(((ByteBuffer) value).array()));
+				} else if (attributeKey.equals(TrackerConstants.Response.PEER_ID)) {
+					peer.setPeerID(new String(((ByteBuffer) value).array()));
+				} else if (attributeKey.equals(TrackerConstants.Response.PORT)) {
+					peer.setPort((Integer) peerMap.get(key));
+				}
+			}
+
+			peerInfos.add(peer);
+		}
+
+		return peerInfos;
+	}
+
+	@Override
+	public String toString() {
+		return mAnnounceURL;
+	}
+
+}
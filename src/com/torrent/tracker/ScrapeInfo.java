@@ -0,0 +1,61 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+/**
+ * How healthy a torrent's swarm is, as a tracker reported it
+ */
+public class ScrapeInfo {
+
+	/**
+	 * Peers that have the whole torrent
+	 */
+	public int seeders;
+
+	/**
+	 * Peers still downloading
+	 */
+	public int leechers;
+
+	/**
+	 * Downloads the tracker has seen finish
+	 */
+	public int completed;
+
+	/**
+	 * When this was reported
+	 */
+	public long time = System.currentTimeMillis();
+
+	public ScrapeInfo(int seeders, int leechers, int completed) {
+		this.seeders = seeders;
+		this.leechers = leechers;
+		this.completed = completed;
+	}
+
+	public boolean isOlderThan(long age) {
+		return System.currentTimeMillis() - time > age;
+	}
+
+	/**
+	 * @return a report with the most peers of either
+	 */
+	public ScrapeInfo merge(ScrapeInfo other) {
+		if (other == null) {
+			return this;
+		}
+		ScrapeInfo merged = new ScrapeInfo(Math.max(seeders, other.seeders), Math.max(leechers, other.leechers), Math.max(completed, other.completed));
+		merged.time = Math.min(time, other.time);
+		return merged;
+	}
+
+	@Override
+	public String toString() {
+		return seeders + " seeders, " + leechers + " leechers, " + completed + " completed";
+	}
+
+}
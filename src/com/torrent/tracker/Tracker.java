@@ -0,0 +1,35 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+import java.io.IOException;
+
+/**
+ * A tracker at one announce URL
+ */
+public interface Tracker {
+
+	/**
+	 * @throws IOException
+	 *             if the tracker couldn't be reached, or refused the announce
+	 */
+	public TrackerResponse announce(AnnounceRequest request) throws IOException;
+
+	/**
+	 * Ask how many peers several torrents have, in as few requests as the
+	 * tracker allows
+	 *
+	 * @return the swarm of each info hash, in order, or null
+	 *         for a torrent the tracker didn't report
+	 * @throws IOException
+	 *             if the tracker couldn't be reached, or doesn't scrape
+	 */
+	public ScrapeInfo[] scrape(byte[][] infoHashes) throws IOException;
+
+	public void close();
+
+}
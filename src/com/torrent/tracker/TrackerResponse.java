@@ -0,0 +1,48 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.torrent.peer.PeerInfo;
+
+/**
+ * What a tracker said in answer to an announce
+ */
+public class TrackerResponse {
+
+	/**
+	 * Milliseconds the tracker wants between announces
+	 */
+	public int interval;
+
+	/**
+	 * Milliseconds the tracker insists on between announces, 0 if it didn't say
+	 */
+	public int minInterval;
+
+	/**
+	 * Peers that have the whole torrent, and those that don't,
+	 * or -1 if the tracker didn't say
+	 */
+	public int seeders = -1;
+	public int leechers = -1;
+
+	public List<PeerInfo> peers = new ArrayList<PeerInfo>();
+
+	/**
+	 * Something the tracker wants us to know, though the announce worked
+	 */
+	public String warning;
+
+	/**
+	 * Sent back with later announces to this tracker, if it gave one
+	 */
+	public String trackerId;
+
+}
@@ -0,0 +1,648 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.torrent.util.Bencoder2;
+import com.torrent.util.BencodingException;
+import com.torrent.util.WheelTimer;
+
+/**
+ * A small HTTP tracker that runs inside the client, for swarms on a LAN
+ * and as a local tracker to test against. Swarms are only kept in memory,
+ * and peers that stop announcing are forgotten after two intervals.
+ */
+public class TrackerServer {
+
+	/**
+	 * The HTTP parameters of announces and scrapes
+	 */
+	private static class Keys {
+		public static final String INFO_HASH = "info_hash";
+		public static final String PEER_ID = "peer_id";
+		public static final String IP = "ip";
+		public static final String PORT = "port";
+		public static final String LEFT = "left";
+		public static final String EVENT = "event";
+		public static final String COMPACT = "compact";
+		public static final String NUM_WANT = "numwant";
+	}
+
+	/**
+	 * The keys of the bencoded answers
+	 */
+	private static class Responses {
+		public static final ByteBuffer FAILURE_REASON = ByteBuffer.wrap("failure reason".getBytes());
+		public static final ByteBuffer INTERVAL = ByteBuffer.wrap("interval".getBytes());
+		public static final ByteBuffer MIN_INTERVAL = ByteBuffer.wrap("min interval".getBytes());
+		public static final ByteBuffer COMPLETE = ByteBuffer.wrap("complete".getBytes());
+		public static final ByteBuffer INCOMPLETE = ByteBuffer.wrap("incomplete".getBytes());
+		public static final ByteBuffer DOWNLOADED = ByteBuffer.wrap("downloaded".getBytes());
+		public static final ByteBuffer PEERS = ByteBuffer.wrap("peers".getBytes());
+		public static final ByteBuffer FILES = ByteBuffer.wrap("files".getBytes());
+		public static final ByteBuffer IP = ByteBuffer.wrap("ip".getBytes());
+		public static final ByteBuffer PORT = ByteBuffer.wrap("port".getBytes());
+		public static final ByteBuffer PEER_ID = ByteBuffer.wrap("peer id".getBytes());
+	}
+
+	/**
+	 * Milliseconds peers are told to wait between announces
+	 */
+	public static final long DEFAULT_INTERVAL = 5 * 60 * 1000;
+
+	/**
+	 * Peers given when an announce doesn't say, and the most ever given
+	 */
+	public static final int DEFAULT_NUM_WANT = 50;
+	private static final int MAX_NUM_WANT = 200;
+
+	/**
+	 * Threads answering requests
+	 */
+	public static final int DEFAULT_THREADS = 4;
+
+	/**
+	 * Connections the OS may queue before they're accepted
+	 */
+	private static final int BACKLOG = 1024;
+
+	static {
+		// The JDK server writes headers and body separately, which Nagle's
+		// algorithm holds for a delayed ACK, about 40ms per announce; this
+		// is read once, when the server classes first load
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	/**
+	 * One peer in a swarm, with its compact form worked out once
+	 */
+	private static class Peer {
+		public final String peerId;
+		public final String ip;
+		public final int port;
+
+		/**
+		 * Null if the peer doesn't have an IPv4 address
+		 */
+		public final byte[] compact;
+
+		public final boolean seed;
+		public final long lastSeen;
+
+		public Peer(String peerId, InetAddress address, int port, boolean seed) {
+			this.peerId = peerId;
+			this.ip = address.getHostAddress();
+			this.port = port;
+			this.seed = seed;
+			this.lastSeen = System.currentTimeMillis();
+
+			if (address instanceof Inet4Address) {
+				compact = new byte[6];
+				System.arraycopy(address.getAddress(), 0, compact, 0, 4);
+				compact[4] = (byte) (port >> 8);
+				compact[5] = (byte) port;
+			} else {
+				compact = null;
+			}
+		}
+	}
+
+	/**
+	 * The peers of one torrent. They're kept in a list, with the index of
+	 * each by peer id, so a peer is found, removed, or a random run of
+	 * peers handed out without going through the whole swarm.
+	 */
+	private static class Swarm {
+		private final List<Peer> mPeers = new ArrayList<Peer>();
+		private final Map<String, Integer> mIndex = new HashMap<String, Integer>();
+
+		private int mSeeders = 0;
+		private int mCompleted = 0;
+
+		/**
+		 * Set once the swarm emptied and was taken out of the table,
+		 * after which announces must go to a new one
+		 */
+		private boolean mRemoved = false;
+
+		/**
+		 * Add or update a peer
+		 *
+		 * @return false if the swarm was already removed
+		 */
+		public synchronized boolean announce(Peer peer, boolean completed) {
+			if (mRemoved) {
+				return false;
+			}
+
+			Integer index = mIndex.get(peer.peerId);
+			if (index == null) {
+				mIndex.put(peer.peerId, mPeers.size());
+				mPeers.add(peer);
+			} else {
+				Peer old = mPeers.set(index, peer);
+				if (old.seed) {
+					mSeeders--;
+				}
+			}
+
+			if (peer.seed) {
+				mSeeders++;
+			}
+			if (completed) {
+				mCompleted++;
+			}
+			return true;
+		}
+
+		public synchronized void remove(String peerId) {
+			Integer index = mIndex.get(peerId);
+			if (index != null) {
+				remove(index);
+			}
+		}
+
+		/**
+		 * Up to numWant peers, starting at a random one; a seed is only
+		 * given peers that are still downloading
+		 */
+		public synchronized List<Peer> getPeers(int numWant, Peer requester, Random random) {
+			List<Peer> peers = new ArrayList<Peer>(Math.min(numWant, mPeers.size()));
+			int size = mPeers.size();
+			if (size == 0) {
+				return peers;
+			}
+
+			int start = random.nextInt(size);
+			for (int i = 0; i < size && peers.size() < numWant; i++) {
+				Peer peer = mPeers.get((start + i) % size);
+				if (peer.peerId.equals(requester.peerId) || (requester.seed && peer.seed)) {
+					continue;
+				}
+				peers.add(peer);
+			}
+			return peers;
+		}
+
+		/**
+		 * Forget peers that last announced before the cutoff
+		 *
+		 * @return true if the swarm is now empty, and was marked removed
+		 */
+		public synchronized boolean expire(long cutoff) {
+			// Go backward so a peer swapped into a removed slot was already checked
+			for (int i = mPeers.size() - 1; i >= 0; i--) {
+				if (mPeers.get(i).lastSeen < cutoff) {
+					remove(i);
+				}
+			}
+
+			if (mPeers.isEmpty()) {
+				mRemoved = true;
+			}
+			return mRemoved;
+		}
+
+		public synchronized ScrapeInfo getScrapeInfo() {
+			return new ScrapeInfo(mSeeders, mPeers.size() - mSeeders, mCompleted);
+		}
+
+		public synchronized int size() {
+			return mPeers.size();
+		}
+
+		/**
+		 * Move the last peer into the removed one's slot
+		 */
+		private void remove(int index) {
+			Peer removed = mPeers.get(index);
+			Peer last = mPeers.remove(mPeers.size() - 1);
+			mIndex.remove(removed.peerId);
+			if (last != removed) {
+				mPeers.set(index, last);
+				mIndex.put(last.peerId, index);
+			}
+
+			if (removed.seed) {
+				mSeeders--;
+			}
+		}
+	}
+
+	/**
+	 * Every torrent being tracked, by info hash
+	 */
+	private final ConcurrentHashMap<ByteBuffer, Swarm> mSwarms = new ConcurrentHashMap<ByteBuffer, Swarm>();
+
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor;
+	private final long mInterval;
+	private final Random mRandom = new Random();
+
+	private WheelTimer.Timeout mExpiryTimeout;
+
+	private final AtomicLong mAnnounces = new AtomicLong();
+	private final AtomicLong mScrapes = new AtomicLong();
+
+	/**
+	 * @param port
+	 *            the port to listen on, or 0 for any free one
+	 * @param interval
+	 *            milliseconds peers should wait between announces
+	 * @param threads
+	 *            how many threads answer requests
+	 */
+	public TrackerServer(int port, long interval, int threads) throws IOException {
+		mInterval = interval;
+
+		mServer = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+		mServer.createContext("/announce", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				mAnnounces.incrementAndGet();
+				respond(exchange, announce(exchange));
+			}
+		});
+		mServer.createContext("/scrape", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				mScrapes.incrementAndGet();
+				respond(exchange, scrape(exchange));
+			}
+		});
+
+		mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Tracker server");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mServer.setExecutor(mExecutor);
+	}
+
+	/**
+	 * Start answering, forgetting peers on the timer
+	 */
+	public void start(WheelTimer timer) {
+		mServer.start();
+
+		mExpiryTimeout = timer.schedulePeriodic(new Runnable() {
+			public void run() {
+				expire(System.currentTimeMillis() - 2 * mInterval);
+			}
+		}, mInterval);
+	}
+
+	public void stop() {
+		if (mExpiryTimeout != null) {
+			mExpiryTimeout.cancel();
+		}
+		mServer.stop(0);
+		mExecutor.shutdown();
+	}
+
+	public int getPort() {
+		return mServer.getAddress().getPort();
+	}
+
+	/**
+	 * @return the URL other peers on the network can announce to
+	 */
+	public String getAnnounceURL() {
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostAddress();
+		} catch (UnknownHostException e) {
+			host = "127.0.0.1";
+		}
+		return "http://" + host + ":" + getPort() + "/announce";
+	}
+
+	public String getStatus() {
+		int peers = 0;
+		for (Swarm swarm : mSwarms.values()) {
+			peers += swarm.size();
+		}
+		return "Tracking " + mSwarms.size() + " torrents with " + peers + " peers at " + getAnnounceURL() + " ("
+				+ mAnnounces.get() + " announces, " + mScrapes.get() + " scrapes)";
+	}
+
+	/**
+	 * @return the bencoded answer to an announce
+	 */
+	private byte[] announce(HttpExchange exchange) {
+		Map<String, List<byte[]>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+		byte[] infoHash = getParam(params, Keys.INFO_HASH);
+		String peerId = getString(params, Keys.PEER_ID);
+		String portParam = getString(params, Keys.PORT);
+		if (infoHash == null || infoHash.length != 20) {
+			return failure("missing or bad info_hash");
+		}
+		if (peerId == null || portParam == null) {
+			return failure("missing peer_id or port");
+		}
+
+		int port;
+		int numWant = DEFAULT_NUM_WANT;
+		long left;
+		try {
+			port = Integer.parseInt(portParam);
+			left = Long.parseLong(getString(params, Keys.LEFT, "-1"));
+			numWant = Math.min(Integer.parseInt(getString(params, Keys.NUM_WANT, "" + DEFAULT_NUM_WANT)), MAX_NUM_WANT);
+		} catch (NumberFormatException e) {
+			return failure("bad port, left or numwant");
+		}
+		if (port <= 0 || port > 0xFFFF) {
+			return failure("bad port");
+		}
+		if (numWant < 0) {
+			numWant = DEFAULT_NUM_WANT;
+		}
+
+		// Peers behind the same NAT as the tracker may give their own
+		// address; anyone else could use it to point the swarm at a
+		// host that isn't theirs, so it's only taken from the LAN
+		InetAddress address = exchange.getRemoteAddress().getAddress();
+		if (address.isLoopbackAddress() || address.isSiteLocalAddress()) {
+			InetAddress given = parseIPv4(getString(params, Keys.IP));
+			if (given != null) {
+				address = given;
+			}
+		}
+
+		String event = getString(params, Keys.EVENT, "");
+		Peer peer = new Peer(peerId, address, port, left == 0);
+		ByteBuffer key = ByteBuffer.wrap(infoHash);
+		Swarm swarm;
+
+		if (event.equals(TrackerUtil.Events.STOPPED)) {
+			swarm = mSwarms.get(key);
+			if (swarm != null) {
+				swarm.remove(peerId);
+			}
+			return announceResponse(swarm, new ArrayList<Peer>(), true);
+		}
+
+		boolean completed = event.equals(TrackerUtil.Events.COMPLETED);
+		while (true) {
+			swarm = mSwarms.get(key);
+			if (swarm == null) {
+				Swarm created = new Swarm();
+				swarm = mSwarms.putIfAbsent(key, created);
+				if (swarm == null) {
+					swarm = created;
+				}
+			}
+
+			if (swarm.announce(peer, completed)) {
+				break;
+			}
+			// It emptied while we got it; the expiry removes it, or we do
+			mSwarms.remove(key, swarm);
+		}
+
+		return announceResponse(swarm, swarm.getPeers(numWant, peer, mRandom), !"0".equals(getString(params, Keys.COMPACT)));
+	}
+
+	private byte[] announceResponse(Swarm swarm, List<Peer> peers, boolean compact) {
+		HashMap<ByteBuffer, Object> response = new HashMap<ByteBuffer, Object>();
+		response.put(Responses.INTERVAL, (int) (mInterval / 1000));
+		response.put(Responses.MIN_INTERVAL, (int) (mInterval / 2000));
+
+		ScrapeInfo info = (swarm != null) ? (swarm.getScrapeInfo()) : (new ScrapeInfo(0, 0, 0));
+		response.put(Responses.COMPLETE, info.seeders);
+		response.put(Responses.INCOMPLETE, info.leechers);
+
+		if (compact) {
+			// Peers without an IPv4 address can't be given this way
+			ByteArrayOutputStream compactPeers = new ByteArrayOutputStream(peers.size() * 6);
+			for (Peer peer : peers) {
+				if (peer.compact != null) {
+					compactPeers.write(peer.compact, 0, peer.compact.length);
+				}
+			}
+			response.put(Responses.PEERS, ByteBuffer.wrap(compactPeers.toByteArray()));
+		} else {
+			ArrayList<Object> peerList = new ArrayList<Object>(peers.size());
+			for (Peer peer : peers) {
+				HashMap<ByteBuffer, Object> peerMap = new HashMap<ByteBuffer, Object>();
+				peerMap.put(Responses.PEER_ID, ByteBuffer.wrap(toBytes(peer.peerId)));
+				peerMap.put(Responses.IP, ByteBuffer.wrap(toBytes(peer.ip)));
+				peerMap.put(Responses.PORT, peer.port);
+				peerList.add(peerMap);
+			}
+			response.put(Responses.PEERS, peerList);
+		}
+
+		return encode(response);
+	}
+
+	/**
+	 * @return the bencoded counts of the torrents asked for, or of
+	 *         every torrent if none were
+	 */
+	private byte[] scrape(HttpExchange exchange) {
+		Map<String, List<byte[]>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+		List<byte[]> infoHashes = params.get(Keys.INFO_HASH);
+
+		HashMap<ByteBuffer, Object> files = new HashMap<ByteBuffer, Object>();
+		if (infoHashes == null) {
+			for (Map.Entry<ByteBuffer, Swarm> entry : mSwarms.entrySet()) {
+				files.put(entry.getKey(), scrapeResponse(entry.getValue().getScrapeInfo()));
+			}
+		} else {
+			for (byte[] infoHash : infoHashes) {
+				Swarm swarm = mSwarms.get(ByteBuffer.wrap(infoHash));
+				if (swarm != null) {
+					files.put(ByteBuffer.wrap(infoHash), scrapeResponse(swarm.getScrapeInfo()));
+				}
+			}
+		}
+
+		HashMap<ByteBuffer, Object> response = new HashMap<ByteBuffer, Object>();
+		response.put(Responses.FILES, files);
+		return encode(response);
+	}
+
+	private static HashMap<ByteBuffer, Object> scrapeResponse(ScrapeInfo info) {
+		HashMap<ByteBuffer, Object> counts = new HashMap<ByteBuffer, Object>();
+		counts.put(Responses.COMPLETE, info.seeders);
+		counts.put(Responses.INCOMPLETE, info.leechers);
+		counts.put(Responses.DOWNLOADED, info.completed);
+		return counts;
+	}
+
+	/**
+	 * Forget peers that haven't announced since the cutoff, and swarms
+	 * left with no peers
+	 */
+	private void expire(long cutoff) {
+		for (Map.Entry<ByteBuffer, Swarm> entry : mSwarms.entrySet()) {
+			if (entry.getValue().expire(cutoff)) {
+				mSwarms.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private static byte[] failure(String reason) {
+		HashMap<ByteBuffer, Object> response = new HashMap<ByteBuffer, Object>();
+		response.put(Responses.FAILURE_REASON, ByteBuffer.wrap(toBytes(reason)));
+		return encode(response);
+	}
+
+	private static byte[] encode(HashMap<ByteBuffer, Object> response) {
+		try {
+			return Bencoder2.encode(response);
+		} catch (BencodingException e) {
+			// Only ever given maps of strings, integers and lists
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void respond(HttpExchange exchange, byte[] response) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(200, response.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(response);
+		out.close();
+	}
+
+	/**
+	 * Split a raw query string, decoding each value to the bytes it
+	 * escapes, since info hashes and peer ids are binary
+	 */
+	private static Map<String, List<byte[]>> parseQuery(String query) {
+		Map<String, List<byte[]>> params = new HashMap<String, List<byte[]>>();
+		if (query == null) {
+			return params;
+		}
+
+		for (String param : query.split("&")) {
+			int equals = param.indexOf('=');
+			if (equals <= 0) {
+				continue;
+			}
+
+			String name = new String(urlDecode(param.substring(0, equals)));
+			List<byte[]> values = params.get(name);
+			if (values == null) {
+				values = new ArrayList<byte[]>(1);
+				params.put(name, values);
+			}
+			values.add(urlDecode(param.substring(equals + 1)));
+		}
+		return params;
+	}
+
+	private static byte[] urlDecode(String value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '%' && i + 2 < value.length()) {
+				int high = Character.digit(value.charAt(i + 1), 16);
+				int low = Character.digit(value.charAt(i + 2), 16);
+				if (high >= 0 && low >= 0) {
+					bytes.write((high << 4) | low);
+					i += 2;
+					continue;
+				}
+			}
+			bytes.write((c == '+') ? (' ') : (c));
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] getParam(Map<String, List<byte[]>> params, String name) {
+		List<byte[]> values = params.get(name);
+		return (values != null) ? (values.get(0)) : (null);
+	}
+
+	/**
+	 * @return the parameter with each byte as one character, so binary
+	 *         peer ids keep their bytes
+	 */
+	private static String getString(Map<String, List<byte[]>> params, String name) {
+		byte[] value = getParam(params, name);
+		if (value == null) {
+			return null;
+		}
+
+		try {
+			return new String(value, "ISO-8859-1");
+		} catch (IOException e) {
+			return new String(value);
+		}
+	}
+
+	private static String getString(Map<String, List<byte[]>> params, String name, String defaultValue) {
+		String value = getString(params, name);
+		return (value != null) ? (value) : (defaultValue);
+	}
+
+	private static byte[] toBytes(String value) {
+		try {
+			return value.getBytes("ISO-8859-1");
+		} catch (IOException e) {
+			return value.getBytes();
+		}
+	}
+
+	/**
+	 * @return the address of a dotted IPv4 literal, or null if it isn't
+	 *         one; names aren't looked up
+	 */
+	private static InetAddress parseIPv4(String ip) {
+		if (ip == null) {
+			return null;
+		}
+
+		String[] parts = ip.split("\\.");
+		if (parts.length != 4) {
+			return null;
+		}
+
+		byte[] address = new byte[4];
+		try {
+			for (int i = 0; i < 4; i++) {
+				int part = Integer.parseInt(parts[i]);
+				if (part < 0 || part > 255) {
+					return null;
+				}
+				address[i] = (byte) part;
+			}
+			return InetAddress.getByAddress(address);
+		} catch (NumberFormatException e) {
+			return null;
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+}
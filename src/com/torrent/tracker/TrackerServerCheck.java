@@ -0,0 +1,118 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.torrent.peer.PeerInfo;
+import com.torrent.util.Checks;
+import com.torrent.util.WheelTimer;
+
+/**
+ * Runs a TrackerServer on the loopback interface and announces and
+ * scrapes through HttpTracker, as peers on the LAN would: a seed and
+ * two leechers join, one completes, one stops, and the rest are
+ * forgotten once they stop announcing
+ *
+ * Usage: TrackerServerCheck
+ */
+public class TrackerServerCheck {
+
+	/**
+	 * Announce interval the server asks for; peers are forgotten
+	 * after two of them
+	 */
+	private static final long INTERVAL = 1000;
+
+	public static void main(String[] args) throws Exception {
+		Checks checks = new Checks();
+		WheelTimer timer = new WheelTimer();
+		timer.start();
+
+		TrackerServer server = new TrackerServer(0, INTERVAL, 2);
+		server.start(timer);
+		HttpTracker tracker = new HttpTracker("http://127.0.0.1:" + server.getPort() + "/announce");
+
+		byte[] infoHash = filled(0x01);
+		byte[] otherInfoHash = filled(0x02);
+
+		try {
+			TrackerResponse response = tracker.announce(request(infoHash, 0, 0, TrackerUtil.Events.STARTED));
+			checks.check("first peer gets no peers", response.peers.isEmpty() && response.seeders == 1 && response.leechers == 0);
+			checks.check("interval is the server's", response.interval == INTERVAL);
+
+			response = tracker.announce(request(infoHash, 1, 100, TrackerUtil.Events.STARTED));
+			checks.check("leecher is given the seed", response.peers.size() == 1 && hasPeer(response.peers, 6000));
+
+			response = tracker.announce(request(infoHash, 2, 100, TrackerUtil.Events.STARTED));
+			checks.check("second leecher is given both", response.peers.size() == 2 && hasPeer(response.peers, 6000)
+					&& hasPeer(response.peers, 6001));
+			checks.check("seeders and leechers are counted", response.seeders == 1 && response.leechers == 2);
+
+			response = tracker.announce(request(infoHash, 0, 0, null));
+			checks.check("seed is only given leechers", response.peers.size() == 2 && !hasPeer(response.peers, 6000));
+
+			response = tracker.announce(request(infoHash, 2, 0, TrackerUtil.Events.COMPLETED));
+			checks.check("completed leecher becomes a seed", response.seeders == 2 && response.leechers == 1);
+			checks.check("completed seed is only given leechers", response.peers.size() == 1 && hasPeer(response.peers, 6001));
+
+			response = tracker.announce(request(infoHash, 1, 100, TrackerUtil.Events.STOPPED));
+			checks.check("stopped peer is removed", response.seeders == 2 && response.leechers == 0);
+		} catch (IOException e) {
+			checks.fail("announce", e);
+		}
+
+		try {
+			ScrapeInfo[] scrape = tracker.scrape(new byte[][] { infoHash, otherInfoHash });
+			checks.check("swarm is scraped", scrape[0] != null && scrape[0].seeders == 2 && scrape[0].leechers == 0
+					&& scrape[0].completed == 1);
+			checks.check("unknown torrent isn't", scrape[1] == null);
+
+			Thread.sleep(4 * INTERVAL);
+			scrape = tracker.scrape(new byte[][] { infoHash });
+			checks.check("silent peers are forgotten", scrape[0] == null);
+		} catch (IOException e) {
+			checks.fail("scrape", e);
+		}
+
+		server.stop();
+		timer.stop();
+		checks.finish();
+	}
+
+	/**
+	 * @param peer
+	 *            which peer announces, also giving its port and ID
+	 */
+	private static AnnounceRequest request(byte[] infoHash, int peer, long left, String event) {
+		AnnounceRequest request = new AnnounceRequest();
+		request.infoHash = infoHash;
+		request.peerId = ("-RB0000-00000000000" + peer).getBytes();
+		request.port = 6000 + peer;
+		request.left = left;
+		request.event = event;
+		return request;
+	}
+
+	private static boolean hasPeer(List<PeerInfo> peers, int port) {
+		for (PeerInfo peer : peers) {
+			if (peer.getIP().equals("127.0.0.1") && peer.getPort() == port) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static byte[] filled(int value) {
+		byte[] bytes = new byte[20];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+
+}
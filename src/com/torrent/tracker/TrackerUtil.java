@@ -6,37 +6,41 @@
 
 package com.torrent.tracker;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.torrent.file.FileManager;
-import com.torrent.peer.PeerInfo;
-import com.torrent.util.Bencoder2;
-import com.torrent.util.HexStringConverter;
-import com.torrent.util.StreamUtil;
+import com.torrent.util.Config;
+import com.torrent.util.WheelTimer;
 
+/**
+ * Announces to the torrent's trackers. Nothing here waits on the
+ * network: announces are queued and run on a small pool of tracker
+ * threads shared by every torrent, and answers come back in a callback.
+ * Once started, each tier of trackers is announced to on its own schedule.
+ */
 public class TrackerUtil {
 
 	/**
-	 * The keys used as HTTP parameters in requests to the tracker
+	 * Default size of the tracker thread pool
 	 */
-	private static class Keys {
-		public static final String PEER_ID = "peer_id";
-		public static final String INFO_HASH = "info_hash";
-		public static final String IP = "ip";
-		public static final String PORT = "port";
-		public static final String UPLOADED = "uploaded";
-		public static final String DOWNLOADED = "downloaded";
-		public static final String LEFT = "left";
-		public static final String EVENT = "event";
-	}
-	
+	public static final int DEFAULT_THREADS = 4;
+
+	/**
+	 * How long stop() waits for the trackers to hear STOPPED
+	 */
+	private static final long STOP_TIMEOUT = 10000;
+
+	/**
+	 * How long a report of the swarm's size is trusted
+	 */
+	public static final long DEFAULT_SCRAPE_TTL = 15 * 60 * 1000;
+
 	/**
 	 * Possible values for the EVENT parameter key
 	 */
@@ -47,42 +51,51 @@ public class TrackerUtil {
 	}
 
 	/**
-	 * The constant keys that are used in the byte encoded response
+	 * Every tracker of the torrent, in tiers
 	 */
-	private static class TrackerConstants {
-		public static final ByteBuffer COMPLETE = ByteBuffer.wrap("complete".getBytes());
-		public static final ByteBuffer FAILURE_REASON = ByteBuffer.wrap("failure reason".getBytes());
-		public static final ByteBuffer INTERVAL = ByteBuffer.wrap("interval".getBytes());
-		public static final ByteBuffer MIN_INTERVAL = ByteBuffer.wrap("min interval".getBytes());
-		public static final ByteBuffer PEERS = ByteBuffer.wrap("peers".getBytes());
+	private static AnnounceList mAnnounceList;
 
-		public static class Response {
-			public static final String PORT = "port";
-			public static final String IP = "ip";
-			public static final String PEER_ID = "peer id";
-		}
-	}
+	/**
+	 * Runs every announce, since they block on the network
+	 */
+	private static ExecutorService mExecutor;
 
-	private static String mAnnounceURL;
 	private static ByteBuffer mInfoHash;
 	private static int mFileLength;
 
 	private static String mPeerID;
 	private static int mTcpPort;
-	
+
 	private static FileManager mFileManager;
 
 	/**
-	 * The interval that the tracker wants
-	 * between regular requests to the tracker.
-	 * Defaults to 60 seconds.
+	 * How many peers regular announces ask for, -1 for the tracker's default
 	 */
-	private static int mInterval = 60000;
-	
-	private static boolean mFirstStart = true;
+	private static volatile int mNumWant = -1;
 
-	public static void setParams(String announceURL, ByteBuffer infoHash, int fileLength, String peerID, int tcpPort, FileManager fileManager) {
-		mAnnounceURL = announceURL;
+	/**
+	 * The swarm as the trackers last reported it, by
+	 * scrape or announce, and how long to trust that
+	 */
+	private static volatile ScrapeInfo mSwarm;
+	private static long mScrapeTtl = Config.getLong("scrapettl", DEFAULT_SCRAPE_TTL);
+
+	/**
+	 * @param announceList
+	 *            the tiers of announce URLs, most preferred first
+	 */
+	public static synchronized void setParams(List<List<String>> announceList, ByteBuffer infoHash, int fileLength, String peerID, int tcpPort, FileManager fileManager) {
+		if (mExecutor == null) {
+			mExecutor = Executors.newFixedThreadPool(Config.getInt("trackerthreads", DEFAULT_THREADS), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Tracker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		mAnnounceList = new AnnounceList(announceList, mExecutor);
 		mInfoHash = infoHash;
 		mFileLength = fileLength;
 		mPeerID = peerID;
@@ -91,137 +104,156 @@ public class TrackerUtil {
 	}
 
 	/**
-	 * Get a list of peers from the tracker.
-	 * Sends a STARTED event if this is the first
-	 * request to the tracker
+	 * Start announcing to every tracker regularly, as often as each
+	 * wants. Sends a STARTED event to each tracker the first time it
+	 * is reached
+	 *
+	 * @param listener
+	 *            given each tier's peers on a tracker thread, or
+	 *            null when none of a tier's trackers could be reached
 	 */
-	public static List<PeerInfo> getPeers() {
-		try {
-
-			// Add all the URL params needed (info hash, our peer id, the port
-			// we'll listen on)
-			// Also say we downloaded/uploaded nothing and that the current
-			// event is STARTED
-			String connectURL = mAnnounceURL + "?" + Keys.INFO_HASH + "=" + HexStringConverter.toHexString(mInfoHash.array()) + "&" + Keys.PEER_ID + "="
-					+ HexStringConverter.toHexString(mPeerID.getBytes()) + "&" + Keys.PORT + "=" + mTcpPort + "&" + Keys.DOWNLOADED + "=" + mFileManager.getDownloadedBytes() + "&"
-					+ Keys.UPLOADED + "=" + mFileManager.getUploadedBytes() +"&" + Keys.LEFT + "="
-					+ (mFileLength - mFileManager.getDownloadedBytes()) + ((mFirstStart) ? ("&" + Keys.EVENT + "=" + Events.STARTED) : (""));
-
-			URL trackerURL = new URL(connectURL);
-
-			HttpURLConnection getRequest = (HttpURLConnection) trackerURL.openConnection();
-			getRequest.setRequestMethod("GET");
+	public static void start(WheelTimer timer, AnnounceList.Callback listener) {
+		mAnnounceList.start(timer, new AnnounceList.RequestFactory() {
+			public AnnounceRequest createRequest() {
+				AnnounceRequest request = TrackerUtil.createRequest(null);
+				request.numWant = mNumWant;
+				return request;
+			}
+		}, track(null, listener));
+	}
 
-			// Helps with HttpURLConnection work when the port number is not 80
-			getRequest.setRequestProperty("User-Agent", "Mozilla/5.0 ( compatible ) ");
-			getRequest.setRequestProperty("Accept", "*/*");
+	/**
+	 * We're short of peers, so announce as soon as the trackers allow
+	 */
+	public static void announceSoon() {
+		mAnnounceList.announceSoon();
+	}
 
-			getRequest.connect();
+	/**
+	 * @param numWant
+	 *            how many peers regular announces should ask
+	 *            for, -1 for the tracker's default
+	 */
+	public static void setNumWant(int numWant) {
+		mNumWant = numWant;
+	}
 
-			int status = getRequest.getResponseCode();
+	/**
+	 * @return a line describing each tracker
+	 */
+	public static List<String> getStatus() {
+		return mAnnounceList.getStatus();
+	}
 
-			if (status != 200) {
-				// There was a problem reaching the tracker
-				InputStream errorStream = getRequest.getErrorStream();
-				System.out.println(StreamUtil.streamToString(errorStream));
-				if (errorStream != null) {
-					errorStream.close();
-				}
+	/**
+	 * Ask the trackers how big the swarm is, unless they've said recently
+	 *
+	 * @param callback
+	 *            given the swarm, or null if no tracker
+	 *            reported it, possibly on a tracker thread
+	 */
+	public static void scrape(final AnnounceList.ScrapeCallback callback) {
+		ScrapeInfo swarm = getSwarm();
+		if (swarm != null) {
+			callback.onScrape(new ScrapeInfo[] { swarm });
+			return;
+		}
 
-				return null;
-			} else {
-				// We've made the first request to the tracker
-				mFirstStart = false;
-				
-				// Get the tracker's response
-				InputStream getResponse = getRequest.getInputStream();
-				byte[] response = StreamUtil.streamToBytes(getResponse);
-				getResponse.close();
-
-				try {
-					List<PeerInfo> peerInfos = new ArrayList<PeerInfo>();
-
-					// Decode the response from the tracker
-					HashMap<ByteBuffer, Object> decodedResponse = (HashMap<ByteBuffer, Object>) Bencoder2.decode(response);
-
-					if (decodedResponse.containsKey(TrackerConstants.PEERS)) {
-						ArrayList<HashMap> peerMapList = (ArrayList<HashMap>) decodedResponse.get(TrackerConstants.PEERS);
-
-						for (HashMap<ByteBuffer, Object> peerMap : peerMapList) {
-							
-							// Translate this data structure into a PeerInfo object
-							PeerInfo peer = new PeerInfo();
-							for (ByteBuffer key : peerMap.keySet()) {
-								String attributeKey = new String(key.array());
-								Object value = peerMap.get(key);
-
-								if (attributeKey.equals(TrackerConstants.Response.IP)) {
-									peer.setIP(new String(((ByteBuffer) value).array()));
-								} else if (attributeKey.equals(TrackerConstants.Response.PEER_ID)) {
-									peer.setPeerID(new String(((ByteBuffer) value).array()));
-								} else if (attributeKey.equals(TrackerConstants.Response.PORT)) {
-									peer.setPort((Integer) peerMap.get(key));
-								}
-							}
-
-							peerInfos.add(peer);
-						}
-					}
-					
-					if (decodedResponse.containsKey(TrackerConstants.INTERVAL)) {
-						mInterval = (Integer) decodedResponse.get(TrackerConstants.INTERVAL) * 1000;
-					}
-
-					return peerInfos;
-				} catch (Exception e) {
-					e.printStackTrace();
-					return null;
+		mAnnounceList.scrape(new byte[][] { mInfoHash.array() }, new AnnounceList.ScrapeCallback() {
+			public void onScrape(ScrapeInfo[] results) {
+				if (results[0] != null) {
+					mSwarm = results[0];
 				}
+				callback.onScrape(results);
 			}
-		} catch (IOException e) {
-			// e.printStackTrace();
-			return null;
-		}
+		});
+	}
+
+	/**
+	 * @return the swarm as the trackers last reported it,
+	 *         or null if that was too long ago
+	 */
+	public static ScrapeInfo getSwarm() {
+		ScrapeInfo swarm = mSwarm;
+		return (swarm != null && !swarm.isOlderThan(mScrapeTtl)) ? (swarm) : (null);
+	}
+
+	/**
+	 * @return how often the swarm's size is worth checking
+	 */
+	public static long getScrapeTtl() {
+		return mScrapeTtl;
 	}
 
+	/**
+	 * Tell the trackers about an event, without waiting for them
+	 */
 	public static void sendEvent(String event) {
-		try {
-	
-			// Add all the URL params needed (info hash, our peer id, the port we'll listen on)
-			// Also say we downloaded everything and that the current event is COMPLETED
-			String connectURL = mAnnounceURL + "?" + Keys.INFO_HASH + "=" + HexStringConverter.toHexString(mInfoHash.array()) + "&" + Keys.PEER_ID + "="
-					+ HexStringConverter.toHexString(mPeerID.getBytes()) + "&" + Keys.PORT + "=" + mTcpPort + "&" 
-					+ Keys.DOWNLOADED + "=" + mFileManager.getDownloadedBytes() + "&" + Keys.UPLOADED + "=" + mFileManager.getUploadedBytes() + "&"
-					+ Keys.LEFT + "=" + (mFileLength - mFileManager.getDownloadedBytes()) + "&"
-					+ Keys.EVENT + "=" + event;
-	
-			URL trackerURL = new URL(connectURL);
-	
-			HttpURLConnection getRequest = (HttpURLConnection) trackerURL.openConnection();
-			getRequest.setRequestMethod("GET");
-	
-			// Helps with HttpURLConnection work when the port number is not 80
-			getRequest.setRequestProperty("User-Agent", "Mozilla/5.0 ( compatible ) ");
-			getRequest.setRequestProperty("Accept", "*/*");
-	
-			getRequest.connect();
-	
-			int status = getRequest.getResponseCode();
-			
-			if(status != 200){
-				System.out.println("Problem telling tracker the \"" + event +"\" event.");
+		announce(event, -1, null);
+	}
+
+	/**
+	 * Tell the trackers we've stopped, waiting a little for them to hear
+	 * it since the tracker threads won't outlive the client
+	 */
+	public static void stop() {
+		mAnnounceList.stop();
+
+		final CountDownLatch done = new CountDownLatch(1);
+		announce(Events.STOPPED, -1, new AnnounceList.Callback() {
+			public void onResponse(TrackerResponse response) {
+				done.countDown();
 			}
-		} catch (Exception e){
-			e.printStackTrace();
+		});
+
+		try {
+			done.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
 		}
+
+		mAnnounceList.close();
+		mExecutor.shutdown();
+	}
+
+	private static void announce(String event, int numWant, AnnounceList.Callback callback) {
+		AnnounceRequest request = createRequest(event);
+		request.numWant = numWant;
+		mAnnounceList.announce(request, track(event, callback));
 	}
-	
+
 	/**
-	 * Get the interval that the tracker wants regular
-	 * requests to occur at
+	 * Wrap a callback to learn what we can from every response
 	 */
-	public static int getInterval() {
-		return mInterval;
+	private static AnnounceList.Callback track(final String event, final AnnounceList.Callback callback) {
+		return new AnnounceList.Callback() {
+			public void onResponse(TrackerResponse response) {
+				if (response == null && event != null) {
+					System.out.println("Problem telling tracker the \"" + event + "\" event.");
+				}
+
+				// Announces report the swarm too, which saves a scrape
+				if (response != null && response.seeders >= 0 && response.leechers >= 0) {
+					ScrapeInfo previous = mSwarm;
+					mSwarm = new ScrapeInfo(response.seeders, response.leechers, (previous != null) ? (previous.completed) : (0));
+				}
+
+				if (callback != null) {
+					callback.onResponse(response);
+				}
+			}
+		};
+	}
+
+	private static AnnounceRequest createRequest(String event) {
+		AnnounceRequest request = new AnnounceRequest();
+		request.infoHash = mInfoHash.array();
+		request.peerId = mPeerID.getBytes();
+		request.port = mTcpPort;
+		request.downloaded = mFileManager.getDownloadedBytes();
+		request.uploaded = mFileManager.getUploadedBytes();
+		request.left = mFileLength - mFileManager.getDownloadedBytes();
+		request.event = event;
+		return request;
 	}
 
 }
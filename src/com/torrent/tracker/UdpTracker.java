@@ -0,0 +1,307 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import com.torrent.peer.PeerInfo;
+
+/**
+ * Talks to a tracker over UDP (BEP 15). Every request needs a connection
+ * ID from a connect request, which is kept for a minute and reused.
+ * Each request carries a random transaction ID that the answer must
+ * match, and is sent again after 15 * 2^n seconds without one.
+ */
+public class UdpTracker implements Tracker {
+
+	/**
+	 * Sent in connect requests to identify the protocol
+	 */
+	private static final long PROTOCOL_ID = 0x41727101980L;
+
+	private static class Actions {
+		public static final int CONNECT = 0;
+		public static final int ANNOUNCE = 1;
+		public static final int SCRAPE = 2;
+		public static final int ERROR = 3;
+	}
+
+	/**
+	 * Values of the event field in an announce
+	 */
+	private static class Events {
+		public static final int NONE = 0;
+		public static final int COMPLETED = 1;
+		public static final int STARTED = 2;
+		public static final int STOPPED = 3;
+	}
+
+	/**
+	 * How long a connection ID may be used
+	 */
+	private static final long CONNECTION_ID_LIFETIME = 60000;
+
+	/**
+	 * Wait before the first retransmission, doubled each time
+	 */
+	public static final int DEFAULT_TIMEOUT = 15000;
+
+	/**
+	 * How many times a request is sent before giving up; the spec allows
+	 * up to 9, but that means waiting over an hour for a dead tracker
+	 */
+	public static final int DEFAULT_ATTEMPTS = 4;
+
+	/**
+	 * Most info hashes in one scrape, which keeps the request in one packet
+	 */
+	private static final int MAX_SCRAPE = 74;
+
+	/**
+	 * Largest answer accepted: the header and a few hundred peers
+	 */
+	private static final int MAX_PACKET = 20 + 6 * 500;
+
+	private String mAnnounceURL;
+	private InetSocketAddress mAddress;
+	private DatagramSocket mSocket;
+	private Random mRandom = new SecureRandom();
+
+	private int mTimeout = DEFAULT_TIMEOUT;
+	private int mAttempts = DEFAULT_ATTEMPTS;
+
+	/**
+	 * Identifies this client to the tracker across address changes
+	 */
+	private int mKey = mRandom.nextInt();
+
+	private long mConnectionId;
+	private long mConnectionIdTime = 0;
+
+	/**
+	 * @param announceURL
+	 *            a URL of the form udp://host:port[/announce]
+	 */
+	public UdpTracker(String announceURL) throws IOException {
+		URI uri = URI.create(announceURL);
+		if (uri.getHost() == null || uri.getPort() < 0) {
+			throw new IOException("Bad UDP tracker URL " + announceURL);
+		}
+
+		mAnnounceURL = announceURL;
+		mAddress = new InetSocketAddress(uri.getHost(), uri.getPort());
+		mSocket = new DatagramSocket();
+	}
+
+	/**
+	 * @param address
+	 *            where the tracker is
+	 */
+	public UdpTracker(InetAddress address, int port) throws IOException {
+		mAnnounceURL = "udp://" + address.getHostAddress() + ":" + port;
+		mAddress = new InetSocketAddress(address, port);
+		mSocket = new DatagramSocket();
+	}
+
+	/**
+	 * Change how long to wait before the first retransmission,
+	 * and how many times a request is sent
+	 */
+	public void setRetransmit(int timeout, int attempts) {
+		mTimeout = timeout;
+		mAttempts = attempts;
+	}
+
+	public synchronized TrackerResponse announce(AnnounceRequest announce) throws IOException {
+		ByteBuffer request = ByteBuffer.allocate(98);
+		request.putLong(0); // Connection ID, filled in when sent
+		request.putInt(Actions.ANNOUNCE);
+		request.putInt(0); // Transaction ID, filled in when sent
+		request.put(announce.infoHash, 0, 20);
+		request.put(announce.peerId, 0, 20);
+		request.putLong(announce.downloaded);
+		request.putLong(announce.left);
+		request.putLong(announce.uploaded);
+		request.putInt(toEvent(announce.event));
+		request.putInt(0); // Let the tracker use the address the packet came from
+		request.putInt(mKey);
+		request.putInt(announce.numWant);
+		request.putShort((short) announce.port);
+
+		ByteBuffer response = send(request.array(), 20);
+
+		TrackerResponse result = new TrackerResponse();
+		result.interval = response.getInt() * 1000;
+		result.leechers = response.getInt();
+		result.seeders = response.getInt();
+		result.peers = PeerInfo.fromCompact(response.array(), response.position(), response.remaining());
+		return result;
+	}
+
+	public synchronized ScrapeInfo[] scrape(byte[][] infoHashes) throws IOException {
+		ScrapeInfo[] results = new ScrapeInfo[infoHashes.length];
+
+		for (int start = 0; start < infoHashes.length; start += MAX_SCRAPE) {
+			int count = Math.min(MAX_SCRAPE, infoHashes.length - start);
+
+			ByteBuffer request = ByteBuffer.allocate(16 + 20 * count);
+			request.putLong(0);
+			request.putInt(Actions.SCRAPE);
+			request.putInt(0);
+			for (int i = start; i < start + count; i++) {
+				request.put(infoHashes[i], 0, 20);
+			}
+
+			ByteBuffer response = send(request.array(), 8 + 12 * count);
+
+			// Seeders, completed, leechers
+			for (int i = start; i < start + count; i++) {
+				int seeders = response.getInt();
+				int completed = response.getInt();
+				results[i] = new ScrapeInfo(seeders, response.getInt(), completed);
+			}
+		}
+
+		return results;
+	}
+
+	public void close() {
+		mSocket.close();
+	}
+
+	/**
+	 * Send a request, getting a connection ID first if needed, and
+	 * retransmitting until it's answered
+	 *
+	 * @param request
+	 *            the request, with space for the connection ID and
+	 *            transaction ID, which are filled in here
+	 * @param minLength
+	 *            the shortest valid answer
+	 * @return the answer, positioned after the action and transaction ID
+	 */
+	private ByteBuffer send(byte[] request, int minLength) throws IOException {
+		int action = ByteBuffer.wrap(request).getInt(8);
+
+		for (int attempt = 0; attempt < mAttempts; attempt++) {
+			// Connection IDs expire, and a lost request may mean it already has
+			if (System.currentTimeMillis() - mConnectionIdTime > CONNECTION_ID_LIFETIME) {
+				connect(attempt);
+			}
+
+			int transactionId = mRandom.nextInt();
+			ByteBuffer.wrap(request).putLong(0, mConnectionId).putInt(12, transactionId);
+
+			ByteBuffer response = exchange(request, action, transactionId, minLength, attempt);
+			if (response != null) {
+				return response;
+			}
+		}
+
+		throw new SocketTimeoutException("No answer from UDP tracker " + mAddress);
+	}
+
+	/**
+	 * Get a new connection ID, retransmitting from the given attempt
+	 */
+	private void connect(int attempt) throws IOException {
+		for (; attempt < mAttempts; attempt++) {
+			int transactionId = mRandom.nextInt();
+
+			ByteBuffer request = ByteBuffer.allocate(16);
+			request.putLong(PROTOCOL_ID);
+			request.putInt(Actions.CONNECT);
+			request.putInt(transactionId);
+
+			ByteBuffer response = exchange(request.array(), Actions.CONNECT, transactionId, 16, attempt);
+			if (response != null) {
+				mConnectionId = response.getLong();
+				mConnectionIdTime = System.currentTimeMillis();
+				return;
+			}
+		}
+
+		throw new SocketTimeoutException("No answer from UDP tracker " + mAddress);
+	}
+
+	/**
+	 * Send the request once and wait for its answer, ignoring
+	 * anything that's for a different transaction
+	 *
+	 * @return the answer after the action and transaction ID, or null on timeout
+	 */
+	private ByteBuffer exchange(byte[] request, int action, int transactionId, int minLength, int attempt) throws IOException {
+		mSocket.send(new DatagramPacket(request, request.length, mAddress));
+
+		long deadline = System.currentTimeMillis() + ((long) mTimeout << attempt);
+		byte[] buffer = new byte[MAX_PACKET];
+
+		while (true) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				return null;
+			}
+
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			mSocket.setSoTimeout((int) wait);
+			try {
+				mSocket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				return null;
+			}
+
+			if (packet.getLength() < 8) {
+				continue;
+			}
+
+			ByteBuffer response = ByteBuffer.wrap(buffer, 0, packet.getLength());
+			int responseAction = response.getInt();
+			if (response.getInt() != transactionId) {
+				// A late answer to an earlier attempt
+				continue;
+			}
+
+			if (responseAction == Actions.ERROR) {
+				byte[] message = new byte[response.remaining()];
+				response.get(message);
+				throw new IOException("UDP tracker error: " + new String(message, "UTF-8"));
+			}
+
+			if (responseAction != action || packet.getLength() < minLength) {
+				throw new IOException("Bad answer from UDP tracker " + mAddress);
+			}
+
+			return response;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mAnnounceURL;
+	}
+
+	private static int toEvent(String event) {
+		if (TrackerUtil.Events.STARTED.equals(event)) {
+			return Events.STARTED;
+		} else if (TrackerUtil.Events.COMPLETED.equals(event)) {
+			return Events.COMPLETED;
+		} else if (TrackerUtil.Events.STOPPED.equals(event)) {
+			return Events.STOPPED;
+		}
+		return Events.NONE;
+	}
+
+}
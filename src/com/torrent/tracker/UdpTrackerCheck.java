@@ -0,0 +1,194 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.tracker;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.torrent.peer.PeerInfo;
+import com.torrent.util.Checks;
+
+/**
+ * Runs UdpTracker against a stand-in UDP tracker on the loopback
+ * interface: connecting, retransmitting a lost announce, reusing the
+ * connection ID, decoding peers and scrapes, and reporting errors and
+ * silence
+ *
+ * Usage: UdpTrackerCheck
+ */
+public class UdpTrackerCheck {
+
+	private static final long CONNECTION_ID = 0x1234567890L;
+
+	/**
+	 * Answered with an error rather than peers
+	 */
+	private static final byte[] BAD_INFO_HASH = filled(0xEE);
+
+	/**
+	 * Answers like a UDP tracker (BEP 15), counting what it's asked;
+	 * it drops the first announce to make the client retransmit
+	 */
+	private static class StubTracker implements Runnable {
+		private DatagramSocket mSocket;
+
+		public volatile int connects = 0;
+		public volatile int announces = 0;
+		public volatile boolean silent = false;
+		public volatile boolean badConnectionId = false;
+		public volatile int announcePort = 0;
+
+		public StubTracker() throws IOException {
+			mSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		}
+
+		public int getPort() {
+			return mSocket.getLocalPort();
+		}
+
+		public void run() {
+			byte[] buffer = new byte[2048];
+			while (!mSocket.isClosed()) {
+				try {
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					mSocket.receive(packet);
+					byte[] answer = answer(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+					if (answer != null && !silent) {
+						mSocket.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+					}
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		}
+
+		private byte[] answer(ByteBuffer request) {
+			long connectionId = request.getLong();
+			int action = request.getInt();
+			int transactionId = request.getInt();
+			ByteBuffer answer = ByteBuffer.allocate(1024);
+
+			if (action == 0) {
+				connects++;
+				answer.putInt(0).putInt(transactionId).putLong(CONNECTION_ID);
+			} else if (connectionId != CONNECTION_ID) {
+				badConnectionId = true;
+				return null;
+			} else if (action == 1) {
+				byte[] infoHash = new byte[20];
+				request.get(infoHash);
+				if (Arrays.equals(infoHash, BAD_INFO_HASH)) {
+					answer.putInt(3).putInt(transactionId).put("unregistered torrent".getBytes());
+				} else if (announces++ == 0) {
+					return null;
+				} else {
+					// Skip the peer ID, counts, event, IP, key and numwant
+					request.position(request.position() + 20 + 24 + 16);
+					announcePort = request.getShort() & 0xFFFF;
+					answer.putInt(1).putInt(transactionId).putInt(1800).putInt(5).putInt(7);
+					answer.put(new byte[] { 10, 0, 0, 1, 0x1A, (byte) 0xE1, 10, 0, 0, 2, 0x1A, (byte) 0xE2 });
+				}
+			} else if (action == 2) {
+				// Seeders, completed and leechers from each hash's first byte
+				answer.putInt(2).putInt(transactionId);
+				while (request.remaining() >= 20) {
+					int n = request.get() & 0xFF;
+					request.position(request.position() + 19);
+					answer.putInt(n).putInt(n * 10).putInt(n + 1);
+				}
+			}
+
+			return Arrays.copyOf(answer.array(), answer.position());
+		}
+
+		public void close() {
+			mSocket.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Checks checks = new Checks();
+		StubTracker stub = new StubTracker();
+		Thread thread = new Thread(stub);
+		thread.setDaemon(true);
+		thread.start();
+
+		UdpTracker tracker = new UdpTracker("udp://127.0.0.1:" + stub.getPort() + "/announce");
+		tracker.setRetransmit(200, 3);
+
+		AnnounceRequest request = new AnnounceRequest();
+		request.infoHash = filled(0x01);
+		request.peerId = "-RB0000-000000000000".getBytes();
+		request.port = 6881;
+		request.left = 100;
+		request.event = TrackerUtil.Events.STARTED;
+
+		try {
+			TrackerResponse response = tracker.announce(request);
+			checks.check("announce is retransmitted once lost", stub.announces == 2);
+			checks.check("interval, leechers and seeders are decoded",
+					response.interval == 1800 * 1000 && response.leechers == 5 && response.seeders == 7);
+			checks.check("compact peers are decoded", response.peers.size() == 2 && isPeer(response.peers.get(1), "10.0.0.2", 6882));
+			checks.check("our port is announced", stub.announcePort == 6881);
+
+			tracker.announce(new AnnounceRequest(request, null));
+			checks.check("connection ID is reused", stub.connects == 1 && !stub.badConnectionId);
+		} catch (IOException e) {
+			checks.fail("announce", e);
+		}
+
+		try {
+			ScrapeInfo[] scrape = tracker.scrape(new byte[][] { filled(0x03), filled(0x04) });
+			checks.check("each hash is scraped", scrape.length == 2 && scrape[0].seeders == 3 && scrape[0].completed == 30
+					&& scrape[0].leechers == 4 && scrape[1].seeders == 4);
+		} catch (IOException e) {
+			checks.fail("scrape", e);
+		}
+
+		try {
+			AnnounceRequest bad = new AnnounceRequest(request, null);
+			bad.infoHash = BAD_INFO_HASH;
+			tracker.announce(bad);
+			checks.check("tracker error is reported", false);
+		} catch (IOException e) {
+			checks.check("tracker error is reported", e.getMessage().contains("unregistered torrent"));
+		}
+
+		stub.silent = true;
+		tracker.setRetransmit(100, 2);
+		long start = System.currentTimeMillis();
+		try {
+			tracker.announce(request);
+			checks.check("silent tracker times out", false);
+		} catch (SocketTimeoutException e) {
+			// 100 ms, then 200 ms with backoff
+			checks.check("silent tracker times out after backing off", System.currentTimeMillis() - start >= 300);
+		} catch (IOException e) {
+			checks.fail("silent tracker times out", e);
+		}
+
+		tracker.close();
+		stub.close();
+		checks.finish();
+	}
+
+	private static boolean isPeer(PeerInfo peer, String ip, int port) {
+		return peer.getIP().equals(ip) && peer.getPort() == port;
+	}
+
+	private static byte[] filled(int value) {
+		byte[] bytes = new byte[20];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+
+}
@@ -20,6 +20,7 @@ package com.torrent.util;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.TreeMap;
@@ -325,17 +326,17 @@ public final class Bencoder2
     {
         int length = string.array().length;
         int num_digits = 1;
-        while((length /= 10) > 0)
+        for(int digits_left = length; (digits_left /= 10) > 0; )
         {
             num_digits++;
         }
         byte[] bencoded_string = new byte[length+num_digits+1];
         bencoded_string[num_digits] = (byte)':';
         System.arraycopy(string.array(), 0, bencoded_string, num_digits+1, length);
-        for(int i = num_digits-1; i >= 0; i--)
+        for(int i = num_digits-1, length_left = length; i >= 0; i--)
         {
-            bencoded_string[i] = (byte)((length % 10)+48);
-            length /= 10;
+            bencoded_string[i] = (byte)((length_left % 10)+48);
+            length_left /= 10;
         }
         return bencoded_string;
     }
@@ -347,19 +348,12 @@ public final class Bencoder2
      */
     private static final byte[] encodeInteger(Integer integer)
     {
-        int num_digits = 1;
-        int int_val = integer.intValue();
-        while((int_val /= 10) > 0)
-            ++num_digits;
-        int_val = integer.intValue();
-        byte[] bencoded_integer = new byte[num_digits+2];
+        // Integer.toString takes care of the sign
+        byte[] digits = integer.toString().getBytes();
+        byte[] bencoded_integer = new byte[digits.length+2];
         bencoded_integer[0] = (byte)'i';
         bencoded_integer[bencoded_integer.length - 1] = (byte)'e';
-        for(int i = num_digits; i > 0; i--)
-        {
-            bencoded_integer[i] = (byte)((int_val % 10)+48);
-            int_val /= 10;
-        }
+        System.arraycopy(digits, 0, bencoded_integer, 1, digits.length);
         return bencoded_integer;
     }
     
@@ -398,9 +392,29 @@ public final class Bencoder2
      * @return a {@code byte[]} containing the bnecoded form of the {@code HashMap}.
      * @throws BencodingException if any of the objecdts in the map is not bencodable.
      */
+    /**
+     * Keys are sorted as raw strings, so bytes compare unsigned;
+     * ByteBuffer.compareTo would put keys such as binary info hashes
+     * with a high first byte before the rest.
+     */
+    private static final Comparator<ByteBuffer> RAW_KEY_ORDER = new Comparator<ByteBuffer>()
+    {
+        public int compare(ByteBuffer a, ByteBuffer b)
+        {
+            int length = Math.min(a.remaining(), b.remaining());
+            for(int i = 0; i < length; i++)
+            {
+                int diff = (a.get(a.position()+i) & 0xFF) - (b.get(b.position()+i) & 0xFF);
+                if(diff != 0)
+                    return diff;
+            }
+            return a.remaining() - b.remaining();
+        }
+    };
+
     private static final byte[] encodeDictionary(HashMap<ByteBuffer, Object> dictionary) throws BencodingException
     {
-        TreeMap<ByteBuffer, Object> sorted_dictionary = new TreeMap<ByteBuffer, Object>();
+        TreeMap<ByteBuffer, Object> sorted_dictionary = new TreeMap<ByteBuffer, Object>(RAW_KEY_ORDER);
         sorted_dictionary.putAll(dictionary);
         byte[][] dictionary_parts = new byte[sorted_dictionary.keySet().size()*2][];
         int k = 0;
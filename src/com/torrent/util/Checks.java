@@ -0,0 +1,49 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.util;
+
+/**
+ * Collects the results of a loopback check, such as UdpTrackerCheck,
+ * printing each one as it's made; the process exits with status 1 if
+ * any failed, so the checks can be run from a script
+ */
+public class Checks {
+
+	private int mPassed = 0;
+	private int mFailed = 0;
+
+	/**
+	 * Record one result
+	 *
+	 * @return passed
+	 */
+	public boolean check(String description, boolean passed) {
+		System.out.println((passed ? "ok      " : "FAILED  ") + description);
+		if (passed) {
+			mPassed++;
+		} else {
+			mFailed++;
+		}
+		return passed;
+	}
+
+	/**
+	 * Record something that should have worked but threw
+	 */
+	public void fail(String description, Exception e) {
+		check(description + ": " + e, false);
+	}
+
+	/**
+	 * Print the totals and exit
+	 */
+	public void finish() {
+		System.out.println(String.format("%d passed, %d failed", mPassed, mFailed));
+		System.exit((mFailed == 0) ? (0) : (1));
+	}
+
+}
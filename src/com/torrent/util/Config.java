@@ -0,0 +1,50 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.util;
+
+/**
+ * Settings that can be changed without recompiling, read
+ * from system properties prefixed with "rubt.",
+ * e.g. java -Drubt.storage=mmap RUBTClient ...
+ */
+public class Config {
+
+	private static final String PREFIX = "rubt.";
+
+	public static String getString(String key, String defaultValue) {
+		return System.getProperty(PREFIX + key, defaultValue);
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String value = System.getProperty(PREFIX + key);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Ignoring bad value for " + PREFIX + key + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	public static long getLong(String key, long defaultValue) {
+		String value = System.getProperty(PREFIX + key);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Ignoring bad value for " + PREFIX + key + ": " + value);
+			return defaultValue;
+		}
+	}
+
+}
@@ -0,0 +1,223 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of IPv4 address ranges, kept as two sorted int arrays of
+ * non-overlapping ranges so that hundreds of thousands of entries take
+ * little memory and a lookup is a binary search with no allocation.
+ *
+ * Add ranges with add(), then call compact() before looking anything up.
+ * Addresses are unsigned, so they are stored with the sign bit flipped
+ * to make signed comparisons order them correctly.
+ */
+public class IpRangeSet {
+
+	private static final int SIGN = 0x80000000;
+
+	/**
+	 * Ranges as added, packed as (start << 32 | end) with
+	 * flipped sign bits, so sorting them sorts by start
+	 */
+	private long[] mPending = new long[16];
+	private int mPendingCount = 0;
+
+	/**
+	 * Merged ranges after compact(), inclusive
+	 */
+	private int[] mStarts = new int[0];
+	private int[] mEnds = new int[0];
+
+	/**
+	 * Add the range of addresses from start to end, inclusive
+	 */
+	public void add(int start, int end) {
+		if (mPendingCount == mPending.length) {
+			mPending = Arrays.copyOf(mPending, mPending.length * 2);
+		}
+
+		int s = start ^ SIGN;
+		int e = end ^ SIGN;
+		if (s > e) {
+			int temp = s;
+			s = e;
+			e = temp;
+		}
+
+		mPending[mPendingCount++] = ((long) s << 32) | (e & 0xffffffffL);
+	}
+
+	/**
+	 * Add a range in CIDR form, e.g. "10.0.0.0/8"
+	 * 
+	 * @return false if it couldn't be parsed
+	 */
+	public boolean addCidr(String cidr) {
+		int slash = cidr.indexOf('/');
+		long address = parse(cidr, 0, (slash < 0) ? (cidr.length()) : (slash));
+		if (address < 0) {
+			return false;
+		}
+
+		int bits = 32;
+		if (slash >= 0) {
+			try {
+				bits = Integer.parseInt(cidr.substring(slash + 1).trim());
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			if (bits < 0 || bits > 32) {
+				return false;
+			}
+		}
+
+		int mask = (bits == 0) ? (0) : (-1 << (32 - bits));
+		int start = (int) address & mask;
+		add(start, start | ~mask);
+		return true;
+	}
+
+	/**
+	 * Add a range in "first-last" form, e.g. "10.0.0.0-10.255.255.255"
+	 * 
+	 * @return false if it couldn't be parsed
+	 */
+	public boolean addRange(String range) {
+		int dash = range.indexOf('-');
+		if (dash < 0) {
+			return false;
+		}
+
+		long start = parse(range, 0, dash);
+		long end = parse(range, dash + 1, range.length());
+		if (start < 0 || end < 0) {
+			return false;
+		}
+
+		add((int) start, (int) end);
+		return true;
+	}
+
+	/**
+	 * Sort and merge everything added so far; must be
+	 * called before contains() will see new ranges
+	 */
+	public void compact() {
+		long[] all = new long[mStarts.length + mPendingCount];
+		for (int i = 0; i < mStarts.length; i++) {
+			all[i] = ((long) mStarts[i] << 32) | (mEnds[i] & 0xffffffffL);
+		}
+		System.arraycopy(mPending, 0, all, mStarts.length, mPendingCount);
+		Arrays.sort(all);
+
+		int[] starts = new int[all.length];
+		int[] ends = new int[all.length];
+		int count = 0;
+
+		for (long packed : all) {
+			int start = (int) (packed >> 32);
+			int end = (int) packed;
+
+			// Merge with the previous range if they overlap or touch
+			if (count > 0 && (long) start <= (long) ends[count - 1] + 1) {
+				ends[count - 1] = Math.max(ends[count - 1], end);
+			} else {
+				starts[count] = start;
+				ends[count] = end;
+				count++;
+			}
+		}
+
+		mStarts = Arrays.copyOf(starts, count);
+		mEnds = Arrays.copyOf(ends, count);
+		mPending = new long[16];
+		mPendingCount = 0;
+	}
+
+	/**
+	 * @return if the address is in any range
+	 */
+	public boolean contains(int address) {
+		int key = address ^ SIGN;
+
+		// Find the last range starting at or before the address
+		int low = 0;
+		int high = mStarts.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mStarts[mid] <= key) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		return high >= 0 && key <= mEnds[high];
+	}
+
+	/**
+	 * @return if the address, in dotted form, is in any range;
+	 *         false if it isn't an IPv4 address
+	 */
+	public boolean contains(String address) {
+		long parsed = parse(address, 0, address.length());
+		return parsed >= 0 && contains((int) parsed);
+	}
+
+	/**
+	 * @return the number of merged ranges
+	 */
+	public int size() {
+		return mStarts.length;
+	}
+
+	/**
+	 * Parse a dotted IPv4 address from part of a string,
+	 * ignoring surrounding spaces, without allocating
+	 * 
+	 * @return the address, or -1 if it isn't one
+	 */
+	public static long parse(String s, int from, int to) {
+		while (from < to && s.charAt(from) == ' ') {
+			from++;
+		}
+		while (to > from && s.charAt(to - 1) == ' ') {
+			to--;
+		}
+
+		long address = 0;
+		int octet = 0;
+		int digits = 0;
+		int dots = 0;
+
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				octet = octet * 10 + (c - '0');
+				if (++digits > 3 || octet > 255) {
+					return -1;
+				}
+			} else if (c == '.' && digits > 0 && dots < 3) {
+				address = (address << 8) | octet;
+				octet = 0;
+				digits = 0;
+				dots++;
+			} else {
+				return -1;
+			}
+		}
+
+		if (dots != 3 || digits == 0) {
+			return -1;
+		}
+
+		return (address << 8) | octet;
+	}
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits a transfer rate. Tokens (bytes) accumulate at the configured
+ * rate, up to one second's worth, and are spent as data is transferred.
+ * Data that has already been transferred is always paid for, possibly
+ * putting the bucket into debt; the next caller then waits for the debt
+ * to be repaid before transferring more. Callers wait in arrival order,
+ * so peers sharing a bucket get an even share of it.
+ *
+ * Buckets can be chained (e.g. peer -> torrent -> global), in which
+ * case every level has to allow the transfer.
+ */
+public class TokenBucket {
+
+	/**
+	 * The bucket that must also allow every transfer, may be null
+	 */
+	private final TokenBucket mParent;
+
+	/**
+	 * Bytes per second; 0 means unlimited
+	 */
+	private volatile long mRate;
+
+	private double mTokens = 0;
+
+	private long mLastRefill = System.nanoTime();
+
+	/**
+	 * Fair, so that waiting threads are served in order
+	 */
+	private final ReentrantLock mLock = new ReentrantLock(true);
+
+	public TokenBucket(long rate, TokenBucket parent) {
+		mRate = rate;
+		mParent = parent;
+	}
+
+	public TokenBucket(long rate) {
+		this(rate, null);
+	}
+
+	/**
+	 * Change the rate; takes effect immediately, even for waiting threads
+	 *
+	 * @param rate
+	 *            bytes per second, 0 for unlimited
+	 */
+	public void setRate(long rate) {
+		mRate = rate;
+	}
+
+	public long getRate() {
+		return mRate;
+	}
+
+	public TokenBucket getParent() {
+		return mParent;
+	}
+
+	/**
+	 * Wait until this bucket and all of its parents are out of debt,
+	 * then spend the given number of bytes from each of them
+	 */
+	public void consume(int bytes) {
+		consumeLocal(bytes);
+		if (mParent != null) {
+			mParent.consume(bytes);
+		}
+	}
+
+	private void consumeLocal(int bytes) {
+		if (mRate <= 0) {
+			return;
+		}
+
+		mLock.lock();
+		try {
+			refill();
+			while (mTokens < 0 && mRate > 0) {
+				// Sleep just long enough for the debt to be repaid
+				long wait = (long) Math.ceil(-mTokens * 1000 / mRate);
+				try {
+					Thread.sleep(Math.max(1, Math.min(wait, 1000)));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				refill();
+			}
+
+			mTokens -= bytes;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		long rate = mRate;
+
+		mTokens = Math.min(rate, mTokens + (now - mLastRefill) * rate / 1000000000d);
+		mLastRefill = now;
+	}
+
+}
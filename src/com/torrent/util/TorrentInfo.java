@@ -25,6 +25,8 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -72,6 +74,18 @@ public class TorrentInfo
 	 */
 	public static final ByteBuffer KEY_ANNOUNCE = ByteBuffer.wrap(new byte[] {'a','n','n','o','u','n','c','e'});
 	
+	/**
+	 * ByteBuffer to retrieve the tiers of tracker URLs from the metainfo dictionary.&nbsp;
+	 * See <a href="http://www.bittorrent.org/beps/bep_0012.html">http://www.bittorrent.org/beps/bep_0012.html</a>.
+	 */
+	public static final ByteBuffer KEY_ANNOUNCE_LIST = ByteBuffer.wrap(new byte[] {'a','n','n','o','u','n','c','e','-','l','i','s','t'});
+	
+	/**
+	 * ByteBuffer to retrieve the private flag from the info dictionary.&nbsp;
+	 * See <a href="http://www.bittorrent.org/beps/bep_0027.html">http://www.bittorrent.org/beps/bep_0027.html</a>.
+	 */
+	public static final ByteBuffer KEY_PRIVATE = ByteBuffer.wrap(new byte[] {'p','r','i','v','a','t','e'});
+	
 	/**
 	 * A byte array containing the raw bytes of the torrent metainfo file.
 	 */
@@ -97,10 +111,22 @@ public class TorrentInfo
 	public final ByteBuffer info_hash;
 	
 	/**
-	 * The base URL of the tracker for client scrapes.
+	 * The base URL of the tracker for client scrapes, or {@code null} if it is not
+	 * one that {@code java.net.URL} understands (such as a udp:// tracker).
 	 */
 	public final URL announce_url;
 	
+	/**
+	 * The announce URL of the tracker, or {@code null} if the metainfo only has an announce-list.
+	 */
+	public final String announce;
+	
+	/**
+	 * Every tracker's announce URL, in tiers with the most preferred tier first.&nbsp; This is
+	 * the announce-list if there is one, otherwise a single tier holding the announce URL.
+	 */
+	public final List<List<String>> announce_list;
+	
 	/**
 	 * The default length of each piece in bytes.&nbsp; Note that the last piece may be irregularly-sized (less than the value of piece_length)
 	 * if the file size is not a multiple of the piece size.
@@ -122,6 +148,11 @@ public class TorrentInfo
 	 */
 	public final ByteBuffer[] piece_hashes;
 	
+	/**
+	 * Whether peers may only come from the torrent's trackers, and never from the DHT.
+	 */
+	public final boolean is_private;
+	
 	/**
 	 * Creates a new TorrentInfo object from the specified byte array.  If the byte array is {@code null} or
 	 * has a length of 0(zero), then an {@code IllegalArgumentException} is thrown.
@@ -141,23 +172,46 @@ public class TorrentInfo
 		// Assign the metainfo map
 		this.torrent_file_map = (Map<ByteBuffer,Object>)Bencoder2.decode(torrent_file_bytes);
 		
-		// Try to extract the announce URL
+		// Try to extract the announce URL, and the announce-list if there is one
 		ByteBuffer url_buff = (ByteBuffer)this.torrent_file_map.get(TorrentInfo.KEY_ANNOUNCE);
-		if(url_buff == null)
-			throw new BencodingException("Could not retrieve anounce URL from torrent metainfo.  Corrupt file?");
+		this.announce_list = TorrentInfo.getAnnounceList(this.torrent_file_map.get(TorrentInfo.KEY_ANNOUNCE_LIST));
 		
-		try {
-			String url_string = new String(url_buff.array(), "ASCII");
-			URL announce_url = new URL(url_string);
-			this.announce_url = announce_url;
-		}
-		catch(UnsupportedEncodingException uee)
+		if(url_buff == null)
 		{
-			throw new BencodingException(uee.getLocalizedMessage());
+			if(this.announce_list.isEmpty())
+				throw new BencodingException("Could not retrieve anounce URL from torrent metainfo.  Corrupt file?");
+			this.announce = null;
+			this.announce_url = null;
 		}
-		catch(MalformedURLException murle)
+		else
 		{
-			throw new BencodingException(murle.getLocalizedMessage());
+			try {
+				this.announce = new String(url_buff.array(), "ASCII");
+			}
+			catch(UnsupportedEncodingException uee)
+			{
+				throw new BencodingException(uee.getLocalizedMessage());
+			}
+			
+			URL announce_url = null;
+			try {
+				announce_url = new URL(this.announce);
+			}
+			catch(MalformedURLException murle)
+			{
+				// Only a problem if no tracker can handle it, such as udp://
+				if(this.announce.indexOf("://") < 0)
+					throw new BencodingException(murle.getLocalizedMessage());
+			}
+			this.announce_url = announce_url;
+			
+			// Clients that support the announce-list ignore the announce URL
+			if(this.announce_list.isEmpty())
+			{
+				List<String> tier = new ArrayList<String>();
+				tier.add(this.announce);
+				this.announce_list.add(tier);
+			}
 		}
 		
 		// Try to extract the info dictionary
@@ -223,5 +277,47 @@ public class TorrentInfo
 			System.arraycopy(all_hashes_array,i*20,temp_buff,0,20);
 			this.piece_hashes[i] = ByteBuffer.wrap(temp_buff);
 		}
+		
+		// The private flag is optional, and only set by private=1
+		Object private_flag = this.info_map.get(TorrentInfo.KEY_PRIVATE);
+		this.is_private = (private_flag instanceof Integer) && ((Integer)private_flag).intValue() == 1;
+	}
+	
+	/**
+	 * Reads the announce-list, a list of tiers that are each a list of announce URLs.&nbsp; Anything
+	 * that isn't a URL string is skipped, as are empty tiers.
+	 * @param announce_list the announce-list from the metainfo dictionary, may be {@code null}
+	 * @return the tiers, empty if there are none
+	 */
+	private static List<List<String>> getAnnounceList(Object announce_list)
+	{
+		List<List<String>> tiers = new ArrayList<List<String>>();
+		if(!(announce_list instanceof List))
+			return tiers;
+		
+		for(Object tier_object : (List<?>)announce_list)
+		{
+			if(!(tier_object instanceof List))
+				continue;
+			
+			List<String> tier = new ArrayList<String>();
+			for(Object url_object : (List<?>)tier_object)
+			{
+				if(!(url_object instanceof ByteBuffer))
+					continue;
+				try {
+					tier.add(new String(((ByteBuffer)url_object).array(), "ASCII"));
+				}
+				catch(UnsupportedEncodingException uee)
+				{
+					// ASCII is always supported
+				}
+			}
+			
+			if(!tier.isEmpty())
+				tiers.add(tier);
+		}
+		
+		return tiers;
 	}
 }
@@ -0,0 +1,284 @@
+/**
+ * Victor Kaiser-Pendergrast
+ * James DiPierro
+ * Grayson Phillips
+ */
+
+package com.torrent.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed-wheel timer: one thread runs every timeout in the client.
+ * Time is split into ticks, and each timeout sits in a doubly-linked
+ * list in the bucket for the tick it expires on, so scheduling and
+ * cancelling are O(1) however many timeouts there are. A timeout further
+ * away than one turn of the wheel counts down the turns it has left.
+ *
+ * Tasks run on the timer thread, so they must be short; anything
+ * that may block should be handed off to another thread.
+ */
+public class WheelTimer {
+
+	/**
+	 * Milliseconds per tick; timeouts fire up to this late
+	 */
+	public static final long DEFAULT_TICK = 100;
+
+	/**
+	 * Buckets in the wheel (51.2 seconds per turn by default)
+	 */
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	/**
+	 * A scheduled task, which can be cancelled
+	 */
+	public class Timeout {
+		private Runnable mTask;
+		private long mPeriod;
+		private long mDeadline;
+		private long mRounds;
+		private boolean mCancelled = false;
+
+		private Timeout mPrev;
+		private Timeout mNext;
+		private int mBucket = -1;
+
+		private Timeout(Runnable task, long deadline, long period) {
+			mTask = task;
+			mDeadline = deadline;
+			mPeriod = period;
+		}
+
+		/**
+		 * Stop the task from running, or from
+		 * running again if it is periodic
+		 */
+		public void cancel() {
+			synchronized (mLock) {
+				mCancelled = true;
+				unlink(this);
+			}
+		}
+
+		public boolean isCancelled() {
+			synchronized (mLock) {
+				return mCancelled;
+			}
+		}
+	}
+
+	private final Object mLock = new Object();
+
+	private final long mTick;
+	private final int mMask;
+
+	/**
+	 * The first timeout in each bucket
+	 */
+	private final Timeout[] mBuckets;
+
+	/**
+	 * The next tick to be processed, counted from mStartTime
+	 */
+	private long mCurrentTick = 0;
+	private long mStartTime;
+
+	private Thread mThread;
+	private volatile boolean mRunning = false;
+
+	public WheelTimer() {
+		this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * @param tick
+	 *            milliseconds per tick
+	 * @param wheelSize
+	 *            number of buckets, rounded up to a power of two
+	 */
+	public WheelTimer(long tick, int wheelSize) {
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+
+		mTick = tick;
+		mMask = size - 1;
+		mBuckets = new Timeout[size];
+		mStartTime = now();
+	}
+
+	public void start() {
+		if (mRunning) {
+			return;
+		}
+
+		mRunning = true;
+		(mThread = new Thread(new Runnable() {
+			public void run() {
+				while (mRunning) {
+					waitForTick();
+					for (Timeout timeout : expire()) {
+						runTimeout(timeout);
+					}
+				}
+			}
+		}, "Timer")).start();
+	}
+
+	/**
+	 * Stop the timer thread; anything still scheduled never runs
+	 */
+	public void stop() {
+		mRunning = false;
+		if (mThread != null) {
+			mThread.interrupt();
+			try {
+				mThread.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Run a task once
+	 *
+	 * @param delay
+	 *            milliseconds from now
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		return add(new Timeout(task, now() + delay, 0));
+	}
+
+	/**
+	 * Run a task repeatedly until it is cancelled
+	 *
+	 * @param period
+	 *            milliseconds from now until the first run, and
+	 *            from the end of each run until the next
+	 */
+	public Timeout schedulePeriodic(Runnable task, long period) {
+		return add(new Timeout(task, now() + period, period));
+	}
+
+	private Timeout add(Timeout timeout) {
+		synchronized (mLock) {
+			if (!timeout.mCancelled) {
+				insert(timeout);
+			}
+		}
+		return timeout;
+	}
+
+	/**
+	 * Put the timeout in the bucket of the tick it expires on;
+	 * must hold mLock
+	 */
+	private void insert(Timeout timeout) {
+		long target = (timeout.mDeadline - mStartTime + mTick - 1) / mTick;
+		if (target < mCurrentTick) {
+			target = mCurrentTick;
+		}
+
+		timeout.mRounds = (target - mCurrentTick) / mBuckets.length;
+		timeout.mBucket = (int) (target & mMask);
+
+		timeout.mPrev = null;
+		timeout.mNext = mBuckets[timeout.mBucket];
+		if (timeout.mNext != null) {
+			timeout.mNext.mPrev = timeout;
+		}
+		mBuckets[timeout.mBucket] = timeout;
+	}
+
+	/**
+	 * Take the timeout out of its bucket, if it's in one; must hold mLock
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.mBucket < 0) {
+			return;
+		}
+
+		if (timeout.mPrev != null) {
+			timeout.mPrev.mNext = timeout.mNext;
+		} else {
+			mBuckets[timeout.mBucket] = timeout.mNext;
+		}
+		if (timeout.mNext != null) {
+			timeout.mNext.mPrev = timeout.mPrev;
+		}
+
+		timeout.mPrev = null;
+		timeout.mNext = null;
+		timeout.mBucket = -1;
+	}
+
+	/**
+	 * Sleep until the current tick's time has come
+	 */
+	private void waitForTick() {
+		long deadline = mStartTime + mCurrentTick * mTick;
+		long sleep;
+		while (mRunning && (sleep = deadline - now()) > 0) {
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Remove the timeouts due on the current tick, and move on to the next
+	 */
+	private List<Timeout> expire() {
+		List<Timeout> expired = new ArrayList<Timeout>();
+
+		synchronized (mLock) {
+			Timeout timeout = mBuckets[(int) (mCurrentTick & mMask)];
+			while (timeout != null) {
+				Timeout next = timeout.mNext;
+				if (timeout.mRounds <= 0) {
+					unlink(timeout);
+					expired.add(timeout);
+				} else {
+					timeout.mRounds--;
+				}
+				timeout = next;
+			}
+
+			mCurrentTick++;
+		}
+
+		return expired;
+	}
+
+	private void runTimeout(Timeout timeout) {
+		// It may have been cancelled since it was taken off the wheel
+		if (timeout.isCancelled()) {
+			return;
+		}
+
+		try {
+			timeout.mTask.run();
+		} catch (Throwable t) {
+			// One bad task shouldn't stop every other timeout
+			t.printStackTrace();
+		}
+
+		if (timeout.mPeriod > 0) {
+			synchronized (mLock) {
+				if (!timeout.mCancelled && timeout.mBucket < 0) {
+					timeout.mDeadline = now() + timeout.mPeriod;
+					insert(timeout);
+				}
+			}
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+}